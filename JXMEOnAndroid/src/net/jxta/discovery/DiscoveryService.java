@@ -258,6 +258,40 @@ public interface DiscoveryService extends Service {
             int threshold,
             DiscoveryListener listener);
 
+    /**
+     *  Discover advertisements from remote peers, a page at a time.
+     *
+     *  <p/>Peers return at most a fixed number of responses to a query,
+     *  whatever its <tt>threshold</tt>. When more are available, the
+     *  response carries a continuation cursor, see
+     *  {@link net.jxta.protocol.DiscoveryResponseMsg#getCursor()}. Repeating
+     *  the query with that cursor returns the next page. The responses are
+     *  returned in a stable order, so that the pages do not overlap.
+     *
+     * @param peerid The ID of a peer which will receive the query or
+     *      <tt>null</tt> in order to propagate the query.
+     * @param type Discovery type <tt>PEER</tt>, <tt>GROUP</tt>, <tt>ADV</tt>.
+     * @param  attribute        indexed element name (see advertisement(s) for a
+     *       list of indexed fields. A null attribute indicates any advertisement
+     *       of specified type
+     * @param  value      value of attribute to narrow discovery to, as for
+     *      {@link #getRemoteAdvertisements(String,int,String,String,int,DiscoveryListener)}
+     * @param  threshold  The upper limit of responses from each peer responding.
+     * @param  cursor     The cursor of the previous page, or <tt>null</tt>
+     *      for the first page.
+     * @param  listener   The listener which will be called when advertisement
+     *      which match this query are discovered or <tt>null</tt> if no
+     *      callback is desired.
+     * @return query ID for this discovery query.
+     */
+    public int getRemoteAdvertisements(String peerid,
+            int type,
+            String attribute,
+            String value,
+            int threshold,
+            String cursor,
+            DiscoveryListener listener);
+
     /**
      * Retrieve locally stored Advertisements.
      *
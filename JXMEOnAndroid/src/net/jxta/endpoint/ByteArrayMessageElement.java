@@ -62,6 +62,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;         // used in hashCode
 import java.util.zip.Checksum;
 
@@ -347,6 +348,17 @@ public class ByteArrayMessageElement extends MessageElement {
         return new ByteArrayInputStream(b, offset, len);
     }
 
+    /**
+     *  Returns the contents of this element as a buffer sharing the byte
+     *  array of this element, without copying it. The buffer should be
+     *  considered read-only.
+     *
+     *  @return a buffer positioned at the contents of this element.
+     */
+    public synchronized ByteBuffer getByteBuffer() {
+        return ByteBuffer.wrap(b, offset, len);
+    }
+
     /**
      *  {@inheritDoc}
      */
@@ -69,7 +69,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Vector;
 
 import java.io.IOException;
 import java.util.ConcurrentModificationException;
@@ -209,6 +208,31 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      */
     protected transient int cachedByteLengthModCount = -1;
 
+    /**
+     *  Index of the elements by namespace and name. Built on first use and
+     *  then maintained as elements are added, removed and replaced.
+     *
+     *  <ul>
+     *      <li>keys are {@link java.lang.String} namespaces</li>
+     *      <li>values are {@link java.util.Map}
+     *          <ul>
+     *              <li>keys are {@link java.lang.String} element names</li>
+     *              <li>values are {@link java.util.List} of
+     *              {@link net.jxta.endpoint.Message.element} in the order in
+     *              which they were added to the message</li>
+     *          </ul>
+     *      </li>
+     *  </ul>
+     */
+    private transient Map index = null;
+
+    /**
+     *  modcount at which {@link #index} was last known to be accurate. If it
+     *  differs from {@link #modCount} then the index is rebuilt when next
+     *  needed.
+     */
+    private transient volatile int indexModCount = -1;
+
 
     /**
      *  If true then the message is modifiable. This is primarily intended as a
@@ -246,7 +270,7 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         /**
          * The elements being iterated.
          */
-        ListIterator list;
+        ElementView list;
 
         /**
          * The current element
@@ -259,12 +283,11 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         transient int origModCount;
 
         /**
-         * Intialize the iterator from a list iterator. The list iterator must
-         * be an iterator of {@link element}.
+         * Intialize the iterator from a view of the message elements.
          *
-         * @param list The ListIterator we are managing.
+         * @param list The view we are managing.
          */
-        ElementIterator(ListIterator list) {
+        ElementIterator(ElementView list) {
             origModCount = Message.this.getMessageModCount();
             this.list = list;
         }
@@ -380,51 +403,20 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
                 throw new IllegalStateException("no current element, call next() or previous()");
             }
 
-            ListIterator elsPosition = Message.this.elements.listIterator();
-            ListIterator nsPosition = ((List)(namespaces.get(current.namespace))).listIterator();
-
-            int currentPrevious = list.previousIndex();
-
-            // restart this iterator
-            while(list.previousIndex() >= 0) {
-                list.previous();
-            }
-
-            // readvance to the current position, but track in ns list and master list
-            while(list.previousIndex() < currentPrevious) {
-                element anElement = (element) list.next();
-
-                try {
-                    // advance to the same element in the master list.
-                    element anElsElement;
-
-                    do {
-                        anElsElement = (element) elsPosition.next();
-                    } while(anElement != anElsElement);
+            int at = list.positionOf(current);
 
-                    // advance to the same element in the ns list.
-                    MessageElement anNsElement;
-
-                    if(current.namespace.equals(anElement.namespace)) {
-                        do {
-                            anNsElement = (MessageElement) nsPosition.next();
-                        } while(anElement.element != anNsElement);
-                    }
-                } catch (NoSuchElementException ranOut) {
-                    RuntimeException failure = new ConcurrentModificationException(Message.this + " concurrently modified. Iterator was made at mod " + origModCount);
-
-                    if (LOG.isEnabledFor(Level.ERROR)) {
-                        LOG.error(Message.this + " concurrently modified\n" + getMessageModHistory(), failure);
-                    }
+            if(-1 == at) {
+                RuntimeException failure = new ConcurrentModificationException(Message.this + " concurrently modified. Iterator was made at mod " + origModCount);
 
-                    throw failure;
+                if (LOG.isEnabledFor(Level.ERROR)) {
+                    LOG.error(Message.this + " concurrently modified\n" + getMessageModHistory(), failure);
                 }
+
+                throw failure;
             }
 
-            elsPosition.remove();
-            nsPosition.remove();
-            list.remove();
-            origModCount = Message.this.incMessageModCount();
+            origModCount = Message.this.unlinkElement(at);
+            list.removed();
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Removed " + current.namespace + "::" + current.element.getElementName() + "/" + current.element.getClass().getName() + "@" + current.element.hashCode() + " from " +  Message.this);
             }
@@ -455,52 +447,21 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
                 throw new IllegalStateException("no current element, call next() or previous()");
             }
 
-            ListIterator elsPosition = Message.this.elements.listIterator();
-            ListIterator nsPosition = ((List)(namespaces.get(current.namespace))).listIterator();
+            int at = list.positionOf(current);
 
-            int currentPrevious = list.previousIndex();
-
-            // restart this iterator
-            while(list.previousIndex() >= 0) {
-                list.previous();
-            }
-
-            // readvance to the current position, but track in ns list and master list
-            while(list.previousIndex() < currentPrevious) {
-                element anElement = (element) list.next();
-
-                try {
-                    // advance to the same element in the master list.
-                    element anElsElement;
-
-                    do {
-                        anElsElement = (element) elsPosition.next();
-                    } while(anElement != anElsElement);
-
-                    // advance to the same element in the ns list.
-                    MessageElement anNsElement;
-
-                    if(current.namespace.equals(anElement.namespace)) {
-                        do {
-                            anNsElement = (MessageElement) nsPosition.next();
-                        } while(anElement.element != anNsElement);
-                    }
-                } catch (NoSuchElementException ranOut) {
-                    RuntimeException failure = new ConcurrentModificationException(Message.this + " concurrently modified. Iterator was made at mod " + origModCount);
-
-                    if (LOG.isEnabledFor(Level.ERROR)) {
-                        LOG.error(Message.this + " concurrently modified\n" + getMessageModHistory(), failure);
-                    }
+            if(-1 == at) {
+                RuntimeException failure = new ConcurrentModificationException(Message.this + " concurrently modified. Iterator was made at mod " + origModCount);
 
-                    throw failure;
+                if (LOG.isEnabledFor(Level.ERROR)) {
+                    LOG.error(Message.this + " concurrently modified\n" + getMessageModHistory(), failure);
                 }
+
+                throw failure;
             }
 
             Message.element newCurrent = new Message.element(current.namespace, (MessageElement) obj);
-            elsPosition.set(newCurrent);
-            nsPosition.set(obj);
-            list.set(newCurrent);
-            origModCount = Message.this.incMessageModCount();
+            origModCount = Message.this.relinkElement(at, newCurrent);
+            list.replaced(newCurrent);
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Replaced " + current.namespace + "::" + current.element.getElementName() + "/" + current.element.getClass().getName() + "@" + current.element.hashCode() +
                           " with " + newCurrent.namespace + "::" + newCurrent.element.getElementName() + "/" + newCurrent.element.getClass().getName() + "@" + newCurrent.element.hashCode() + " in " +  Message.this);
@@ -522,6 +483,201 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         }
     }
 
+    /**
+     *  A live view of the elements of the message which match a namespace,
+     *  name and/or type. Views walk the message element list (or an index
+     *  list) in place rather than copying the matching elements. Removal and
+     *  replacement are performed by the message, the view is only told about
+     *  them so that it can keep its position.
+     */
+    private class ElementView {
+
+        /**
+         *  The list being viewed, values are {@link Message.element}. Either
+         *  the message element list or a list from the index.
+         */
+        final List backing;
+
+        /**
+         *  If non-null, the namespace elements must be in.
+         */
+        final String namespace;
+
+        /**
+         *  If non-null, the name elements must have.
+         */
+        final String name;
+
+        /**
+         *  If non-null, the type elements must have.
+         */
+        final MimeMediaType type;
+
+        /**
+         *  Position in the backing list of the next candidate element.
+         */
+        int cursor = 0;
+
+        /**
+         *  Position in the backing list of the element last returned or -1.
+         */
+        int lastRet = -1;
+
+        /**
+         *  Number of matching elements before the cursor.
+         */
+        int index = 0;
+
+        /**
+         *  The cursor from which the last forward seek was made, or -1, and
+         *  its result. Saves seeking twice for hasNext() then next().
+         */
+        int seekFrom = -1;
+        int seekFound = -1;
+
+        ElementView(List backing, String namespace, String name, MimeMediaType type) {
+            this.backing = backing;
+            this.namespace = namespace;
+            this.name = name;
+            this.type = type;
+        }
+
+        private boolean matches(element anElement) {
+            if((null != namespace) && !namespace.equals(anElement.namespace)) {
+                return false;
+            }
+
+            if((null != name) && !name.equals(anElement.element.getElementName())) {
+                return false;
+            }
+
+            return (null == type) || type.equals(anElement.element.getMimeType());
+        }
+
+        private int seekNext() {
+            if(seekFrom == cursor) {
+                return seekFound;
+            }
+
+            int size = backing.size();
+            int found = -1;
+
+            for(int at = cursor; at < size; at++) {
+                if(matches((element) backing.get(at))) {
+                    found = at;
+                    break;
+                }
+            }
+
+            seekFrom = cursor;
+            seekFound = found;
+
+            return found;
+        }
+
+        private int seekPrevious() {
+            for(int at = cursor - 1; at >= 0; at--) {
+                if(matches((element) backing.get(at))) {
+                    return at;
+                }
+            }
+
+            return -1;
+        }
+
+        boolean hasNext() {
+            return -1 != seekNext();
+        }
+
+        element next() {
+            int at = seekNext();
+
+            if(-1 == at) {
+                throw new NoSuchElementException();
+            }
+
+            cursor = at + 1;
+            lastRet = at;
+            index++;
+
+            return (element) backing.get(at);
+        }
+
+        boolean hasPrevious() {
+            return -1 != seekPrevious();
+        }
+
+        element previous() {
+            int at = seekPrevious();
+
+            if(-1 == at) {
+                throw new NoSuchElementException();
+            }
+
+            cursor = at;
+            lastRet = at;
+            index--;
+
+            return (element) backing.get(at);
+        }
+
+        int nextIndex() {
+            return index;
+        }
+
+        int previousIndex() {
+            return index - 1;
+        }
+
+        /**
+         *  Returns the position of the element last returned within the
+         *  message element list.
+         *
+         *  @param current the element last returned.
+         *  @return the position in the message element list or -1 if the
+         *  element could not be found.
+         */
+        int positionOf(element current) {
+            if((backing == elements) && (-1 != lastRet) && (current == backing.get(lastRet))) {
+                return lastRet;
+            }
+
+            return locateElement(current);
+        }
+
+        /**
+         *  The element last returned has been removed from the message.
+         */
+        void removed() {
+            seekFrom = -1;
+
+            if(-1 == lastRet) {
+                return;
+            }
+
+            if(lastRet < cursor) {
+                cursor = lastRet;
+                index--;
+            }
+
+            lastRet = -1;
+        }
+
+        /**
+         *  The element last returned has been replaced. If the replacement
+         *  is no longer part of an index list then it is as if removed.
+         *
+         *  @param replacement the replacement element.
+         */
+        void replaced(element replacement) {
+            seekFrom = -1;
+
+            if((lastRet >= backing.size()) || (replacement != backing.get(lastRet))) {
+                removed();
+            }
+        }
+    }
+
     /**
      *  holds an element and its namespace
      */
@@ -815,7 +971,10 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             throw new IllegalArgumentException("Message Element must be non-null");
         }
 
-        elements.add(new element(namespace, add));
+        boolean indexed = isIndexCurrent();
+        element newElement = new element(namespace, add);
+
+        elements.add(newElement);
 
         List namespaceElements = (List) namespaces.get(namespace);
         if(null == namespaceElements) {
@@ -824,7 +983,16 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         }
 
         namespaceElements.add(add);
-        incMessageModCount();
+
+        if(indexed) {
+            getIndexed(newElement, true).add(newElement);
+        }
+
+        int mod = incMessageModCount();
+
+        if(indexed) {
+            indexModCount = mod;
+        }
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Added " + namespace + "::" + add.getElementName() + "/" + add.getClass().getName() + "@" + add.hashCode() + " to " + this);
         }
@@ -941,24 +1109,13 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
             namespace = getDefaultNamespace();
         }
 
-        List namespaceElements = (List) namespaces.get(namespace);
+        List named = getIndexed(namespace, name);
 
-        // no namespace means no element.
-        if(null == namespaceElements) {
+        if((null == named) || named.isEmpty()) {
             return null;
         }
 
-        Iterator eachElement = namespaceElements.listIterator();
-
-        while(eachElement.hasNext()) {
-            MessageElement anElement = (MessageElement) eachElement.next();
-
-            if(name.equals(anElement.getElementName())) {
-                return anElement;
-            }
-        }
-
-        return null;
+        return ((element) named.get(0)).element;
     }
 
     /**
@@ -973,9 +1130,7 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *
      */
     public ElementIterator getMessageElements() {
-        Vector theMsgElements = new Vector(elements);
-
-        return new ElementIterator(theMsgElements.listIterator());
+        return new ElementIterator(new ElementView(elements, null, null, null));
     }
 
     /**
@@ -992,19 +1147,11 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *  @return iterator of the elements matching the specified name, if any.
      */
     public ElementIterator getMessageElements(String name) {
-        List theMsgElements = new ArrayList(elements.size());
-
-        Iterator eachElement = elements.iterator();
-
-        while (eachElement.hasNext()) {
-            element anElement = (element) eachElement.next();
-
-            if(name.equals(anElement.element.getElementName())) {
-                theMsgElements.add(anElement);
-            }
+        if(null == name) {
+            throw new IllegalArgumentException("name must be non-null");
         }
 
-        return new ElementIterator(theMsgElements.listIterator());
+        return new ElementIterator(new ElementView(elements, null, name, null));
     }
 
     /**
@@ -1027,23 +1174,11 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *  @return Enumeration of Elements.
      */
     public ElementIterator getMessageElementsOfNamespace(String namespace) {
-        List theMsgElements = new ArrayList(elements.size());
-
         if(null == namespace) {
             namespace = getDefaultNamespace();
         }
 
-        Iterator eachElement = elements.iterator();
-
-        while (eachElement.hasNext()) {
-            element anElement = (element) eachElement.next();
-
-            if(namespace.equals(anElement.namespace)) {
-                theMsgElements.add(anElement);
-            }
-        }
-
-        return new ElementIterator(theMsgElements.listIterator());
+        return new ElementIterator(new ElementView(elements, namespace, null, null));
     }
 
     /**
@@ -1063,23 +1198,21 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *
      */
     public ElementIterator getMessageElements(String namespace, String name) {
-        List theMsgElements = new ArrayList(elements.size());
-
         if(null == namespace) {
             namespace = getDefaultNamespace();
         }
 
-        Iterator eachElement = elements.iterator();
+        if(null == name) {
+            throw new IllegalArgumentException("name must be non-null");
+        }
 
-        while (eachElement.hasNext()) {
-            element anElement = (element) eachElement.next();
+        List named = getIndexed(namespace, name);
 
-            if(namespace.equals(anElement.namespace) && name.equals(anElement.element.getElementName())) {
-                theMsgElements.add(anElement);
-            }
+        if(null == named) {
+            named = Collections.EMPTY_LIST;
         }
 
-        return new ElementIterator(theMsgElements.listIterator());
+        return new ElementIterator(new ElementView(named, null, null, null));
     }
 
     /**
@@ -1095,19 +1228,11 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *  @return Enumeration of Elements.
      */
     public ElementIterator getMessageElements(MimeMediaType type) {
-        Vector theMsgElements = new Vector(elements.size());
-
-        ListIterator eachElement = elements.listIterator();
-
-        while (eachElement.hasNext()) {
-            element anElement = (element) eachElement.next();
-
-            if(type.equals(anElement.element.getMimeType())) {
-                theMsgElements.add(anElement.element);
-            }
+        if(null == type) {
+            throw new IllegalArgumentException("type must be non-null");
         }
 
-        return new ElementIterator(theMsgElements.listIterator());
+        return new ElementIterator(new ElementView(elements, null, null, type));
     }
 
     /**
@@ -1125,23 +1250,15 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
      *  @return Enumeration of Elements.
      */
     public ElementIterator getMessageElements(String namespace, MimeMediaType type) {
-        List theMsgElements = new ArrayList(elements.size());
-
         if(null == namespace) {
             namespace = getDefaultNamespace();
         }
 
-        Iterator eachElement = elements.iterator();
-
-        while (eachElement.hasNext()) {
-            element anElement = (element) eachElement.next();
-
-            if(namespace.equals(anElement.namespace) && type.equals(anElement.element.getMimeType())) {
-                theMsgElements.add(anElement);
-            }
+        if(null == type) {
+            throw new IllegalArgumentException("type must be non-null");
         }
 
-        return new ElementIterator(theMsgElements.listIterator());
+        return new ElementIterator(new ElementView(elements, namespace, null, type));
     }
 
     /**
@@ -1197,6 +1314,7 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
     public void clear() {
         elements.clear();
         namespaces.clear();
+        index = null;
         properties.clear();
         // a cleared message has no ancestors
         lineage.retainAll(Collections.singletonList(lineage.get(0)));
@@ -1208,6 +1326,219 @@ public class Message extends AbstractSimpleSelectable implements Serializable {
         }
     }
 
+    /**
+     *  Returns true if the index reflects the current message elements.
+     *
+     *  @return true if the index is current.
+     */
+    private boolean isIndexCurrent() {
+        return (indexModCount == modCount) && (null != index);
+    }
+
+    /**
+     *  Returns the index list of the elements with the specified namespace and
+     *  name, rebuilding the index if it is not current.
+     *
+     *  @param namespace the namespace of the elements.
+     *  @param name the name of the elements.
+     *  @return the list of matching {@link Message.element} or null if there
+     *  have never been any.
+     */
+    private List getIndexed(String namespace, String name) {
+        int mod = modCount;
+        Map current = index;
+
+        if((indexModCount != mod) || (null == current)) {
+            current = new HashMap();
+
+            Iterator eachElement = elements.iterator();
+
+            while(eachElement.hasNext()) {
+                element anElement = (element) eachElement.next();
+
+                getIndexed(current, anElement, true).add(anElement);
+            }
+
+            index = current;
+            indexModCount = mod;
+        }
+
+        Map names = (Map) current.get(namespace);
+
+        return (null == names) ? null : (List) names.get(name);
+    }
+
+    /**
+     *  Returns the list in the current index for the provided element.
+     *
+     *  @param anElement the element.
+     *  @param create if true then the list is created if necessary.
+     *  @return the index list for the element or null if there is none and
+     *  create was false.
+     */
+    private List getIndexed(element anElement, boolean create) {
+        return getIndexed(index, anElement, create);
+    }
+
+    private static List getIndexed(Map index, element anElement, boolean create) {
+        Map names = (Map) index.get(anElement.namespace);
+
+        if(null == names) {
+            if(!create) {
+                return null;
+            }
+
+            names = new HashMap();
+            index.put(anElement.namespace, names);
+        }
+
+        String name = anElement.element.getElementName();
+        List named = (List) names.get(name);
+
+        if((null == named) && create) {
+            named = new ArrayList(1);
+            names.put(name, named);
+        }
+
+        return named;
+    }
+
+    /**
+     *  Returns the position of the provided element within the message element
+     *  list.
+     *
+     *  @param find the element to find.
+     *  @return the position of the element or -1 if it is not in the message.
+     */
+    private int locateElement(element find) {
+        int size = elements.size();
+
+        for(int at = 0; at < size; at++) {
+            if(find == elements.get(at)) {
+                return at;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     *  Returns the position within its namespace list of the element at the
+     *  specified position of the message element list.
+     *
+     *  @param namespace the namespace of the element.
+     *  @param at the position of the element in the message element list.
+     *  @return the position of the element in its namespace list.
+     */
+    private int namespacePosition(String namespace, int at) {
+        int position = 0;
+
+        for(int each = 0; each < at; each++) {
+            if(namespace.equals(((element) elements.get(each)).namespace)) {
+                position++;
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     *  Removes the element at the specified position from the message element
+     *  list, its namespace list and the index.
+     *
+     *  @param at the position of the element in the message element list.
+     *  @return the new modification count of the message.
+     */
+    private int unlinkElement(int at) {
+        boolean indexed = isIndexCurrent();
+        element remove = (element) elements.get(at);
+
+        List namespaceElements = (List) namespaces.get(remove.namespace);
+        namespaceElements.remove(namespacePosition(remove.namespace, at));
+        elements.remove(at);
+
+        if(indexed) {
+            removeIndexed(remove);
+        }
+
+        int mod = incMessageModCount();
+
+        if(indexed) {
+            indexModCount = mod;
+        }
+
+        return mod;
+    }
+
+    /**
+     *  Replaces the element at the specified position in the message element
+     *  list, its namespace list and the index.
+     *
+     *  @param at the position of the element in the message element list.
+     *  @param replacement the replacement element.
+     *  @return the new modification count of the message.
+     */
+    private int relinkElement(int at, element replacement) {
+        boolean indexed = isIndexCurrent();
+        element replaced = (element) elements.get(at);
+
+        List namespaceElements = (List) namespaces.get(replaced.namespace);
+        namespaceElements.set(namespacePosition(replaced.namespace, at), replacement.element);
+        elements.set(at, replacement);
+
+        if(indexed) {
+            List named = getIndexed(replaced, false);
+            int position = named.indexOf(replaced);
+
+            if(replaced.element.getElementName().equals(replacement.element.getElementName())) {
+                named.set(position, replacement);
+            } else {
+                named.remove(position);
+
+                // insert among the like named elements in message order.
+                List renamed = getIndexed(replacement, true);
+                String name = replacement.element.getElementName();
+                int insertAt = 0;
+
+                for(int each = 0; each < at; each++) {
+                    element anElement = (element) elements.get(each);
+
+                    if(replacement.namespace.equals(anElement.namespace) && name.equals(anElement.element.getElementName())) {
+                        insertAt++;
+                    }
+                }
+
+                renamed.add(insertAt, replacement);
+            }
+        }
+
+        int mod = incMessageModCount();
+
+        if(indexed) {
+            indexModCount = mod;
+        }
+
+        return mod;
+    }
+
+    /**
+     *  Removes the provided element from the index.
+     *
+     *  @param remove the element to remove.
+     */
+    private void removeIndexed(element remove) {
+        List named = getIndexed(remove, false);
+
+        int size = named.size();
+
+        for(int at = 0; at < size; at++) {
+            if(remove == named.get(at)) {
+                named.remove(at);
+                break;
+            }
+        }
+    }
+
     /**
      *  Returns the aggregate size of all the memeber elements.
      *
@@ -451,6 +451,7 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
                     stateMachine.idleEvent();
                     stateMachine.notifyAll();
                 }
+                flushQuietly();
                 notifyChange();
                 return;
             }
@@ -507,6 +508,7 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
             }
 
             if (theChannel == null) {
+                flushQuietly();
                 notifyChange();
                 Thread.yield(); // We're about to go wait(). Yielding is a good bet. It is
                 // very inexpenssive and may be all it takes to get a new job
@@ -517,6 +519,20 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
     }
 
 
+    /**
+     * Flushes the underlying connection once our queues are drained. A failure is not reported here: the messages were already
+     * handed to the connection, and the next send finds it broken.
+     */
+    private void flushQuietly() {
+        try {
+            flushImpl();
+        } catch(Throwable any) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Flush failed for " + getDestinationAddress(), any);
+            }
+        }
+    }
+
     /**
      * Performs the ACTION_CONNECT deferred action. Generates a down event if it does not work.
      */
@@ -737,6 +753,13 @@ public abstract class ThreadedMessenger extends AbstractMessenger implements Run
      */
     protected abstract void sendMessageBImpl(Message msg, String service, String param) throws IOException;
 
+    /**
+     * Flushes underlying connection. Invoked each time the queues are drained, so that an implementor may let the messages of a
+     * burst be buffered together. Does nothing by default.
+     */
+    protected void flushImpl() throws IOException {
+    }
+
     /**
      * Obtain the logical destination address from the implementer (which likely gets it from the transport messenger).
      * Might not work if unresolved, so use with care.
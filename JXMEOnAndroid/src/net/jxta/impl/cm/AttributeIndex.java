@@ -0,0 +1,564 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The attribute index of a single Cm directory.
+ *
+ * <p/>For every indexed attribute the index maps the case folded value to
+ * the set of record keys holding that value, so that an exact match costs a
+ * couple of hash lookups regardless of the number of indexed records. The
+ * attributes of each key are also kept so that a key can be unindexed
+ * without knowing what it was indexed under.
+ *
+ * <p/>Values are also kept sorted, and sorted by their reversed form, so
+ * that the JXTA wildcard forms <code>foo*</code> and <code>*foo</code> are
+ * answered from a range of the sorted values. For <code>*foo*</code> and
+ * other patterns the values are also indexed by each of their three
+ * character substrings: only the values holding the rarest substring of the
+ * literal parts of the pattern are matched against it. A pattern whose
+ * literal parts are all shorter than that matches the values of its literal
+ * prefix, or every distinct value of the attribute, never the records.
+ *
+ * <p/>Keys are kept sorted, and lookups return them sorted and lazily from
+ * a given key on, so that results can be paged through in a stable order
+ * without materializing the whole match set for each page.
+ *
+ * <p/>This class is not synchronized.
+ */
+final class AttributeIndex {
+
+    /**
+     *  The wildcard character of discovery queries.
+     */
+    private final static char WILDCARD = '*';
+
+    /**
+     *  The length of the substrings of values which are indexed.
+     */
+    private final static int GRAM = 3;
+
+    /**
+     *  attribute name -> {@link Values}
+     */
+    private final Map attributes = new HashMap();
+
+    /**
+     *  key -> {@link IndexEntry}, sorted by key
+     */
+    private final TreeMap entries = new TreeMap();
+
+    /**
+     *  The attributes a key is indexed under and its lifetime.
+     */
+    static final class IndexEntry {
+        final String key;
+        final Map indexables;
+        final long lifetime;
+
+        IndexEntry(String key, Map indexables, long lifetime) {
+            this.key = key;
+            this.indexables = indexables;
+            this.lifetime = lifetime;
+        }
+    }
+
+    /**
+     *  The values of one attribute. The three first maps share the key sets.
+     */
+    private static final class Values {
+
+        /**
+         *  folded value -> SortedSet of keys
+         */
+        final Map exact = new HashMap();
+
+        /**
+         *  folded value -> Set of keys, sorted
+         */
+        final TreeMap sorted = new TreeMap();
+
+        /**
+         *  reversed folded value -> Set of keys, sorted
+         */
+        final TreeMap reversed = new TreeMap();
+
+        /**
+         *  substring of GRAM characters -> Set of the folded values
+         *  containing it
+         */
+        final Map grams = new HashMap();
+
+        Set get(String value) {
+            return (Set) exact.get(value);
+        }
+
+        void put(String value, Set keys) {
+            exact.put(value, keys);
+            sorted.put(value, keys);
+            reversed.put(reverse(value), keys);
+            for (int at = 0; at + GRAM <= value.length(); at++) {
+                String gram = value.substring(at, at + GRAM);
+                Set holders = (Set) grams.get(gram);
+                if (holders == null) {
+                    holders = new HashSet();
+                    grams.put(gram, holders);
+                }
+                holders.add(value);
+            }
+        }
+
+        void remove(String value) {
+            exact.remove(value);
+            sorted.remove(value);
+            reversed.remove(reverse(value));
+            for (int at = 0; at + GRAM <= value.length(); at++) {
+                String gram = value.substring(at, at + GRAM);
+                Set holders = (Set) grams.get(gram);
+                if (holders != null) {
+                    holders.remove(value);
+                    if (holders.isEmpty()) {
+                        grams.remove(gram);
+                    }
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return exact.isEmpty();
+        }
+    }
+
+    /**
+     * Folds a value for case insensitive matching.
+     *
+     * @param  value  the value
+     * @return        the folded value
+     */
+    static String fold(String value) {
+        return value.toUpperCase();
+    }
+
+    /**
+     * Indexes a key, replacing any previous index entries for it.
+     *
+     * @param  key         the record key
+     * @param  indexables  Map of attribute name to value
+     * @param  lifetime    absolute lifetime of the record
+     */
+    void add(String key, Map indexables, long lifetime) {
+        remove(key);
+        entries.put(key, new IndexEntry(key, indexables, lifetime));
+
+        Iterator it = indexables.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) it.next();
+            String attr = (String) anEntry.getKey();
+            String value = fold((String) anEntry.getValue());
+
+            Values values = (Values) attributes.get(attr);
+            if (values == null) {
+                values = new Values();
+                attributes.put(attr, values);
+            }
+            Set keys = values.get(value);
+            if (keys == null) {
+                keys = new TreeSet();
+                values.put(value, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    /**
+     * Returns the index entry of a key.
+     *
+     * @param  key  the record key
+     * @return      the entry or null if the key is not indexed
+     */
+    IndexEntry get(String key) {
+        return (IndexEntry) entries.get(key);
+    }
+
+    /**
+     * Removes all index entries of a key.
+     *
+     * @param  key  the record key
+     * @return      the removed entry or null if the key was not indexed
+     */
+    IndexEntry remove(String key) {
+        IndexEntry entry = (IndexEntry) entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+
+        Iterator it = entry.indexables.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) it.next();
+            String attr = (String) anEntry.getKey();
+            Values values = (Values) attributes.get(attr);
+            if (values == null) {
+                continue;
+            }
+            String value = fold((String) anEntry.getValue());
+            Set keys = values.get(value);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    values.remove(value);
+                    if (values.isEmpty()) {
+                        attributes.remove(attr);
+                    }
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the keys whose attribute matches the value, ignoring case. The
+     * value may use <code>*</code> as a wildcard matching any sequence of
+     * characters.
+     *
+     * <p/>The keys are returned in order, starting after a given key, and
+     * are produced lazily: wildcard matches are merged from the key sets of
+     * the matching values as the iterator advances rather than copied. The
+     * cost of an exact, <code>foo*</code> or <code>*foo</code> lookup thus
+     * depends on the number of keys consumed and not on the number of
+     * matches. Other patterns first match the candidate values described
+     * above, then merge their keys lazily.
+     *
+     * @param  attr   the attribute name
+     * @param  value  the value, or null for every key indexed under attr
+     * @param  after  the key after which to start, or null to start from
+     *                the first
+     * @return        Iterator of the keys, in order. The index must not be
+     *                modified while it is in use.
+     */
+    Iterator lookup(String attr, String value, String after) {
+        Values values = (Values) attributes.get(attr);
+        if (values == null) {
+            return Collections.EMPTY_SET.iterator();
+        }
+
+        String folded = (value == null) ? null : fold(value);
+        if (folded == null || (folded.length() == 1 && folded.charAt(0) == WILDCARD)) {
+            // every key indexed under attr
+            return new Indexed(attr, keysAfter(after));
+        }
+
+        int first = folded.indexOf(WILDCARD);
+        if (first < 0) {
+            SortedSet keys = (SortedSet) values.get(folded);
+            return (keys == null) ? Collections.EMPTY_SET.iterator() : tail(keys, after).iterator();
+        }
+
+        int last = folded.lastIndexOf(WILDCARD);
+        if (first == folded.length() - 1) {
+            // foo*
+            return new Merge(range(values.sorted, folded.substring(0, first)).values().iterator(), after);
+        }
+        if (last == 0) {
+            // *foo
+            return new Merge(range(values.reversed, reverse(folded.substring(1))).values().iterator(), after);
+        }
+
+        // *foo*, foo*bar, ... : narrow on the rarest substring, or else on
+        // the literal prefix, then match
+        Collection candidates = rarest(values, folded);
+        if (candidates == null) {
+            candidates = ((first == 0) ? values.sorted : range(values.sorted, folded.substring(0, first))).keySet();
+        }
+        List matching = new ArrayList();
+        Iterator it = candidates.iterator();
+        while (it.hasNext()) {
+            String candidate = (String) it.next();
+            if (matches(folded, candidate)) {
+                matching.add(values.get(candidate));
+            }
+        }
+        return new Merge(matching.iterator(), after);
+    }
+
+    /**
+     *  Returns the values holding the rarest of the substrings of the
+     *  literal parts of a pattern, or null if no literal part is long
+     *  enough to have one.
+     */
+    private static Collection rarest(Values values, String pattern) {
+        Set result = null;
+        int start = 0;
+        while (start < pattern.length()) {
+            int end = pattern.indexOf(WILDCARD, start);
+            if (end < 0) {
+                end = pattern.length();
+            }
+            for (int at = start; at + GRAM <= end; at++) {
+                Set holders = (Set) values.grams.get(pattern.substring(at, at + GRAM));
+                if (holders == null) {
+                    // no value holds it, none can match.
+                    return Collections.EMPTY_SET;
+                }
+                if (result == null || holders.size() < result.size()) {
+                    result = holders;
+                }
+            }
+            start = end + 1;
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the entries of the map whose key starts with prefix.
+     */
+    private static SortedMap range(TreeMap map, String prefix) {
+        if (prefix.length() == 0) {
+            return map;
+        }
+        char lastChar = prefix.charAt(prefix.length() - 1);
+        if (lastChar == Character.MAX_VALUE) {
+            return map.tailMap(prefix);
+        }
+        String upper = prefix.substring(0, prefix.length() - 1) + (char) (lastChar + 1);
+        return map.subMap(prefix, upper);
+    }
+
+    /**
+     *  The keys of an ordered key iterator which are indexed under an
+     *  attribute.
+     */
+    private final class Indexed implements Iterator {
+        private final String attr;
+        private final Iterator keys;
+        private String next = null;
+
+        Indexed(String attr, Iterator keys) {
+            this.attr = attr;
+            this.keys = keys;
+        }
+
+        public boolean hasNext() {
+            while (next == null && keys.hasNext()) {
+                String key = (String) keys.next();
+                if (get(key).indexables.containsKey(attr)) {
+                    next = key;
+                }
+            }
+            return next != null;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String result = next;
+            next = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     *  A sorted merge of key sets. The sets of one attribute are disjoint
+     *  since a key has a single value per attribute, so the merge keeps the
+     *  next key of each set in a TreeMap and repeatedly takes the smallest.
+     */
+    private static final class Merge implements Iterator {
+
+        /**
+         *  next key of a set -> Iterator over the rest of that set
+         */
+        private final TreeMap heads = new TreeMap();
+
+        /**
+         * @param  sets   Iterator of the SortedSets of keys to merge
+         * @param  after  the key after which to start, or null
+         */
+        Merge(Iterator sets, String after) {
+            while (sets.hasNext()) {
+                advance(tail((SortedSet) sets.next(), after).iterator());
+            }
+        }
+
+        private void advance(Iterator set) {
+            while (set.hasNext()) {
+                Object key = set.next();
+                // a key already at the head of another set is skipped
+                if (!heads.containsKey(key)) {
+                    heads.put(key, set);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        public Object next() {
+            if (heads.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Object key = heads.firstKey();
+            advance((Iterator) heads.remove(key));
+            return key;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Matches a value against a pattern in which <code>*</code> matches any
+     * sequence of characters.
+     */
+    static boolean matches(String pattern, String value) {
+        int p = 0;
+        int v = 0;
+        int star = -1;
+        int mark = 0;
+        while (v < value.length()) {
+            if (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+                star = p++;
+                mark = v;
+            } else if (p < pattern.length() && pattern.charAt(p) == value.charAt(v)) {
+                p++;
+                v++;
+            } else if (star >= 0) {
+                p = star + 1;
+                v = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == WILDCARD) {
+            p++;
+        }
+        return p == pattern.length();
+    }
+
+    private static String reverse(String value) {
+        return new StringBuffer(value).reverse().toString();
+    }
+
+    /**
+     * Returns the index entries.
+     *
+     * @return  Iterator of {@link IndexEntry}
+     */
+    Iterator entries() {
+        return entries.values().iterator();
+    }
+
+    /**
+     * Returns the indexed keys which sort after a key.
+     *
+     * @param  after  the key, or null for all the keys
+     * @return        Iterator of the keys, in order
+     */
+    Iterator keysAfter(String after) {
+        Map tail = (after == null) ? entries : entries.tailMap(after + '\u0000');
+        return tail.keySet().iterator();
+    }
+
+    /**
+     * Returns the elements of a sorted set which sort after a key.
+     *
+     * @param  keys   the set
+     * @param  after  the key, or null for all the set
+     * @return        a view of the set
+     */
+    private static SortedSet tail(SortedSet keys, String after) {
+        if (after == null) {
+            return keys;
+        }
+        // the smallest string greater than after
+        return keys.tailSet(after + '\u0000');
+    }
+
+    /**
+     *  Returns the number of indexed keys.
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     *  Empties the index.
+     */
+    void clear() {
+        attributes.clear();
+        entries.clear();
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import net.jxta.impl.util.BASE64InputStream;
+import net.jxta.impl.util.BASE64OutputStream;
+
+/**
+ *  A Bloom filter of strings, used to summarize the SRDI entries of a peer.
+ *
+ *  <p/>The bit positions are derived by double hashing from a 64 bit
+ *  FNV-1a hash of the characters of the string, so that a filter built by a
+ *  peer can be tested by any other. The encoded form is the deflated bit
+ *  set in BASE64, the bit set of a sparse filter compresses well.
+ *
+ *  <p/>This class is not synchronized.
+ */
+public final class BloomFilter {
+
+    private final static int VERSION = 1;
+
+    /**
+     *  The largest filter accepted from a peer, in bits.
+     */
+    public final static int MAX_BITS = 1 << 24;
+
+    private final int hashes;
+    private final int bits;
+    private final long[] words;
+
+    /**
+     *  Creates a filter sized for a number of elements and a false positive
+     *  rate.
+     *
+     *  @param  expected  the number of elements to be added
+     *  @param  fpp       the false positive probability wanted, between 0 and 1
+     */
+    public BloomFilter(int expected, double fpp) {
+        if (fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("false positive probability must be between 0 and 1");
+        }
+        int n = Math.max(1, expected);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-n * Math.log(fpp) / (ln2 * ln2));
+        bits = (int) Math.max(64, Math.min(MAX_BITS, m));
+        hashes = Math.max(1, Math.min(16, (int) Math.round(((double) bits / n) * ln2)));
+        words = new long[(bits + 63) >>> 6];
+    }
+
+    private BloomFilter(int hashes, int bits, long[] words) {
+        this.hashes = hashes;
+        this.bits = bits;
+        this.words = words;
+    }
+
+    /**
+     *  Adds an element.
+     */
+    public void add(String element) {
+        long hash = hash(element);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     *  Returns whether an element may have been added. False positives are
+     *  possible, false negatives are not.
+     */
+    public boolean mightContain(String element) {
+        long hash = hash(element);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bits;
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  Returns the size of the filter in bits.
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    private static long hash(String element) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < element.length(); i++) {
+            char c = element.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        // spread the low bits, FNV is weak there for short strings
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     *  Returns the encoded form of the filter.
+     */
+    public String encode() {
+        try {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(words.length + 64);
+            DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(deflated));
+            out.writeInt(VERSION);
+            out.writeInt(hashes);
+            out.writeInt(bits);
+            for (int i = 0; i < words.length; i++) {
+                out.writeLong(words[i]);
+            }
+            out.close();
+
+            // all at once, a BASE64OutputStream pads on every flush
+            StringWriter text = new StringWriter();
+            BASE64OutputStream base64 = new BASE64OutputStream(text);
+            deflated.writeTo(base64);
+            base64.close();
+            return text.toString();
+        } catch (IOException never) {
+            IllegalStateException failure = new IllegalStateException("Could not encode filter");
+            failure.initCause(never);
+            throw failure;
+        }
+    }
+
+    /**
+     *  Decodes a filter.
+     *
+     *  @param  encoded  the encoded form, as returned by {@link #encode()}
+     *  @return          the filter
+     *  @throws  IOException  if the encoded form is invalid
+     */
+    public static BloomFilter decode(String encoded) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new BASE64InputStream(new StringReader(encoded))));
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unrecognized filter version");
+            }
+            int hashes = in.readInt();
+            int bits = in.readInt();
+            if (hashes < 1 || hashes > 16 || bits < 64 || bits > MAX_BITS) {
+                throw new IOException("Invalid filter parameters");
+            }
+            long[] words = new long[(bits + 63) >>> 6];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = in.readLong();
+            }
+            return new BloomFilter(hashes, bits, words);
+        } finally {
+            in.close();
+        }
+    }
+}
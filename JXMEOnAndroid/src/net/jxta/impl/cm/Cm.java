@@ -56,24 +56,29 @@
  */
 package net.jxta.impl.cm;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.math.BigInteger;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
-import net.jxta.id.ID;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import net.jxta.discovery.DiscoveryService;
 import net.jxta.document.Advertisement;
+import net.jxta.document.AdvertisementFactory;
+import net.jxta.document.MimeMediaType;
 import net.jxta.document.StructuredDocument;
 import net.jxta.document.StructuredTextDocument;
-import net.jxta.impl.util.JxtaHash;
+import net.jxta.impl.protocol.SerializedAdvertisement;
+import net.jxta.impl.util.CacheEntry;
+import net.jxta.impl.util.CacheEntryListener;
 import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.TimerThreadNamer;
 import net.jxta.protocol.PeerAdvertisement;
 import net.jxta.protocol.PeerGroupAdvertisement;
 import net.jxta.protocol.SrdiMessage;
@@ -86,6 +91,21 @@ import org.apache.log4j.Logger;
  * to search and exchange jxta documents.
  *
  * Only Core Services are intended to use this mechanism.
+ *
+ * <p/>By default the cache is held in memory only. Once {@link #openStore(File)}
+ * has been called every directory is also written to a {@link SegmentStore}
+ * so that its content survives a restart of the peer.
+ *
+ * <p/>Each directory is bounded both in number of records and in bytes of
+ * serialized advertisements, see {@link #setLimits(String, int, long)}.
+ *
+ * <p/>Records are purged once their lifetime has passed by a background
+ * sweep which does a bounded amount of work each time it runs.
+ *
+ * <p/>Directories are locked independently. Searches and listings of a
+ * directory share its read lock, saves and removals take its write lock,
+ * so operations on different directories never wait on each other.
+ * Lookups of a single record by name take no lock at all.
  */
 public final class Cm {
 
@@ -97,34 +117,128 @@ public final class Cm {
      *  adv types
      */
     private static final String[] DIRNAME = {"Peers", "Groups", "Adv", "Raw"};
-    private boolean stop = false;
-    private boolean trackDeltas = false;
-    private Map deltaMap = new HashMap(3);
-    private Map advMaps = new HashMap(4);
-    private Map indexMap = new HashMap(4);
-    private Map deltas  = new HashMap(4);
+    private volatile boolean stop = false;
+    private volatile boolean trackDeltas = false;
+
+    /**
+     *  The directories by name. Built once by the constructor and only read
+     *  afterwards.
+     */
+    private final Map directories = new HashMap(DIRNAME.length);
+    private boolean storeOpen = false;
     private transient int cacheSize = 50;
 
+    /**
+     *  The default maximum number of deltas kept per directory.
+     */
+    private final static int DELTA_LIMIT = 4096;
+
+    /**
+     *  The interval at which expired records are swept, also the granularity
+     *  of the expiry wheel.
+     */
+    private final static long SWEEP_INTERVAL = 10 * TimeUtils.ASECOND;
+
+    /**
+     *  The maximum number of records purged by a single sweep.
+     */
+    private final static int SWEEP_BUDGET = 128;
+
+    /**
+     *  The number of slots of the expiry wheel, one hour worth of sweeps.
+     */
+    private final static int WHEEL_SLOTS = (int) (TimeUtils.ANHOUR / SWEEP_INTERVAL);
+
+    /**
+     *  Shared by all the directories, guarded by its own monitor.
+     */
+    private final ExpiryWheel expiries = new ExpiryWheel(SWEEP_INTERVAL, WHEEL_SLOTS, System.currentTimeMillis());
+    private Timer sweepTimer = null;
+
     /**
      * Constructor for cm
      *
-     * @param  trackDeltas     when true deltas are tracked 
+     * @param  trackDeltas     when true deltas are tracked
      */
     public Cm(boolean trackDeltas) {
 
         this.trackDeltas = trackDeltas;
         createCaches();
+
+        sweepTimer = new Timer(true);
+        sweepTimer.schedule(new TimerThreadNamer("Cm Expiry Timer"), 0);
+        sweepTimer.schedule(new TimerTask() {
+                                public void run() {
+                                    expire(System.currentTimeMillis());
+                                }
+                            }, SWEEP_INTERVAL, SWEEP_INTERVAL);
     }
 
     private void createCaches() {
         for (int i=0; i<DIRNAME.length; i++) {
-            if (advMaps.get(DIRNAME[i]) == null) {
-                LRUCache lru = new LRUCache(cacheSize);
-                advMaps.put(DIRNAME[i], lru);
+            if (directories.get(DIRNAME[i]) == null) {
+                directories.put(DIRNAME[i], new Directory(DIRNAME[i], cacheSize));
             }
         }
     }
 
+    private Directory getDirectory(String dn) {
+        return (Directory) directories.get(dn);
+    }
+
+    /**
+     * Switches the cache to durable mode. Each directory is backed by an
+     * append-only log in <code>home</code>, and the records found there are
+     * loaded back into the cache. Advertisements read back are only parsed
+     * when first accessed.
+     *
+     * @param  home          directory in which the logs are kept
+     * @throws  IOException  if the logs cannot be opened
+     */
+    public synchronized void openStore(File home) throws IOException {
+        if (storeOpen || stop) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        // all the logs are read before any directory is locked
+        SegmentStore[] opened = new SegmentStore[DIRNAME.length];
+        Map[] recovered = new Map[DIRNAME.length];
+        try {
+            for (int i = 0; i < DIRNAME.length; i++) {
+                opened[i] = new SegmentStore(home, DIRNAME[i]);
+                recovered[i] = opened[i].recover();
+            }
+        } catch (IOException failed) {
+            for (int i = 0; i < opened.length && opened[i] != null; i++) {
+                opened[i].close();
+            }
+            throw failed;
+        }
+        for (int i = 0; i < DIRNAME.length; i++) {
+            Directory dir = getDirectory(DIRNAME[i]);
+            SegmentStore store = opened[i];
+            dir.lock.writeLock().lock();
+            try {
+                Iterator it = recovered[i].values().iterator();
+                while (it.hasNext()) {
+                    SegmentStore.Entry entry = (SegmentStore.Entry) it.next();
+                    dir.cache.put(entry.key, new Record(entry.key, entry.bytes, entry.index, entry.lifetime, entry.expiration), entry.bytes.length);
+                    index(dir, entry.index, entry.key, entry.lifetime);
+                }
+                if (store.needsCompaction()) {
+                    store.compact(liveEntries(dir));
+                }
+                dir.store = store;
+            } finally {
+                dir.lock.writeLock().unlock();
+            }
+        }
+        storeOpen = true;
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Opened cache store " + home + " in " + (System.currentTimeMillis() - t0) + "ms");
+        }
+    }
+
     private static String getDirName(Advertisement adv) {
         if (adv instanceof PeerAdvertisement) {
             return DIRNAME[DiscoveryService.PEER];
@@ -139,19 +253,11 @@ public final class Cm {
      *
      * @param  doc  to hash to generate a unique name
      * @return      String a random file name
+     * @see         ContentKey
      */
     public static String createTmpName(StructuredDocument doc) {
         try {
-            StringWriter out = new StringWriter();
-            ((StructuredTextDocument) doc).sendToWriter(out);
-            JxtaHash digester = new JxtaHash(out.toString());
-            BigInteger hash = digester.getDigestInteger();
-            if (hash.compareTo(BigInteger.ZERO) < 0) {
-                hash = hash.negate();
-            }
-            String strHash = "cm" + hash.toString(16);
-            out.close();
-            return strHash;
+            return ContentKey.of((StructuredTextDocument) doc);
         } catch (IOException ex) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("Exception creating tmp name: ", ex);
@@ -165,36 +271,77 @@ public final class Cm {
      *
      * @param  dn  contains the name of the folder
      *
-     * @return Vector Strings containing the name of the
-     * files
+     * @return Vector of Advertisements, or of {@link SerializedAdvertisement}s
+     * if <code>bytes</code> is true
      */
     public Vector getRecords(String dn,
                              int threshold,
                              Vector expirations,
                              boolean bytes) {
+        return getRecords(dn, threshold, expirations, bytes, null, null);
+    }
+
+    /**
+     * Gets the files of the given folder in the order of their names,
+     * starting after a given name, so that a caller can page through them.
+     *
+     * @param  dn     contains the name of the folder
+     * @param  after  the name after which to start, or null to start from
+     *                the first
+     * @param  keys   if not null, receives the names of the files returned
+     *
+     * @return Vector of Advertisements, or of {@link SerializedAdvertisement}s
+     * if <code>bytes</code> is true
+     */
+    public Vector getRecords(String dn,
+                             int threshold,
+                             Vector expirations,
+                             boolean bytes,
+                             String after,
+                             Vector keys) {
 
-        LRUCache cache = (LRUCache) advMaps.get(dn);
+        Directory dir = getDirectory(dn);
         Vector result = new Vector();
-        if (cache!= null) {
-            Iterator it = cache.iterator(threshold);
-            while (it.hasNext()) {
-                Record record = (Record) it.next();
-                if (!bytes) {
-                    result.add(record.advertisement);
-                } else {
-                    result.add(record.advertisement.toString());
-                }
-                if (expirations != null) {
-                    expirations.add(new Long(record.expiration));
-                }
-                if (result.size() >= threshold) {
-                    break;
-                }
-            }
+        if (dir == null) {
+            return result;
+        }
+        dir.lock.readLock().lock();
+        try {
+            collect(dir, dir.index.keysAfter(after), threshold, expirations, bytes, keys, result);
+        } finally {
+            dir.lock.readLock().unlock();
         }
         return result;
     }
 
+    /**
+     * Adds the records of the given keys to a result, up to threshold.
+     * Called with the directory read lock held.
+     */
+    private static void collect(Directory dir, Iterator it, int threshold, Vector expirations, boolean bytes, Vector keys, Vector result) {
+        while (it.hasNext() && result.size() < threshold) {
+            String key = (String) it.next();
+            Record record = (Record) dir.cache.get(key);
+            if (record == null) {
+                continue;
+            }
+            Object value = bytes ? (Object) record.getSerialized() : (Object) record.getAdvertisement();
+            if (value == null) {
+                continue;
+            }
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Found a matching record :"+key);
+            }
+            result.add(value);
+            if (expirations != null) {
+                expirations.add(new Long(record.expiration));
+            }
+            if (keys != null) {
+                keys.add(key);
+            }
+        }
+    }
+
     /**
      *  Returns the relative time in milliseconds at which the file
      *  will expire.
@@ -206,10 +353,9 @@ public final class Cm {
      * document will expire. -1 is returned if the file is not
      * recognized or already expired.
      */
-    public synchronized long getLifetime(String dn, String fn) {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
+    public long getLifetime(String dn, String fn) {
+        Record record = getRecord(dn, fn);
+        if (record != null) {
             return TimeUtils.toRelativeTimeMillis(record.lifetime);
         }
         return -1;
@@ -226,15 +372,26 @@ public final class Cm {
      * @return     number of milliseconds until the file expires or -1 if the
      * file is not recognized or already expired.
      */
-    public synchronized long getExpirationtime(String dn, String fn) {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
+    public long getExpirationtime(String dn, String fn) {
+        Record record = getRecord(dn, fn);
+        if (record != null) {
             return record.expiration;
         }
         return -1;
     }
 
+    /**
+     * Looks a record up without locking its directory, the cache itself
+     * supports concurrent lookups.
+     */
+    private Record getRecord(String dn, String fn) {
+        Directory dir = getDirectory(dn);
+        if (dir == null || fn == null) {
+            return null;
+        }
+        return (Record) dir.cache.get(fn);
+    }
+
     /**
      * Remove a file
      *
@@ -242,19 +399,190 @@ public final class Cm {
      * @param  fn            file name
      * @throws  IOException  if an I/O error occurs
      */
-    public synchronized void remove(String dn, String fn)
+    public void remove(String dn, String fn)
     throws IOException {
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            Record record = (Record) cache.get(fn);
-            if (fn != null && record != null) {
-                cache.remove(fn);
-                addDelta(dn, record.advertisement.getIndexMap(), 0);
+        Directory dir = getDirectory(dn);
+        if (fn == null || dir == null) {
+            return;
+        }
+        dir.lock.writeLock().lock();
+        try {
+            AttributeIndex.IndexEntry entry = dir.index.get(fn);
+            if (entry != null) {
+                purge(dir, fn, entry.indexables);
+            }
+        } finally {
+            dir.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Purges the records whose lifetime has passed. At most
+     * <code>SWEEP_BUDGET</code> records are purged per call, the remainder
+     * is left to the next sweep.
+     *
+     * @param  now  the current absolute time
+     */
+    void expire(long now) {
+        if (stop) {
+            return;
+        }
+        List due;
+        synchronized (expiries) {
+            due = expiries.expire(now, SWEEP_BUDGET);
+        }
+        for (int i = 0; i < due.size(); i++) {
+            ExpiryWheel.Timeout timeout = (ExpiryWheel.Timeout) due.get(i);
+            ExpiryKey key = (ExpiryKey) timeout.item;
+            Directory dir = key.dir;
+
+            dir.lock.writeLock().lock();
+            try {
+                AttributeIndex.IndexEntry entry = dir.index.get(key.fn);
+
+                // skip records removed or republished since they were scheduled
+                if (entry == null || entry.lifetime > now) {
+                    continue;
+                }
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Expiring :" + dir.name + "/" + key.fn);
+                }
+                purge(dir, key.fn, entry.indexables);
+            } finally {
+                dir.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the records of a directory in the form written to its store.
+     * Called with the directory lock held.
+     */
+    private List liveEntries(Directory dir) {
+        List live = new ArrayList(dir.cache.size());
+        Iterator it = dir.cache.iterator(dir.cache.size());
+        while (it.hasNext()) {
+            Record each = (Record) it.next();
+            if (each.getSerialized() != null) {
+                live.add(new SegmentStore.Entry(each.key, each.lifetime, each.expiration, each.index, each.getBytes()));
             }
         }
+        return live;
+    }
+
+    /**
+     * Sets the bounds of a directory. Records are evicted right away if the
+     * directory is over either bound.
+     *
+     * @param  dn          directory name
+     * @param  maxEntries  the maximum number of records
+     * @param  maxBytes    the maximum total size of the serialized
+     *                     advertisements
+     */
+    public void setLimits(String dn, int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("cache limits must be greater than zero");
+        }
+        Directory dir = getDirectory(dn);
+        if (dir == null) {
+            return;
+        }
+        // evictions unindex, hence the write lock
+        dir.lock.writeLock().lock();
+        try {
+            dir.cache.setLimits(maxEntries, maxBytes);
+        } finally {
+            dir.lock.writeLock().unlock();
+        }
+    }
 
-        //FIXME need to also remove memory indexes, however they will eventually
-        //be expungend since they're stored in an LRU cache
+    /**
+     * Returns the number of records cached in a directory.
+     *
+     * @param  dn  directory name
+     * @return     the number of records
+     */
+    public int getEntryCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.cache.size();
+    }
+
+    /**
+     * Returns the total size of the serialized advertisements cached in a
+     * directory.
+     *
+     * @param  dn  directory name
+     * @return     the number of bytes
+     */
+    public long getByteCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.cache.getWeight();
+    }
+
+    /**
+     * Returns the number of lookups of a directory which found a record.
+     *
+     * @param  dn  directory name
+     * @return     the number of hits
+     */
+    public long getHitCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.cache.getHits();
+    }
+
+    /**
+     * Returns the number of lookups of a directory which found no record.
+     *
+     * @param  dn  directory name
+     * @return     the number of misses
+     */
+    public long getMissCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.cache.getMisses();
+    }
+
+    /**
+     * Returns the number of records evicted from a directory to keep it
+     * within its bounds.
+     *
+     * @param  dn  directory name
+     * @return     the number of evictions
+     */
+    public long getEvictionCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.cache.getEvictions();
+    }
+
+    /**
+     * Removes a record from the cache, the index and the store, and records
+     * the removal in the deltas. Called with the directory write lock held.
+     */
+    private void purge(Directory dir, String fn, Map indexables) {
+        dir.cache.remove(fn);
+        unindex(dir, fn, indexables);
+    }
+
+    /**
+     * Removes a record which is no longer cached from the index and the
+     * store, and records the removal in the deltas. Called with the
+     * directory write lock held.
+     */
+    private void unindex(Directory dir, String fn, Map indexables) {
+        dir.index.remove(fn);
+        synchronized (expiries) {
+            expiries.cancel(new ExpiryKey(dir, fn));
+        }
+        addDelta(dir, indexables, 0);
+
+        if (dir.store != null) {
+            try {
+                dir.store.appendRemove(fn);
+            } catch (IOException failed) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Failed to persist removal of " + dir.name + "/" + fn, failed);
+                }
+            }
+        }
     }
 
     /**
@@ -278,9 +606,32 @@ public final class Cm {
      * @param  adv              Advertisement to save
      * @param  expiration    document expiration time in ms
      * @param  lifetime         document lifetime in ms
+     * @exception  IOException  if an I/O error occurs or the advertisement
+     *                          does not fit in the cache
+     */
+    public void save(String dn, String fn, Advertisement adv, long lifetime, long expiration)
+    throws IOException {
+        if (!save(dn, fn, adv, lifetime, expiration, true)) {
+            throw new IOException("advertisement " + fn + " is larger than the cache of " + dn);
+        }
+    }
+
+    /**
+     * Stores a StructuredDocument in specified dir, and file name, and
+     * associated doc timeouts. Unless admitted, a new document is only kept
+     * if the cache finds it more popular than the one it would replace.
+     *
+     * @param  dn               directory name
+     * @param  fn               file name
+     * @param  adv              Advertisement to save
+     * @param  expiration    document expiration time in ms
+     * @param  lifetime         document lifetime in ms
+     * @param  admit            true to keep the document whatever its
+     *                          popularity, as for a local publication
+     * @return                  false if the document was not kept
      * @exception  IOException  if an I/O error occurs
      */
-    public synchronized void save(String dn, String fn, Advertisement adv, long lifetime, long expiration)
+    public boolean save(String dn, String fn, Advertisement adv, long lifetime, long expiration, boolean admit)
     throws IOException {
         if (expiration < 0 || lifetime < 0) {
             throw new IllegalArgumentException("cannot store an advertisement with negative expiry");
@@ -288,54 +639,72 @@ public final class Cm {
         if (adv == null) {
             throw new IllegalArgumentException("advertisement can be null");
         }
+        Directory dir = getDirectory(dn);
+        if (dir == null) {
+            throw new IOException("unknown directory type");
+        }
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Saving :"+fn);
         }
 
         long absoluteLifetime = TimeUtils.toAbsoluteTimeMillis(lifetime);
-        index(adv.getIndexMap(), dn, fn, lifetime);
-        Record record = new Record(adv, absoluteLifetime, expiration);
-        LRUCache cache = (LRUCache) advMaps.get(dn);
-        if (cache!= null) {
-            cache.put(fn, record);
-            index(adv.getIndexMap(), dn, fn, lifetime);
-        } else {
-            throw new IOException("unknown directory type");
+        Map indexables = adv.getIndexMap();
+        Record record = new Record(fn, adv, indexables, absoluteLifetime, expiration);
+        // serialized before taking the lock
+        byte[] utf = record.getBytes();
+
+        dir.lock.writeLock().lock();
+        try {
+            // indexed first so that the eviction of this very record, if it
+            // is on its own over the byte limit, also unindexes it.
+            index(dir, indexables, fn, absoluteLifetime);
+            dir.cache.put(fn, record, utf.length, admit);
+            if (!dir.cache.containsKey(fn)) {
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Not admitted :" + fn);
+                }
+                return false;
+            }
+            addDelta(dir, indexables, lifetime);
+
+            if (dir.store != null) {
+                persist(dir, fn, record, utf);
+            }
+            return true;
+        } finally {
+            dir.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record to the directory log, compacting the log from the
+     * cache content when it has accumulated too many dead records. A failure
+     * to write is logged and leaves the record cached in memory only.
+     * Called with the directory write lock held.
+     */
+    private void persist(Directory dir, String fn, Record record, byte[] utf) {
+        try {
+            dir.store.append(new SegmentStore.Entry(fn, record.lifetime, record.expiration, record.index, utf));
+            if (dir.store.needsCompaction()) {
+                dir.store.compact(liveEntries(dir));
+            }
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Failed to persist " + dir.name + "/" + fn, failed);
+            }
         }
     }
 
 
 
-    private void index(Map indexables, String dn, String fn, long lifetime) {
+    private void index(Directory dir, Map indexables, String fn, long lifetime) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Indexing :"+fn);
         }
-        Iterator it = indexables.keySet().iterator();
-        while (it.hasNext()) {
-            String key = (String) it.next();
-            IndexRecord indexRecord = new IndexRecord(fn, (String) indexables.get(key), lifetime);
-            if (LOG.isEnabledFor(Level.DEBUG)) {
-                LOG.debug("Adding index for :"+key +" + "+indexables.get(key));
-            }
-            Map keyTable = (Map) indexMap.get(dn);
-            if (keyTable != null) {
-                Set set = (Set) keyTable.get(key);
-                if (set != null) {
-                    set.add(indexRecord);
-                } else {
-                    set = new HashSet();
-                    set.add(indexRecord);
-                    keyTable.put(key, set);
-                }
-            } else {
-                keyTable = new HashMap();
-                Set set = new HashSet();
-                set.add(indexRecord);
-                keyTable.put(key, set);
-                indexMap.put(dn, keyTable);
-            }
+        dir.index.add(fn, indexables, lifetime);
+        synchronized (expiries) {
+            expiries.schedule(new ExpiryKey(dir, fn), lifetime);
         }
-        addDelta(dn, indexables, lifetime);
     }
 
     /**
@@ -361,69 +730,85 @@ public final class Cm {
      * Search and recovers documents that contains at least
      * a macthing pair of tag/value.
      *
-     * @param  dn         contains the name of the folder on which to 
+     * @param  dn         contains the name of the folder on which to
      *                    perform the search
      * @param  value      contains the value to search on.
      * @param  attribute  attribute to search on
      * @param  threshold  threshold
      * @return            Enumeration containing of all the documents names
      */
-    public synchronized Vector search(String dn,
-                                      String attribute,
-                                      String value,
-                                      int threshold,
-                                      Vector expirations) {
+    public Vector search(String dn,
+                         String attribute,
+                         String value,
+                         int threshold,
+                         Vector expirations) {
+        return search(dn, attribute, value, threshold, expirations, false);
+    }
+
+    /**
+     * Search and recovers documents that contains at least
+     * a macthing pair of tag/value.
+     *
+     * @param  dn         contains the name of the folder on which to
+     *                    perform the search
+     * @param  value      contains the value to search on.
+     * @param  attribute  attribute to search on
+     * @param  threshold  threshold
+     * @param  bytes      if true the documents are returned as
+     *                    {@link SerializedAdvertisement}s, otherwise as
+     *                    Advertisements
+     * @return            Enumeration containing of all the documents names
+     */
+    public Vector search(String dn,
+                         String attribute,
+                         String value,
+                         int threshold,
+                         Vector expirations,
+                         boolean bytes) {
+        return search(dn, attribute, value, threshold, expirations, bytes, null, null);
+    }
+
+    /**
+     * Search and recovers documents that contains at least
+     * a macthing pair of tag/value, in the order of their names, starting
+     * after a given name, so that a caller can page through them.
+     *
+     * @param  dn         contains the name of the folder on which to
+     *                    perform the search
+     * @param  value      contains the value to search on.
+     * @param  attribute  attribute to search on
+     * @param  threshold  threshold
+     * @param  bytes      if true the documents are returned as
+     *                    {@link SerializedAdvertisement}s, otherwise as
+     *                    Advertisements
+     * @param  after      the name after which to start, or null to start
+     *                    from the first
+     * @param  keys       if not null, receives the names of the documents
+     *                    returned
+     * @return            Enumeration containing of all the documents names
+     */
+    public Vector search(String dn,
+                         String attribute,
+                         String value,
+                         int threshold,
+                         Vector expirations,
+                         boolean bytes,
+                         String after,
+                         Vector keys) {
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Searching for :"+dn+" + "+attribute+" + "+value +" + "+threshold);
         }
         Vector res = new Vector();
-        LRUCache advmap = (LRUCache) advMaps.get(dn);
-        if (advmap == null || advmap.size() == 0) {
+        Directory dir = getDirectory(dn);
+        if (dir == null || dir.cache.size() == 0) {
             return res;
         }
-        Map keyTable = (Map) indexMap.get(dn);
-        if (keyTable != null) {
-            Set set = (Set) keyTable.get(attribute);
-            if (set != null) {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Found a matching table for :"+attribute);
-                }
-
-                Iterator it = set.iterator();
-                while (it.hasNext()) {
-                    IndexRecord idx = (IndexRecord) it.next();
-                    if (value != null) {
-                if (LOG.isEnabledFor(Level.DEBUG)) {
-                    LOG.debug("Comparing "+idx.value +" to "+value);
-                }
-                        if (idx.value.toUpperCase().equals(value.toUpperCase())) {
-                            if (LOG.isEnabledFor(Level.DEBUG)) {
-                                LOG.debug("Found a matching record :"+idx.key);
-                            }
-                            Record record = (Record) advmap.get(idx.key);
-                            if (record != null) {
-                                res.add(record.advertisement);
-                                if (expirations != null) {
-                                    expirations.add(new Long(record.expiration));
-                                }
-                            }
-                        }
-
-                    } else {
-                        Record record = (Record) advmap.get(idx.key);
-                        if (record != null) {
-                            res.add(record.advertisement);
-                            if (expirations != null) {
-                                expirations.add(new Long(record.expiration));
-                            }
-
-                        }
-                    }
-                    if (res.size()>= threshold) {
-                        break;
-                    }
-                }
-            }
+        dir.lock.readLock().lock();
+        try {
+            Iterator it = dir.index.lookup(attribute, value, after);
+            collect(dir, it, threshold, expirations, bytes, keys, res);
+        } finally {
+            dir.lock.readLock().unlock();
         }
         return res;
     }
@@ -434,27 +819,39 @@ public final class Cm {
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getEntries(String dn, boolean clearDeltas) {
+    public Vector getEntries(String dn, boolean clearDeltas) {
         Vector res = new Vector();
-        Map keyTable = (Map) indexMap.get(dn);
-        if (keyTable == null) {
+        Directory dir = getDirectory(dn);
+        if (dir == null) {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Returning empty vector of entries");
             }
             return res;
         }
-        Iterator it = keyTable.values().iterator();
-        while (it.hasNext()) {
-            Set set = (Set) it.next();
-            Iterator sets = set.iterator();
-            while (sets.hasNext()) {
-                IndexRecord record = (IndexRecord) sets.next();
-                SrdiMessage.Entry entry = new SrdiMessage.Entry(dn, record.key, (record.lifetime- System.currentTimeMillis()));
-                res.add(entry);
+        dir.lock.readLock().lock();
+        try {
+            long now = System.currentTimeMillis();
+            Iterator it = dir.index.entries();
+            while (it.hasNext()) {
+                AttributeIndex.IndexEntry record = (AttributeIndex.IndexEntry) it.next();
+                if (record.lifetime <= now) {
+                    // left for the expiry sweep
+                    continue;
+                }
+                Iterator attrs = record.indexables.entrySet().iterator();
+                while (attrs.hasNext()) {
+                    Map.Entry anEntry = (Map.Entry) attrs.next();
+                    SrdiMessage.Entry entry = new SrdiMessage.Entry((String) anEntry.getKey(), (String) anEntry.getValue(), record.lifetime - now);
+                    res.add(entry);
+                }
             }
-        }
-        if (clearDeltas) {
-            clearDeltas(dn);
+            // still under the read lock so that no delta is dropped which
+            // is not in the returned entries
+            if (clearDeltas) {
+                clearDeltas(dir);
+            }
+        } finally {
+            dir.lock.readLock().unlock();
         }
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Returning vector of size :"+res.size());
@@ -463,60 +860,92 @@ public final class Cm {
     }
 
     /**
-     * returns all entries that are added since this method was last called
+     * returns all entries that are added since this method was last called.
+     * If some were discarded to keep the deltas within their limit, all the
+     * entries are returned instead.
      *
      * @param  dn  the relative dir name
      * @return     SrdiMessage.Entries
      */
-    public synchronized Vector getDeltas(String dn) {
-        Vector result = new Vector();
-        List deltas = (List) deltaMap.get(dn);
-        if (deltas != null) {
-            result.addAll(deltas);
-            deltas.clear();
+    public Vector getDeltas(String dn) {
+        Directory dir = getDirectory(dn);
+        if (dir == null) {
+            return new Vector();
         }
-        return result;
+        if (dir.deltas.takeOverflow()) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Deltas of " + dn + " overflowed, returning all entries");
+            }
+            return getEntries(dn, true);
+        }
+        return new Vector(dir.deltas.drain());
     }
 
-    private synchronized void clearDeltas(String dn) {
-        List deltas = (List) deltaMap.get(dn);
-        if (deltas == null) {
-            return;
+    /**
+     * Returns the number of index changes waiting in the deltas of a
+     * directory.
+     *
+     * @param  dn  directory name
+     * @return     the number of deltas
+     */
+    public int getDeltaCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.deltas.size();
+    }
+
+    /**
+     * Returns the number of index changes merged into a delta already
+     * waiting for the same attribute and value.
+     *
+     * @param  dn  directory name
+     * @return     the number of coalesced deltas
+     */
+    public long getCoalescedDeltaCount(String dn) {
+        Directory dir = getDirectory(dn);
+        return (dir == null) ? 0 : dir.deltas.getCoalesced();
+    }
+
+    /**
+     * Sets the maximum number of deltas kept for a directory.
+     *
+     * @param  dn     directory name
+     * @param  limit  the maximum number of deltas
+     */
+    public void setDeltaLimit(String dn, int limit) {
+        Directory dir = getDirectory(dn);
+        if (dir != null) {
+            dir.deltas.setLimit(limit);
         }
-        deltas.clear();
     }
 
-    private synchronized void addDelta(String dn, Map indexables, long exp) {
+    private void clearDeltas(Directory dir) {
+        dir.deltas.clear();
+    }
+
+    private void addDelta(Directory dir, Map indexables, long exp) {
 
         if (trackDeltas) {
             Iterator eachIndex = indexables.entrySet().iterator();
 
-            if (eachIndex.hasNext()) {
-                List deltas = (List) deltaMap.get(dn);
-
-                if (deltas == null) {
-                    deltas = new ArrayList();
-                    deltaMap.put(dn, deltas);
-                }
-                while (eachIndex.hasNext()) {
-                    Map.Entry anEntry = (Map.Entry) eachIndex.next();
-                    String attr = (String) anEntry.getKey();
-                    String value = (String) anEntry.getValue();
-                    SrdiMessage.Entry entry = new SrdiMessage.Entry(attr, value, exp);
-                    deltas.add(entry);
-                    if (LOG.isEnabledFor(Level.DEBUG)) {
-                        LOG.debug("Added entry  :" + entry + " to deltas");
-                    }
+            while (eachIndex.hasNext()) {
+                Map.Entry anEntry = (Map.Entry) eachIndex.next();
+                String attr = (String) anEntry.getKey();
+                String value = (String) anEntry.getValue();
+                dir.deltas.add(attr, value, exp);
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Added entry  :" + attr + "=" + value + " to deltas");
                 }
             }
         }
     }
 
-    public synchronized void setTrackDeltas(boolean trackDeltas) {
+    public void setTrackDeltas(boolean trackDeltas) {
 
         this.trackDeltas = trackDeltas;
         if (!trackDeltas) {
-            deltaMap.clear();
+            for (int i = 0; i < DIRNAME.length; i++) {
+                clearDeltas(getDirectory(DIRNAME[i]));
+            }
         }
     }
 
@@ -525,53 +954,181 @@ public final class Cm {
      */
     public synchronized void stop() {
         stop = true;
-        deltas.clear();
-        deltaMap.clear();
-        indexMap.clear();
-        advMaps.clear();
+        if (sweepTimer != null) {
+            sweepTimer.cancel();
+            sweepTimer = null;
+        }
+        synchronized (expiries) {
+            expiries.clear();
+        }
+        for (int i = 0; i < DIRNAME.length; i++) {
+            Directory dir = getDirectory(DIRNAME[i]);
+            dir.lock.writeLock().lock();
+            try {
+                clearDeltas(dir);
+                dir.index.clear();
+                dir.cache.clear();
+                if (dir.store != null) {
+                    dir.store.close();
+                    dir.store = null;
+                }
+            } finally {
+                dir.lock.writeLock().unlock();
+            }
+        }
+        storeOpen = false;
     }
-    public class Record {
-        public transient Advertisement advertisement;
-        public transient long lifetime;
-        public transient long expiration;
 
-        public Record(Advertisement advertisement, long lifetime, long expiration) {
-            this.advertisement = advertisement;
-            this.lifetime = lifetime;
-            this.expiration = expiration;
+    /**
+     *  A directory of the cache: its records, their index, their pending
+     *  deltas and, when durable, its log. The cache supports concurrent
+     *  access on its own; the index and the store are guarded by
+     *  <code>lock</code>, the deltas are synchronized.
+     */
+    private final class Directory {
+        final String name;
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final TinyLfuCache cache;
+        final AttributeIndex index = new AttributeIndex();
+        final DeltaJournal deltas = new DeltaJournal(DELTA_LIMIT);
+        SegmentStore store = null;
+
+        Directory(String name, int size) {
+            this.name = name;
+            this.cache = new TinyLfuCache(size, Long.MAX_VALUE, new Evictor(this));
         }
+    }
+
+    /**
+     *  Unindexes the records a directory cache evicts to make room. Evictions
+     *  only happen on writes, so this always runs with the directory write
+     *  lock held.
+     */
+    private final class Evictor implements CacheEntryListener {
+        private final Directory dir;
+
+        Evictor(Directory dir) {
+            this.dir = dir;
+        }
+
         /**
          * {@inheritDoc}
          */
-        public int hashCode() {
-            if (advertisement.getID() == null || advertisement.getID().equals(ID.nullID)) {
-                return advertisement.getID().hashCode();
-            } else {
-                return advertisement.hashCode();
+        public void purged(CacheEntry entry) {
+            Record record = (Record) entry.getValue();
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Evicting :" + dir.name + "/" + record.key);
             }
+            unindex(dir, record.key, record.index);
         }
-        public String toString() {
-            return advertisement.toString()+"  "+lifetime+" "+expiration;
+    }
+
+    /**
+     *  The item scheduled in the expiry wheel for a record.
+     */
+    private static final class ExpiryKey {
+        final Directory dir;
+        final String fn;
+
+        ExpiryKey(Directory dir, String fn) {
+            this.dir = dir;
+            this.fn = fn;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean equals(Object target) {
+            if (!(target instanceof ExpiryKey)) {
+                return false;
+            }
+            ExpiryKey likeMe = (ExpiryKey) target;
+            return dir == likeMe.dir && fn.equals(likeMe.fn);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int hashCode() {
+            return dir.hashCode() * 31 + fn.hashCode();
         }
     }
-    public class IndexRecord implements Comparable {
+
+    public class Record {
+        private transient Advertisement advertisement;
+        private transient boolean unparsable = false;
+        private final transient SerializedAdvertisement serialized;
         public transient String key;
-        public transient String value;
+        public transient Map index;
         public transient long lifetime;
-        public IndexRecord(String key, String value, long lifetime) {
+        public transient long expiration;
+
+        /**
+         * Constructor for a record being saved, the advertisement is
+         * serialized once here and the result reused by every response
+         * which includes it.
+         */
+        public Record(String key, Advertisement advertisement, Map index, long lifetime, long expiration) {
             this.key = key;
-            this.value = value;
+            this.advertisement = advertisement;
+            this.serialized = new SerializedAdvertisement(advertisement.toString());
+            this.index = index;
             this.lifetime = lifetime;
+            this.expiration = expiration;
         }
-        public boolean equals(Object obj) {
-            return key.equals(obj);
+
+        /**
+         * Constructor for a record read back from a store, the advertisement
+         * is parsed on first use.
+         */
+        Record(String key, byte[] bytes, Map index, long lifetime, long expiration) {
+            this.key = key;
+            this.serialized = new SerializedAdvertisement(bytes);
+            this.index = index;
+            this.lifetime = lifetime;
+            this.expiration = expiration;
         }
+
+        /**
+         *  Returns the advertisement, or null if it could not be parsed.
+         */
+        public synchronized Advertisement getAdvertisement() {
+            if (advertisement == null && !unparsable) {
+                try {
+                    advertisement = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, new StringReader(serialized.getText()));
+                } catch (Exception failed) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Failed to parse stored advertisement", failed);
+                    }
+                    unparsable = true;
+                }
+            }
+            return advertisement;
+        }
+
+        /**
+         *  Returns the serialized advertisement, or null if it is known not
+         *  to parse.
+         */
+        synchronized SerializedAdvertisement getSerialized() {
+            return unparsable ? null : serialized;
+        }
+
+        /**
+         *  Returns the UTF-8 encoded advertisement.
+         */
+        byte[] getBytes() {
+            return serialized.getBytes();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
         public int hashCode() {
             return key.hashCode();
         }
-        public int compareTo(Object obj) {
-            return key.compareTo((String)obj);
+        public String toString() {
+            return serialized.getText()+"  "+lifetime+" "+expiration;
         }
     }
 }
-
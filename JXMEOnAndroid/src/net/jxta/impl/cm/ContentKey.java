@@ -0,0 +1,235 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import net.jxta.document.StructuredTextDocument;
+
+/**
+ *  Generates the names under which the cache keeps advertisements which
+ *  have no ID: the SHA1 digest of the UTF-8 encoded document, as "cm"
+ *  followed by 40 hex digits.
+ *
+ *  <p/>The document is encoded and digested as it is written out, without
+ *  an intermediate String. Each thread reuses its own digest and buffers,
+ *  so a key allocates nothing besides the returned String and what the
+ *  document allocates to serialize itself.
+ */
+final class ContentKey {
+
+    private final static String ALGORITHM = "SHA1";
+    private final static String PREFIX = "cm";
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final static ThreadLocal generators = new ThreadLocal() {
+                protected Object initialValue() {
+                    return new ContentKey();
+                }
+            };
+
+    private final MessageDigest digest;
+    private final DigestWriter writer;
+    private final char[] key;
+
+    private ContentKey() {
+        try {
+            digest = MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException never) {
+            throw new IllegalStateException(ALGORITHM + " not supported");
+        }
+        writer = new DigestWriter(digest);
+        key = new char[PREFIX.length() + 2 * digest.getDigestLength()];
+        PREFIX.getChars(0, PREFIX.length(), key, 0);
+    }
+
+    /**
+     *  Returns the key of a document.
+     *
+     *  @param  doc          the document
+     *  @return              the key
+     *  @throws IOException  if the document fails to serialize
+     */
+    static String of(StructuredTextDocument doc) throws IOException {
+        return ((ContentKey) generators.get()).generate(doc);
+    }
+
+    private String generate(StructuredTextDocument doc) throws IOException {
+        digest.reset();
+        writer.reset();
+        doc.sendToWriter(writer);
+        writer.flush();
+
+        byte[] hash = digest.digest();
+        int pos = PREFIX.length();
+        for (int i = 0; i < hash.length; i++) {
+            key[pos++] = HEX[(hash[i] >> 4) & 0x0F];
+            key[pos++] = HEX[hash[i] & 0x0F];
+        }
+        return new String(key);
+    }
+
+    /**
+     *  A Writer which UTF-8 encodes into a small buffer flushed to a digest.
+     *  Unpaired surrogates are encoded as '?'.
+     */
+    private static final class DigestWriter extends Writer {
+        private final MessageDigest digest;
+        private final byte[] buffer = new byte[512];
+        private int count = 0;
+        private char highSurrogate = 0;
+
+        DigestWriter(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        void reset() {
+            count = 0;
+            highSurrogate = 0;
+        }
+
+        public void write(int c) {
+            encode((char) c);
+        }
+
+        public void write(char[] cbuf, int off, int len) {
+            int end = off + len;
+            while (off < end) {
+                // copy a run of ASCII straight into the buffer
+                int stop = (highSurrogate != 0) ? off : Math.min(end, off + buffer.length - count);
+                while (off < stop && cbuf[off] < 0x80) {
+                    buffer[count++] = (byte) cbuf[off++];
+                }
+                if (off < end) {
+                    encode(cbuf[off++]);
+                }
+            }
+        }
+
+        public void write(String str, int off, int len) {
+            int end = off + len;
+            while (off < end) {
+                // copy a run of ASCII straight into the buffer
+                int stop = (highSurrogate != 0) ? off : Math.min(end, off + buffer.length - count);
+                char c;
+                while (off < stop && (c = str.charAt(off)) < 0x80) {
+                    buffer[count++] = (byte) c;
+                    off++;
+                }
+                if (off < end) {
+                    encode(str.charAt(off++));
+                }
+            }
+        }
+
+        private void encode(char c) {
+            if (buffer.length - count < 4) {
+                drain();
+            }
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    buffer[count++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[count++] = (byte) (0x80 | (cp & 0x3F));
+                    return;
+                }
+                buffer[count++] = (byte) '?';
+                encode(c);
+                return;
+            }
+            if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buffer[count++] = (byte) '?';
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        private void drain() {
+            digest.update(buffer, 0, count);
+            count = 0;
+        }
+
+        /**
+         *  Digests whatever is buffered, including a trailing unpaired
+         *  surrogate.
+         */
+        public void flush() {
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                encode('?');
+            }
+            drain();
+        }
+
+        public void close() {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.jxta.protocol.SrdiMessage;
+
+/**
+ *  The SRDI deltas of a directory: the index entries changed since the
+ *  last push. Changes to the same attribute and value are coalesced, only
+ *  the latest expiration is kept, so that republishing an advertisement
+ *  does not grow the journal.
+ *
+ *  <p/>The journal holds at most <code>limit</code> entries. Past that it
+ *  is discarded and flagged as overflowed; the next push must then send
+ *  all the entries of the directory rather than its deltas.
+ */
+final class DeltaJournal {
+
+    /**
+     *  Keyed by the entries themselves, which compare on key and value only.
+     */
+    private final Map entries = new LinkedHashMap();
+    private int limit;
+    private boolean overflowed = false;
+    private long coalesced = 0;
+
+    /**
+     *  @param  limit  the maximum number of entries held
+     */
+    DeltaJournal(int limit) {
+        setLimit(limit);
+    }
+
+    synchronized void setLimit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("delta limit must be greater than zero");
+        }
+        this.limit = limit;
+    }
+
+    /**
+     *  Records a change, replacing the expiration of any pending change to
+     *  the same attribute and value.
+     *
+     *  @param  attr        the attribute
+     *  @param  value       the value
+     *  @param  expiration  the relative expiration, 0 for a removal
+     */
+    synchronized void add(String attr, String value, long expiration) {
+        if (overflowed) {
+            return;
+        }
+        SrdiMessage.Entry entry = new SrdiMessage.Entry(attr, value, expiration);
+        SrdiMessage.Entry pending = (SrdiMessage.Entry) entries.get(entry);
+        if (pending != null) {
+            pending.expiration = expiration;
+            coalesced++;
+            return;
+        }
+        if (entries.size() >= limit) {
+            entries.clear();
+            overflowed = true;
+            return;
+        }
+        entries.put(entry, entry);
+    }
+
+    /**
+     *  Returns the pending changes and empties the journal.
+     *
+     *  @return  the SrdiMessage.Entries, in the order first changed
+     */
+    synchronized List drain() {
+        List result = new ArrayList(entries.keySet());
+        entries.clear();
+        return result;
+    }
+
+    /**
+     *  Returns whether changes were discarded since the last call, and
+     *  clears the flag.
+     */
+    synchronized boolean takeOverflow() {
+        boolean result = overflowed;
+        overflowed = false;
+        return result;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        overflowed = false;
+    }
+
+    /**
+     *  Returns the number of pending changes.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     *  Returns the number of changes merged into a pending one.
+     */
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A hashed timing wheel of absolute expiry times.
+ *
+ * <p/>The wheel has a fixed number of slots, each covering one tick. An
+ * item due within the span of the wheel goes straight to its slot, an item
+ * due later waits in an overflow map and is moved into the wheel when its
+ * slot comes within range. Scheduling is therefore O(1) for near items and
+ * O(log n) for far ones, and expiring only ever touches items which are due.
+ *
+ * <p/>An item is scheduled at most once: scheduling it again moves its
+ * timeout, and it may be cancelled, so the wheel holds one timeout per item
+ * however often the item is rescheduled. Items must therefore implement
+ * <code>equals</code> and <code>hashCode</code>.
+ *
+ * <p/>This class is not synchronized.
+ */
+final class ExpiryWheel {
+
+    private final long tick;
+    private final Collection[] slots;
+
+    /**
+     *  The tick number of the slot which will be expired next.
+     */
+    private long cursor;
+
+    /**
+     *  tick number (Long) -> Collection of {@link Timeout}, for the items
+     *  beyond the span of the wheel.
+     */
+    private final TreeMap overflow = new TreeMap();
+
+    /**
+     *  item -> its {@link Timeout}
+     */
+    private final Map scheduled = new HashMap();
+
+    /**
+     *  An item and the absolute time at which it is due.
+     */
+    static final class Timeout {
+        final Object item;
+        final long when;
+
+        /**
+         *  The slot or overflow collection holding this timeout.
+         */
+        Collection bucket;
+
+        /**
+         *  The tick of the overflow collection holding this timeout, or -1
+         *  if it is in a slot.
+         */
+        long overflowTick = -1;
+
+        Timeout(Object item, long when) {
+            this.item = item;
+            this.when = when;
+        }
+    }
+
+    /**
+     * Creates a wheel.
+     *
+     * @param  tick       the duration in milliseconds covered by a slot
+     * @param  slotCount  the number of slots
+     * @param  now        the current absolute time
+     */
+    ExpiryWheel(long tick, int slotCount, long now) {
+        this.tick = tick;
+        this.slots = new Collection[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new LinkedHashSet();
+        }
+        this.cursor = now / tick;
+    }
+
+    /**
+     * Schedules an item, replacing any timeout it already has. Items which
+     * never expire are only cancelled.
+     *
+     * @param  item  the item
+     * @param  when  absolute time at which the item is due
+     */
+    void schedule(Object item, long when) {
+        Timeout previous = (Timeout) scheduled.get(item);
+        if (previous != null && previous.when == when) {
+            return;
+        }
+        cancel(item);
+        if (when == Long.MAX_VALUE) {
+            return;
+        }
+        long due = Math.max(when / tick, cursor);
+        Timeout timeout = new Timeout(item, when);
+        if (due - cursor < slots.length) {
+            timeout.bucket = slots[(int) (due % slots.length)];
+        } else {
+            Long key = new Long(due);
+            Collection waiting = (Collection) overflow.get(key);
+            if (waiting == null) {
+                waiting = new LinkedHashSet();
+                overflow.put(key, waiting);
+            }
+            timeout.bucket = waiting;
+            timeout.overflowTick = due;
+        }
+        timeout.bucket.add(timeout);
+        scheduled.put(item, timeout);
+    }
+
+    /**
+     * Cancels the timeout of an item, if any.
+     *
+     * @param  item  the item
+     */
+    void cancel(Object item) {
+        Timeout timeout = (Timeout) scheduled.remove(item);
+        if (timeout == null) {
+            return;
+        }
+        timeout.bucket.remove(timeout);
+        if (timeout.overflowTick >= 0 && timeout.bucket.isEmpty()) {
+            overflow.remove(new Long(timeout.overflowTick));
+        }
+    }
+
+    /**
+     * Removes and returns at most <code>budget</code> items which are due.
+     * Items left over because the budget ran out are returned by the next
+     * call.
+     *
+     * @param  now     the current absolute time
+     * @param  budget  the maximum number of items to return
+     * @return         List of {@link Timeout}
+     */
+    List expire(long now, int budget) {
+        List due = new ArrayList();
+        long nowTick = now / tick;
+
+        while (due.size() < budget) {
+            Collection slot = slots[(int) (cursor % slots.length)];
+            Iterator it = slot.iterator();
+            while (it.hasNext() && due.size() < budget) {
+                Timeout timeout = (Timeout) it.next();
+                if (timeout.when <= now) {
+                    it.remove();
+                    scheduled.remove(timeout.item);
+                    due.add(timeout);
+                }
+            }
+            if (cursor >= nowTick || !slot.isEmpty()) {
+                break;
+            }
+            cursor++;
+            refill();
+        }
+        return due;
+    }
+
+    /**
+     *  Returns the number of scheduled items.
+     */
+    int size() {
+        return scheduled.size();
+    }
+
+    /**
+     *  Moves the overflow items which are now within the span of the wheel.
+     */
+    private void refill() {
+        SortedMap ready = overflow.headMap(new Long(cursor + slots.length));
+        Iterator it = ready.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) it.next();
+            long due = Math.max(((Long) anEntry.getKey()).longValue(), cursor);
+            Collection slot = slots[(int) (due % slots.length)];
+            Iterator each = ((Collection) anEntry.getValue()).iterator();
+            while (each.hasNext()) {
+                Timeout timeout = (Timeout) each.next();
+                timeout.bucket = slot;
+                timeout.overflowTick = -1;
+                slot.add(timeout);
+            }
+        }
+        ready.clear();
+    }
+
+    /**
+     *  Removes all items.
+     */
+    void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i].clear();
+        }
+        overflow.clear();
+        scheduled.clear();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+/**
+ * A count-min sketch of 4 bit counters, estimating how often keys have
+ * been seen recently. Once as many increments as the sample size have been
+ * recorded every counter is halved, so that the sketch follows changes in
+ * popularity.
+ *
+ * <p/>This class is not synchronized.
+ */
+final class FrequencySketch {
+
+    private final static long RESET_MASK = 0x7777777777777777L;
+    private final static int[] SEEDS = {0x97CB3127, 0xB4B82E2D, 0xE6E7A5D3, 0x5C6E3F4B};
+
+    /**
+     *  Each long holds sixteen 4 bit counters.
+     */
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch sized for the given number of keys.
+     *
+     * @param  capacity  the expected number of distinct keys
+     */
+    FrequencySketch(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Resizes the sketch, forgetting what it has seen, if it is too small for
+     * the given number of keys.
+     *
+     * @param  capacity  the expected number of distinct keys
+     */
+    void ensureCapacity(int capacity) {
+        int wanted = Math.max(8, Math.min(capacity, 1 << 24));
+        if (table != null && table.length >= wanted) {
+            return;
+        }
+        int size = 1;
+        while (size < wanted) {
+            size <<= 1;
+        }
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * wanted;
+        additions = 0;
+    }
+
+    /**
+     * Returns the estimated number of times the key was seen, at most 15.
+     *
+     * @param  key  the key
+     * @return      the estimated frequency
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int min = 15;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int counter = (hash >>> (i << 3)) & 15;
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> (counter << 2)) & 0xFL);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /**
+     * Records an occurrence of the key.
+     *
+     * @param  key  the key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int counter = (hash >>> (i << 3)) & 15;
+            int index = indexOf(hash, i);
+            added |= incrementAt(index, counter);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xFL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *  Halves every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + (long) SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import net.jxta.peer.PeerID;
+
+/**
+ *  A consistent hash ring over the global peer view, mapping an SRDI key
+ *  to the rendezvous which replicates it.
+ *
+ *  <p/>Every peer of the view is placed on a 64 bit ring at
+ *  <code>VIRTUAL_NODES</code> points derived from its ID; a key belongs to
+ *  the first point at or after its own hash. All the rendezvous sharing a
+ *  view therefore agree on the replica of a key, the keys are spread evenly
+ *  and a peer joining or leaving the view only moves the keys of its own
+ *  points.
+ *
+ *  <p/>Instances are immutable.
+ */
+final class ReplicaRing {
+
+    /**
+     *  The number of points of each peer on the ring.
+     */
+    private final static int VIRTUAL_NODES = 128;
+
+    private final static ThreadLocal digests = new ThreadLocal() {
+                protected Object initialValue() {
+                    try {
+                        return MessageDigest.getInstance("SHA1");
+                    } catch (NoSuchAlgorithmException never) {
+                        throw new IllegalStateException("SHA1 not supported");
+                    }
+                }
+            };
+
+    private final List view;
+    private final long[] points;
+    private final PeerID[] owners;
+
+    /**
+     *  @param  view  the List of PeerIDs of the global peer view
+     */
+    ReplicaRing(List view) {
+        this.view = view;
+
+        int count = view.size() * VIRTUAL_NODES;
+        long[] sorted = new long[count];
+        long[] tagged = new long[count];
+        for (int i = 0; i < view.size(); i++) {
+            String peer = view.get(i).toString();
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                sorted[i * VIRTUAL_NODES + v] = hash(peer + '#' + v);
+            }
+        }
+        System.arraycopy(sorted, 0, tagged, 0, count);
+        Arrays.sort(sorted);
+
+        points = sorted;
+        owners = new PeerID[count];
+        for (int i = 0; i < count; i++) {
+            int at = Arrays.binarySearch(points, tagged[i]);
+            owners[at] = (PeerID) view.get(i / VIRTUAL_NODES);
+        }
+    }
+
+    /**
+     *  Returns whether this ring was built from the given view.
+     */
+    boolean isFor(List view) {
+        return this.view.equals(view);
+    }
+
+    /**
+     *  Returns the peer replicating a key.
+     *
+     *  @param  key  the key
+     *  @return      the peer, or null if the view is empty
+     */
+    PeerID get(String key) {
+        if (points.length == 0) {
+            return null;
+        }
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0) {
+            at = -at - 1;
+            if (at == points.length) {
+                at = 0;
+            }
+        }
+        return owners[at];
+    }
+
+    /**
+     *  The first 64 bits of the SHA1 digest of the UTF-8 encoded string.
+     */
+    static long hash(String value) {
+        MessageDigest digest = (MessageDigest) digests.get();
+        byte[] hash;
+        try {
+            hash = digest.digest(value.getBytes("UTF-8"));
+        } catch (java.io.UnsupportedEncodingException never) {
+            throw new IllegalStateException("UTF-8 not supported");
+        }
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (hash[i] & 0xFF);
+        }
+        return result;
+    }
+}
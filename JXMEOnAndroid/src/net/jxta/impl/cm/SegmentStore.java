@@ -0,0 +1,486 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only record log backing a single Cm directory. The log is made
+ * of fixed size segment files which are memory mapped, so that appends are
+ * plain memory copies and a warm start is a sequential scan of the mapping.
+ *
+ * <p/>Every record is framed as <code>length, crc32, body</code>. Segments
+ * are zero filled when they are created, therefore a zero length marks the
+ * end of the valid data. Recovery stops at the first record which is
+ * truncated or fails its checksum, and zeroes the remainder of that segment
+ * so that a torn write can never be mistaken for a record later on.
+ *
+ * <p/>Records are never updated in place; a remove is recorded as a
+ * tombstone. Once the log holds more dead than live records it is rewritten
+ * from the live set.
+ */
+final class SegmentStore {
+
+    /**
+     * Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(SegmentStore.class.getName());
+
+    /**
+     *  Segment header magic, "JXCM"
+     */
+    private final static int MAGIC = 0x4A58434D;
+    private final static int VERSION = 1;
+    private final static int SEGMENT_HEADER_SIZE = 8;
+    private final static int RECORD_HEADER_SIZE = 8;
+
+    /**
+     *  Default size of a segment file.
+     */
+    final static int SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     *  Do not bother compacting logs with fewer records than this.
+     */
+    private final static int MIN_COMPACT_RECORDS = 256;
+
+    private final static String SEGMENT_SUFFIX = ".seg";
+
+    final static byte OP_SAVE = 1;
+    final static byte OP_REMOVE = 2;
+
+    private final File home;
+    private final String name;
+
+    /**
+     *  Segment files in log order.
+     */
+    private final List segments = new ArrayList();
+    private int nextSegment = 0;
+
+    private RandomAccessFile currentFile = null;
+    private MappedByteBuffer current = null;
+
+    /**
+     *  Number of records (saves and tombstones) in the log.
+     */
+    private int records = 0;
+
+    /**
+     *  The keys alive in the log.
+     */
+    private final Set live = new HashSet();
+
+    private final CRC32 crc = new CRC32();
+
+    /**
+     *  A record as read from, or written to, the log.
+     */
+    static final class Entry {
+        final String key;
+        final long lifetime;
+        final long expiration;
+        final Map index;
+        final byte[] bytes;
+
+        Entry(String key, long lifetime, long expiration, Map index, byte[] bytes) {
+            this.key = key;
+            this.lifetime = lifetime;
+            this.expiration = expiration;
+            this.index = index;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Creates a store for the given directory. Nothing is read until
+     * {@link #recover()} is called.
+     *
+     * @param  home  the directory holding the segment files
+     * @param  name  the Cm directory name, used as segment file prefix
+     */
+    SegmentStore(File home, String name) {
+        this.home = home;
+        this.name = name;
+    }
+
+    /**
+     * Reads back the log, repairing the tail of any segment holding a torn
+     * record, and returns the live records in log order. Records whose
+     * lifetime has passed are dropped.
+     *
+     * @return  Map of key to {@link Entry}
+     * @throws  IOException  if the store cannot be opened
+     */
+    synchronized Map recover() throws IOException {
+        if (!home.isDirectory() && !home.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + home);
+        }
+
+        String[] files = home.list();
+        List found = new ArrayList();
+        String prefix = name + "-";
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].startsWith(prefix) && files[i].endsWith(SEGMENT_SUFFIX)) {
+                found.add(files[i]);
+            }
+        }
+        // fixed width sequence numbers sort in log order
+        String[] sorted = (String[]) found.toArray(new String[found.size()]);
+        Arrays.sort(sorted);
+
+        Map result = new LinkedHashMap();
+        records = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            File segment = new File(home, sorted[i]);
+            segments.add(segment);
+            nextSegment = Math.max(nextSegment, sequenceOf(sorted[i]) + 1);
+
+            boolean last = (i == sorted.length - 1);
+            RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            int end = replay(segment, map, result);
+            if (last) {
+                map.position(end);
+                currentFile = raf;
+                current = map;
+            } else {
+                raf.close();
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator it = result.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = (Entry) it.next();
+            if (entry.lifetime < now) {
+                it.remove();
+            }
+        }
+        live.clear();
+        live.addAll(result.keySet());
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Recovered " + live.size() + " records of " + records + " from " + segments.size() + " segments of " + name);
+        }
+        return result;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param  entry  the record to append
+     * @throws  IOException  if the log could not be extended
+     */
+    synchronized void append(Entry entry) throws IOException {
+        byte[] body = encode(OP_SAVE, entry);
+        write(body);
+        live.add(entry.key);
+    }
+
+    /**
+     * Appends a tombstone for the given key.
+     *
+     * @param  key  the removed key
+     * @throws  IOException  if the log could not be extended
+     */
+    synchronized void appendRemove(String key) throws IOException {
+        byte[] body = encode(OP_REMOVE, new Entry(key, 0, 0, null, null));
+        write(body);
+        live.remove(key);
+    }
+
+    /**
+     *  Returns true if the log holds more dead than live records and is
+     *  large enough to be worth rewriting.
+     *
+     * @return  true if {@link #compact(Collection)} should be called
+     */
+    synchronized boolean needsCompaction() {
+        return records > MIN_COMPACT_RECORDS && records > 2 * live.size();
+    }
+
+    /**
+     * Rewrites the log so that it contains only the given records. The new
+     * segments are written and forced before the old ones are deleted, so a
+     * crash during compaction leaves at worst duplicated records which the
+     * next recovery resolves (last write wins).
+     *
+     * @param  entries  Collection of {@link Entry} to keep
+     * @throws  IOException  if the new log could not be written
+     */
+    synchronized void compact(Collection entries) throws IOException {
+        List old = new ArrayList(segments);
+        closeCurrent();
+        segments.clear();
+        records = 0;
+        live.clear();
+
+        Iterator it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = (Entry) it.next();
+            write(encode(OP_SAVE, entry));
+            live.add(entry.key);
+        }
+        if (current != null) {
+            current.force();
+        }
+
+        for (int i = 0; i < old.size(); i++) {
+            File segment = (File) old.get(i);
+            if (!segment.delete() && LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Could not delete compacted segment " + segment);
+            }
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Compacted " + name + " to " + live.size() + " records");
+        }
+    }
+
+    /**
+     *  Forces outstanding writes to disk and releases the current segment.
+     */
+    synchronized void close() {
+        try {
+            if (current != null) {
+                current.force();
+            }
+            closeCurrent();
+        } catch (IOException ignored) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Failed to close " + name, ignored);
+            }
+        }
+    }
+
+    private void closeCurrent() throws IOException {
+        current = null;
+        if (currentFile != null) {
+            currentFile.close();
+            currentFile = null;
+        }
+    }
+
+    private void write(byte[] body) throws IOException {
+        int needed = RECORD_HEADER_SIZE + body.length;
+        if (current == null || current.remaining() < needed) {
+            roll(needed);
+        }
+        crc.reset();
+        crc.update(body, 0, body.length);
+        int start = current.position();
+        // the length goes in last so that a torn record reads as end of log
+        current.putInt(start + 4, (int) crc.getValue());
+        current.position(start + RECORD_HEADER_SIZE);
+        current.put(body);
+        current.putInt(start, body.length);
+        records++;
+    }
+
+    private void roll(int needed) throws IOException {
+        if (current != null) {
+            current.force();
+        }
+        closeCurrent();
+
+        int size = Math.max(SEGMENT_SIZE, SEGMENT_HEADER_SIZE + needed);
+        String fileName = name + "-" + pad(nextSegment++) + SEGMENT_SUFFIX;
+        File segment = new File(home, fileName);
+        currentFile = new RandomAccessFile(segment, "rw");
+        currentFile.setLength(size);
+        current = currentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        current.putInt(MAGIC);
+        current.putInt(VERSION);
+        segments.add(segment);
+    }
+
+    private int replay(File segment, MappedByteBuffer map, Map result) {
+        if (map.limit() < SEGMENT_HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Ignoring segment with bad header " + segment);
+            }
+            return map.limit();
+        }
+
+        int pos = SEGMENT_HEADER_SIZE;
+        while (pos + RECORD_HEADER_SIZE <= map.limit()) {
+            int length = map.getInt(pos);
+            if (length == 0) {
+                return pos;
+            }
+            if (length < 0 || length > map.limit() - pos - RECORD_HEADER_SIZE) {
+                break;
+            }
+            byte[] body = new byte[length];
+            map.position(pos + RECORD_HEADER_SIZE);
+            map.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != map.getInt(pos + 4)) {
+                break;
+            }
+            try {
+                decode(body, result);
+            } catch (IOException bad) {
+                break;
+            }
+            records++;
+            pos += RECORD_HEADER_SIZE + length;
+        }
+
+        if (pos + RECORD_HEADER_SIZE <= map.limit()) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Truncating torn record at " + pos + " in " + segment);
+            }
+            for (int i = pos; i < map.limit(); i++) {
+                map.put(i, (byte) 0);
+            }
+            map.force();
+        }
+        return pos;
+    }
+
+    private static byte[] encode(byte op, Entry entry) throws IOException {
+        int size = 32 + (entry.bytes == null ? 0 : entry.bytes.length);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(size);
+        DataOutputStream out = new DataOutputStream(bos);
+        out.writeByte(op);
+        out.writeUTF(entry.key);
+        if (op == OP_SAVE) {
+            out.writeLong(entry.lifetime);
+            out.writeLong(entry.expiration);
+            out.writeInt(entry.index.size());
+            Iterator it = entry.index.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry anEntry = (Map.Entry) it.next();
+                out.writeUTF((String) anEntry.getKey());
+                out.writeUTF((String) anEntry.getValue());
+            }
+            out.writeInt(entry.bytes.length);
+            out.write(entry.bytes);
+        }
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static void decode(byte[] body, Map result) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte op = in.readByte();
+        String key = in.readUTF();
+        if (op == OP_REMOVE) {
+            result.remove(key);
+            return;
+        }
+        if (op != OP_SAVE) {
+            throw new IOException("Unknown record type " + op);
+        }
+        long lifetime = in.readLong();
+        long expiration = in.readLong();
+        int count = in.readInt();
+        Map index = new HashMap();
+        for (int i = 0; i < count; i++) {
+            String attr = in.readUTF();
+            index.put(attr, in.readUTF());
+        }
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Truncated record");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        // remove first so that the re-saved record moves to the end
+        result.remove(key);
+        result.put(key, new Entry(key, lifetime, expiration, index, bytes));
+    }
+
+    private int sequenceOf(String fileName) {
+        String seq = fileName.substring(name.length() + 1, fileName.length() - SEGMENT_SUFFIX.length());
+        try {
+            return Integer.parseInt(seq);
+        } catch (NumberFormatException bad) {
+            return 0;
+        }
+    }
+
+    private static String pad(int seq) {
+        String digits = Integer.toString(seq);
+        StringBuffer padded = new StringBuffer(8);
+        for (int i = digits.length(); i < 8; i++) {
+            padded.append('0');
+        }
+        return padded.append(digits).toString();
+    }
+}
@@ -57,7 +57,11 @@ package net.jxta.impl.cm;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -69,7 +73,6 @@ import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
 import net.jxta.impl.protocol.ResolverSrdiMsgImpl;
 import net.jxta.impl.protocol.SrdiMessageImpl;
-import net.jxta.impl.util.JxtaHash;
 import net.jxta.membership.MembershipService;
 import net.jxta.peer.PeerID;
 import net.jxta.peergroup.PeerGroup;
@@ -133,7 +136,7 @@ public class Srdi implements Runnable, RendezvousListener {
 
     private PeerGroup group = null;
     private String handlername = null;
-    private JxtaHash jxtaHash = new JxtaHash();
+    private volatile ReplicaRing ring = null;
     private MembershipService membership;
     private long pushInterval = 0;
 
@@ -339,6 +342,125 @@ public class Srdi implements Runnable, RendezvousListener {
     }
 
 
+    /**
+     *  Returns the rendezvous of the global peer view which replicates an
+     *  SRDI entry or query. The value is case folded as the index folds it,
+     *  so that entries and queries which match regardless of case map to
+     *  the same replica.
+     *
+     *@param  primaryKey  the primary key
+     *@param  attribute   the attribute
+     *@param  value       the value
+     *@return             the replica peer, or null if the peer view is below
+     *      the replication threshold
+     */
+    public PeerID getReplicaPeer(String primaryKey, String attribute, String value) {
+        return getReplicaPeer(replicaExpression(primaryKey, attribute, value));
+    }
+
+    /**
+     *  Returns the ring expression of an SRDI entry or query.
+     */
+    private static String replicaExpression(String primaryKey, String attribute, String value) {
+        return primaryKey + attribute + ((value == null) ? null : AttributeIndex.fold(value));
+    }
+
+    /**
+     *  Returns the rendezvous of the global peer view which replicates an
+     *  SRDI key, the same on every rendezvous sharing the view. Keys are
+     *  placed on a consistent hash ring, see {@link ReplicaRing}, so that a
+     *  change of the view only moves a share of them.
+     *
+     *@param  expression  the key, primary key + attribute + value
+     *@return             the replica peer, or null if the peer view is below
+     *      the replication threshold
+     */
+    public PeerID getReplicaPeer(String expression) {
+
+        ReplicaRing current = getRing();
+
+        if (current == null) {
+            return null;
+        }
+        PeerID pid = current.get(expression);
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Replica of " + expression + " is " + pid);
+        }
+        return pid;
+    }
+
+    /**
+     *  Returns the ring of the current global peer view, rebuilt only when
+     *  the view has changed, or null if the view is below the replication
+     *  threshold.
+     */
+    private ReplicaRing getRing() {
+
+        Vector rpv = getGlobalPeerView();
+
+        if (rpv.size() < RPV_REPLICATION_THRESHOLD) {
+            return null;
+        }
+        ReplicaRing current = ring;
+        if (current == null || !current.isFor(rpv)) {
+            current = new ReplicaRing(rpv);
+            ring = current;
+        }
+        return current;
+    }
+
+    /**
+     *  Sends the entries of an SRDI message received by this rendezvous to
+     *  their replica peers, see {@link #getReplicaPeer(String, String, String)}. The
+     *  entries are batched per replica and sent with a ttl of 0 so that
+     *  they are not replicated further. Messages whose ttl is already 0
+     *  are not replicated.
+     *
+     *@param  srdiMsg  the message received
+     */
+    public void replicateEntries(SrdiMessage srdiMsg) {
+
+        if (srdiMsg.getTTL() < 1) {
+            return;
+        }
+        ReplicaRing current = getRing();
+        if (current == null) {
+            return;
+        }
+
+        PeerID self = group.getPeerID();
+        String pKey = srdiMsg.getPrimaryKey();
+        Map byReplica = new HashMap();
+        Iterator eachEntry = srdiMsg.getEntries().iterator();
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+            PeerID replica = current.get(replicaExpression(pKey, entry.key, entry.value));
+
+            if (replica.equals(self) || replica.equals(srdiMsg.getPeerID())) {
+                continue;
+            }
+            List entries = (List) byReplica.get(replica);
+            if (entries == null) {
+                entries = new ArrayList();
+                byReplica.put(replica, entries);
+            }
+            entries.add(entry);
+        }
+
+        Iterator eachReplica = byReplica.entrySet().iterator();
+        while (eachReplica.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachReplica.next();
+            List entries = (List) anEntry.getValue();
+
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("[" + group.getPeerGroupName() + " / " + handlername + "] Replicating " +
+                          entries.size() + " " + pKey + " entries to " + anEntry.getKey());
+            }
+            // ttl of 0, avoids additional replication
+            pushSrdi((PeerID) anEntry.getKey(), new SrdiMessageImpl(srdiMsg.getPeerID(), 0, pKey, entries));
+        }
+    }
+
     /**
      *  Push an SRDI message to a peer ttl is 1, and therefore services
      *  receiving this message could choose to replicate this message
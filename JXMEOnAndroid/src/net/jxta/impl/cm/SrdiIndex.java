@@ -0,0 +1,546 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.Vector;
+import net.jxta.id.IDFactory;
+import net.jxta.impl.util.TimeUtils;
+import net.jxta.impl.util.TimerThreadNamer;
+import net.jxta.peer.PeerID;
+import net.jxta.protocol.SrdiMessage;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  The index a rendezvous keeps of the SRDI entries pushed by its edge
+ *  peers: for a primary key, an attribute and a value, the set of peers
+ *  which published them and until when. A rendezvous uses it to forward a
+ *  query straight to the peers able to answer it instead of walking it
+ *  across the peer view.
+ *
+ *  <p/>Values are matched ignoring case and may use the same wildcards as
+ *  the cache, see {@link AttributeIndex}. Expired entries are never
+ *  returned and are purged by a periodic garbage collection.
+ *
+ *  <p/>A peer may also publish a summary of its entries for a primary key, a
+ *  {@link BloomFilter} of their attributes and values, rather than the
+ *  entries. Such a peer is returned for a query whose attribute, or
+ *  attribute and exact value, the summary may contain; it is never returned
+ *  for a query with wildcards.
+ *
+ *  <p/>When created with a home directory the index is saved there when it
+ *  is stopped and loaded back, less the expired entries, when it is next
+ *  created. Summaries are not saved, peers send them again on reconnecting.
+ */
+public class SrdiIndex {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static Logger LOG = Logger.getLogger(SrdiIndex.class.getName());
+
+    /**
+     *  The interval at which expired entries are purged.
+     */
+    private final static long GC_INTERVAL = 10 * TimeUtils.AMINUTE;
+
+    /**
+     *  The false positive rate of the summaries built by {@link #summarize}.
+     */
+    public final static double SUMMARY_FPP = 0.01;
+
+    private final static int MAGIC = 0x4A585349;
+    private final static int VERSION = 1;
+
+    private final String name;
+    private final File file;
+
+    /**
+     *  primary key -> {@link AttributeIndex} of entry keys
+     */
+    private final Map indexes = new HashMap();
+
+    /**
+     *  entry key -> {@link Ref}
+     */
+    private final Map refs = new HashMap();
+
+    /**
+     *  PeerID -> Set of entry keys
+     */
+    private final Map byPeer = new HashMap();
+
+    /**
+     *  PeerID -> Map of primary key -> {@link Summary}
+     */
+    private final Map summaries = new HashMap();
+
+    private Timer gcTimer = null;
+
+    /**
+     *  Where an entry is indexed and who published it.
+     */
+    private static final class Ref {
+        final String primaryKey;
+        final PeerID peer;
+
+        Ref(String primaryKey, PeerID peer) {
+            this.primaryKey = primaryKey;
+            this.peer = peer;
+        }
+    }
+
+    /**
+     *  The summary of the entries of a peer for a primary key.
+     */
+    private static final class Summary {
+        final BloomFilter filter;
+        final long lifetime;
+
+        Summary(BloomFilter filter, long lifetime) {
+            this.filter = filter;
+            this.lifetime = lifetime;
+        }
+    }
+
+    /**
+     *  Creates an index held in memory only.
+     *
+     *  @param  name  the name of the index, used in logs
+     */
+    public SrdiIndex(String name) {
+        this(name, null);
+    }
+
+    /**
+     *  Creates an index saved in <code>home</code> when it is stopped.
+     *
+     *  @param  name  the name of the index, also the name of its file
+     *  @param  home  the directory in which the index is saved, or null to
+     *                keep it in memory only
+     */
+    public SrdiIndex(String name, File home) {
+        this.name = name;
+        this.file = (home == null) ? null : new File(home, name + ".srdi");
+        if (file != null) {
+            load();
+        }
+
+        gcTimer = new Timer(true);
+        gcTimer.schedule(new TimerThreadNamer("SrdiIndex GC Timer for " + name), 0);
+        gcTimer.schedule(new TimerTask() {
+                             public void run() {
+                                 garbageCollect();
+                             }
+                         }, GC_INTERVAL, GC_INTERVAL);
+    }
+
+    private static String makeKey(String primaryKey, PeerID peer, String attribute, String value) {
+        return primaryKey + ' ' + peer + ' ' + attribute + ' ' + value;
+    }
+
+    private static String summaryKey(String attribute, String value) {
+        return attribute + '\u0000' + AttributeIndex.fold(value);
+    }
+
+    /**
+     *  Builds the summary of entries, to be published instead of them.
+     *
+     *  @param  entries  the SrdiMessage.Entries
+     *  @return          the summary
+     */
+    public static BloomFilter summarize(Collection entries) {
+        BloomFilter filter = new BloomFilter(entries.size() + 16, SUMMARY_FPP);
+        Iterator it = entries.iterator();
+        while (it.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) it.next();
+            if (entry.expiration <= 0 || entry.key == null || entry.value == null) {
+                continue;
+            }
+            filter.add(entry.key);
+            filter.add(summaryKey(entry.key, entry.value));
+        }
+        return filter;
+    }
+
+    /**
+     *  Sets the summary of the entries of a peer for a primary key,
+     *  replacing any previous one. An expiration of zero or less removes
+     *  the summary.
+     *
+     *  @param  primaryKey  the primary key, the directory or pipe type
+     *  @param  peer        the peer which published the summary
+     *  @param  filter      the summary
+     *  @param  expiration  relative expiration in milliseconds
+     */
+    public synchronized void addSummary(String primaryKey, PeerID peer, BloomFilter filter, long expiration) {
+        Map byKey = (Map) summaries.get(peer);
+        if (expiration <= 0) {
+            if (byKey != null) {
+                byKey.remove(primaryKey);
+                if (byKey.isEmpty()) {
+                    summaries.remove(peer);
+                }
+            }
+            return;
+        }
+        if (byKey == null) {
+            byKey = new HashMap(4);
+            summaries.put(peer, byKey);
+        }
+        byKey.put(primaryKey, new Summary(filter, TimeUtils.toAbsoluteTimeMillis(expiration)));
+    }
+
+    /**
+     *  Adds an entry, replacing any previous expiration for it. An
+     *  expiration of zero or less removes the entry.
+     *
+     *  @param  primaryKey  the primary key, the directory or pipe type
+     *  @param  attribute   the attribute
+     *  @param  value       the value
+     *  @param  peer        the peer which published the entry
+     *  @param  expiration  relative expiration in milliseconds
+     */
+    public synchronized void add(String primaryKey, String attribute, String value, PeerID peer, long expiration) {
+        if (expiration > 0) {
+            put(primaryKey, attribute, value, peer, TimeUtils.toAbsoluteTimeMillis(expiration));
+        } else {
+            remove(makeKey(primaryKey, peer, attribute, value));
+        }
+    }
+
+    private void put(String primaryKey, String attribute, String value, PeerID peer, long lifetime) {
+        String key = makeKey(primaryKey, peer, attribute, value);
+        AttributeIndex index = (AttributeIndex) indexes.get(primaryKey);
+        if (index == null) {
+            index = new AttributeIndex();
+            indexes.put(primaryKey, index);
+        }
+        index.add(key, Collections.singletonMap(attribute, value), lifetime);
+
+        if (refs.put(key, new Ref(primaryKey, peer)) == null) {
+            Set keys = (Set) byPeer.get(peer);
+            if (keys == null) {
+                keys = new HashSet();
+                byPeer.put(peer, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private void remove(String key) {
+        Ref ref = (Ref) refs.remove(key);
+        if (ref == null) {
+            return;
+        }
+        AttributeIndex index = (AttributeIndex) indexes.get(ref.primaryKey);
+        index.remove(key);
+        if (index.size() == 0) {
+            indexes.remove(ref.primaryKey);
+        }
+        Set keys = (Set) byPeer.get(ref.peer);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            byPeer.remove(ref.peer);
+        }
+    }
+
+    /**
+     *  Returns the peers which published a matching entry.
+     *
+     *  @param  primaryKey  the primary key
+     *  @param  attribute   the attribute
+     *  @param  value       the value, may contain wildcards
+     *  @param  threshold   the maximum number of peers returned
+     *  @return             Vector of distinct PeerIDs
+     */
+    public synchronized Vector query(String primaryKey, String attribute, String value, int threshold) {
+        Vector result = new Vector();
+        if (attribute == null) {
+            return result;
+        }
+        long now = TimeUtils.timeNow();
+        AttributeIndex index = (AttributeIndex) indexes.get(primaryKey);
+        Iterator it = (index == null) ? Collections.EMPTY_SET.iterator() : index.lookup(attribute, value, null);
+        while (it.hasNext() && result.size() < threshold) {
+            String key = (String) it.next();
+            AttributeIndex.IndexEntry entry = index.get(key);
+            if (entry == null || entry.lifetime <= now) {
+                continue;
+            }
+            PeerID peer = ((Ref) refs.get(key)).peer;
+            if (!result.contains(peer)) {
+                result.add(peer);
+            }
+        }
+
+        if (value != null && value.indexOf('*') >= 0) {
+            return result;
+        }
+        String element = (value == null) ? attribute : summaryKey(attribute, value);
+        Iterator eachPeer = summaries.entrySet().iterator();
+        while (eachPeer.hasNext() && result.size() < threshold) {
+            Map.Entry anEntry = (Map.Entry) eachPeer.next();
+            Summary summary = (Summary) ((Map) anEntry.getValue()).get(primaryKey);
+            if (summary == null || summary.lifetime <= now || result.contains(anEntry.getKey())) {
+                continue;
+            }
+            if (summary.filter.mightContain(element)) {
+                result.add(anEntry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     *  Removes all the entries published by a peer.
+     *
+     *  @param  peer  the peer
+     */
+    public synchronized void remove(PeerID peer) {
+        summaries.remove(peer);
+        Set keys = (Set) byPeer.get(peer);
+        if (keys == null) {
+            return;
+        }
+        List removed = new ArrayList(keys);
+        for (int i = 0; i < removed.size(); i++) {
+            remove((String) removed.get(i));
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + name + "] Removed " + removed.size() + " entries of " + peer);
+        }
+    }
+
+    /**
+     *  Purges the expired entries.
+     */
+    public synchronized void garbageCollect() {
+        long now = TimeUtils.timeNow();
+        List expired = new ArrayList();
+        Iterator eachIndex = indexes.values().iterator();
+        while (eachIndex.hasNext()) {
+            Iterator it = ((AttributeIndex) eachIndex.next()).entries();
+            while (it.hasNext()) {
+                AttributeIndex.IndexEntry entry = (AttributeIndex.IndexEntry) it.next();
+                if (entry.lifetime <= now) {
+                    expired.add(entry.key);
+                }
+            }
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            remove((String) expired.get(i));
+        }
+        Iterator eachPeer = summaries.values().iterator();
+        while (eachPeer.hasNext()) {
+            Map byKey = (Map) eachPeer.next();
+            Iterator eachSummary = byKey.values().iterator();
+            while (eachSummary.hasNext()) {
+                if (((Summary) eachSummary.next()).lifetime <= now) {
+                    eachSummary.remove();
+                }
+            }
+            if (byKey.isEmpty()) {
+                eachPeer.remove();
+            }
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("[" + name + "] Purged " + expired.size() + " expired entries, " + refs.size() + " left");
+        }
+    }
+
+    /**
+     *  Returns the number of entries.
+     */
+    public synchronized int size() {
+        return refs.size();
+    }
+
+    /**
+     *  Returns the number of peers which published a summary.
+     */
+    public synchronized int getSummaryCount() {
+        return summaries.size();
+    }
+
+    /**
+     *  Stops the garbage collection and saves the index if it has a home.
+     */
+    public synchronized void stop() {
+        if (gcTimer == null) {
+            return;
+        }
+        gcTimer.cancel();
+        gcTimer = null;
+        if (file != null) {
+            save();
+        }
+        indexes.clear();
+        refs.clear();
+        byPeer.clear();
+        summaries.clear();
+    }
+
+    private void save() {
+        long now = TimeUtils.timeNow();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            file.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            Iterator eachIndex = indexes.values().iterator();
+            while (eachIndex.hasNext()) {
+                Iterator it = ((AttributeIndex) eachIndex.next()).entries();
+                while (it.hasNext()) {
+                    AttributeIndex.IndexEntry entry = (AttributeIndex.IndexEntry) it.next();
+                    if (entry.lifetime <= now) {
+                        continue;
+                    }
+                    Ref ref = (Ref) refs.get(entry.key);
+                    Map.Entry attr = (Map.Entry) entry.indexables.entrySet().iterator().next();
+                    out.writeBoolean(true);
+                    out.writeUTF(ref.primaryKey);
+                    out.writeUTF(ref.peer.toString());
+                    out.writeUTF((String) attr.getKey());
+                    out.writeUTF((String) attr.getValue());
+                    out.writeLong(entry.lifetime);
+                }
+            }
+            out.writeBoolean(false);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Could not rename " + tmp);
+                }
+            }
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("[" + name + "] Failed to save the index to " + file, failed);
+            }
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {}
+                tmp.delete();
+            }
+        }
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        long now = TimeUtils.timeNow();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unrecognized index file");
+            }
+            while (in.readBoolean()) {
+                String primaryKey = in.readUTF();
+                String peer = in.readUTF();
+                String attribute = in.readUTF();
+                String value = in.readUTF();
+                long lifetime = in.readLong();
+                if (lifetime > now) {
+                    put(primaryKey, attribute, value, (PeerID) IDFactory.fromURI(new URI(peer)), lifetime);
+                }
+            }
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("[" + name + "] Loaded " + refs.size() + " entries from " + file);
+            }
+        } catch (Exception failed) {
+            // a damaged index only costs some walks until peers republish
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("[" + name + "] Failed to load the index from " + file, failed);
+            }
+            indexes.clear();
+            refs.clear();
+            byPeer.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,586 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.cm;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import net.jxta.impl.util.CacheEntry;
+import net.jxta.impl.util.CacheEntryListener;
+
+/**
+ * A concurrent cache using the W-TinyLFU policy.
+ *
+ * <p/>New entries enter a small LRU window. Entries leaving the window are
+ * candidates for the main space, a segmented LRU made of a probation and a
+ * protected segment. When the cache is full a candidate is only admitted if
+ * a frequency sketch says it has been used more often than the entry it
+ * would replace, which keeps entries seen once, such as those of a scan,
+ * from flushing the entries which are used repeatedly.
+ *
+ * <p/>Lookups never lock: they read a concurrent map and record the access
+ * in a lossy ring buffer which is replayed against the access queues by
+ * whichever thread next obtains the eviction lock. Writes take the eviction
+ * lock. The cache is bounded both in entries and in total weight.
+ *
+ * <p/>The listener is called for each entry evicted to make room, after the
+ * eviction lock has been released, on the thread of the write which caused
+ * the eviction. Lookups never evict.
+ */
+public class TinyLfuCache {
+
+    private final static int WINDOW = 0;
+    private final static int PROBATION = 1;
+    private final static int PROTECTED = 2;
+
+    /**
+     *  Size of the read buffer, a power of two.
+     */
+    private final static int READ_BUFFER_SIZE = 64;
+
+    /**
+     *  Reads are drained once every this many reads, a power of two.
+     */
+    private final static int DRAIN_THRESHOLD = 16;
+
+    private final ConcurrentHashMap data = new ConcurrentHashMap();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicReferenceArray readBuffer = new AtomicReferenceArray(READ_BUFFER_SIZE);
+    private final AtomicLong readCount = new AtomicLong();
+
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final FrequencySketch sketch;
+    private final CacheEntryListener listener;
+
+    // guarded by evictionLock
+    private int maxEntries;
+    private long maxWeight;
+    private int windowMax;
+    private int protectedMax;
+    private int windowCount = 0;
+    private int protectedCount = 0;
+
+    private volatile int size = 0;
+    private volatile long weight = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     *  Constructor for the TinyLfuCache object
+     *
+     *@param  maxEntries  maximum number of entries
+     *@param  maxWeight   maximum total weight of the entries
+     *@param  listener    notified of the entries evicted to make room, may be
+     *                    null
+     */
+    public TinyLfuCache(int maxEntries, long maxWeight, CacheEntryListener listener) {
+        this.listener = listener;
+        this.sketch = new FrequencySketch(maxEntries);
+        setBounds(maxEntries, maxWeight);
+    }
+
+    /**
+     *  Changes the bounds of the cache, evicting entries if it is now over
+     *  either of them.
+     *
+     *@param  maxEntries  maximum number of entries
+     *@param  maxWeight   maximum total weight of the entries
+     */
+    public void setLimits(int maxEntries, long maxWeight) {
+        List evicted = new ArrayList();
+        evictionLock.lock();
+        try {
+            setBounds(maxEntries, maxWeight);
+            sketch.ensureCapacity(maxEntries);
+            evict(null, evicted);
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    private void setBounds(int maxEntries, long maxWeight) {
+        this.maxEntries = maxEntries;
+        this.maxWeight = maxWeight;
+        windowMax = Math.max(1, maxEntries / 100);
+        protectedMax = Math.max(1, (maxEntries - windowMax) * 4 / 5);
+    }
+
+    /**
+     *  returns the number of elements currently in cache
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *  returns the total weight of the elements currently in cache
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    /**
+     *  returns the number of successful lookups
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     *  returns the number of unsuccessful lookups
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     *  returns the number of entries evicted to make room
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     *  returns true if the key is in cache, without recording an access
+     *
+     *@param  key  key
+     *@return      true if the key is in cache
+     */
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    /**
+     *  retrieve an object from cache
+     *
+     *@param  key  key
+     *@return      object or null
+     */
+    public Object get(Object key) {
+        Node node = (Node) data.get(key);
+        if (node == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        recordRead(node);
+        return node.value;
+    }
+
+    /**
+     *  puts an object into cache
+     *
+     *@param  key     key to store value by
+     *@param  value   object to insert
+     *@param  weight  the weight of the object
+     */
+    public void put(Object key, Object value, long weight) {
+        put(key, value, weight, false);
+    }
+
+    /**
+     *  puts an object into cache
+     *
+     *@param  key     key to store value by
+     *@param  value   object to insert
+     *@param  weight  the weight of the object
+     *@param  admit   if true a new entry skips the frequency test when it
+     *                leaves the window, and so replaces the oldest entry of
+     *                probation as it would in an LRU cache
+     */
+    public void put(Object key, Object value, long weight, boolean admit) {
+        List evicted = new ArrayList(1);
+        evictionLock.lock();
+        try {
+            drainReads();
+            Node node = (Node) data.get(key);
+            if (weight > maxWeight) {
+                // would flush the whole cache and then be evicted itself
+                if (node != null) {
+                    data.remove(key);
+                    unlink(node);
+                }
+                Node rejected = new Node(key, value, weight);
+                evicted.add(rejected);
+                evictions.incrementAndGet();
+            } else if (node != null) {
+                node.value = value;
+                this.weight += weight - node.weight;
+                node.weight = weight;
+                onAccess(node);
+                evict(null, evicted);
+            } else {
+                node = new Node(key, value, weight);
+                node.admit = admit;
+                data.put(key, node);
+                node.queue = WINDOW;
+                window.addLast(node);
+                windowCount++;
+                size++;
+                this.weight += weight;
+                sketch.increment(key);
+                evict(node, evicted);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     *  remove an object from cache
+     *
+     *@param  key  key
+     *@return      Object removed or null
+     */
+    public Object remove(Object key) {
+        evictionLock.lock();
+        try {
+            Node node = (Node) data.remove(key);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            return node.value;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     *  clear the cache
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            data.clear();
+            window.clear();
+            probation.clear();
+            protectedQueue.clear();
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                readBuffer.set(i, null);
+            }
+            windowCount = 0;
+            protectedCount = 0;
+            size = 0;
+            weight = 0;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     *  Returns up to <code>count</code> values, the protected ones first, most
+     *  recently used first within each segment.
+     *
+     *@param  count  the maximum number of values
+     *@return        Iterator of values
+     */
+    public Iterator iterator(int count) {
+        List list = new ArrayList(Math.min(count, size));
+        evictionLock.lock();
+        try {
+            drainReads();
+            protectedQueue.collect(list, count);
+            window.collect(list, count);
+            probation.collect(list, count);
+        } finally {
+            evictionLock.unlock();
+        }
+        return list.iterator();
+    }
+
+    private void recordRead(Node node) {
+        long index = readCount.getAndIncrement();
+        readBuffer.lazySet((int) (index & (READ_BUFFER_SIZE - 1)), node);
+        if ((index & (DRAIN_THRESHOLD - 1)) == 0 && evictionLock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     *  Replays the buffered reads. Called with the eviction lock held.
+     */
+    private void drainReads() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Node node = (Node) readBuffer.getAndSet(i, null);
+            if (node != null && node.queue >= 0) {
+                onAccess(node);
+            }
+        }
+    }
+
+    /**
+     *  Updates the queues for an access. Called with the eviction lock held.
+     */
+    private void onAccess(Node node) {
+        sketch.increment(node.key);
+        switch (node.queue) {
+        case WINDOW:
+            window.moveToLast(node);
+            break;
+        case PROBATION:
+            probation.remove(node);
+            node.queue = PROTECTED;
+            protectedQueue.addLast(node);
+            protectedCount++;
+            while (protectedCount > protectedMax) {
+                Node demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                protectedCount--;
+                demoted.queue = PROBATION;
+                probation.addLast(demoted);
+            }
+            break;
+        case PROTECTED:
+            protectedQueue.moveToLast(node);
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     *  Moves the window overflow to probation and evicts until the cache is
+     *  within its bounds. Called with the eviction lock held.
+     */
+    private void evict(Node added, List evicted) {
+        Node candidate = null;
+        while (windowCount > windowMax) {
+            Node node = window.first();
+            window.remove(node);
+            windowCount--;
+            node.queue = PROBATION;
+            probation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (size > maxEntries || weight > maxWeight) {
+            Node victim = probation.first();
+            if (victim == null) {
+                victim = protectedQueue.first();
+            }
+            if (victim == null) {
+                victim = window.first();
+            }
+            if (victim == null) {
+                break;
+            }
+
+            Node loser = victim;
+            if (candidate != null && candidate != victim && victim.queue == PROBATION) {
+                // the victim is older than every candidate: admit the
+                // candidate only if it is the more popular of the two, or
+                // was put with admit.
+                if (!candidate.admit && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                    loser = candidate;
+                }
+            }
+            if (loser == candidate) {
+                candidate = candidate.next;
+            }
+            data.remove(loser.key);
+            unlink(loser);
+            evictions.incrementAndGet();
+            evicted.add(loser);
+        }
+    }
+
+    /**
+     *  Removes a node from its queue. Called with the eviction lock held.
+     */
+    private void unlink(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+            window.remove(node);
+            windowCount--;
+            break;
+        case PROBATION:
+            probation.remove(node);
+            break;
+        case PROTECTED:
+            protectedQueue.remove(node);
+            protectedCount--;
+            break;
+        default:
+            return;
+        }
+        node.queue = -1;
+        size--;
+        weight -= node.weight;
+    }
+
+    private void notifyEvicted(List evicted) {
+        if (listener == null) {
+            return;
+        }
+        for (int i = 0; i < evicted.size(); i++) {
+            listener.purged((CacheEntry) evicted.get(i));
+        }
+    }
+
+    /**
+     *  A cache entry, linked in one of the access queues.
+     */
+    private static final class Node implements CacheEntry {
+        final Object key;
+        volatile Object value;
+        long weight;
+
+        /**
+         *  The queue holding the node or -1 once it is removed.
+         */
+        volatile int queue = -1;
+
+        /**
+         *  True if the node bypasses the admission test. Guarded by the
+         *  eviction lock.
+         */
+        boolean admit = false;
+        Node prev;
+        Node next;
+
+        Node(Object key, Object value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object getKey() {
+            return key;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    /**
+     *  A doubly linked list of nodes, least recently used first.
+     */
+    private static final class AccessQueue {
+        private Node head = null;
+        private Node tail = null;
+
+        Node first() {
+            return head;
+        }
+
+        void addLast(Node node) {
+            node.next = null;
+            node.prev = tail;
+            if (tail != null) {
+                tail.next = node;
+            } else {
+                head = node;
+            }
+            tail = node;
+        }
+
+        void remove(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToLast(Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        void collect(List values, int count) {
+            for (Node node = tail; node != null && values.size() < count; node = node.prev) {
+                values.add(node.value);
+            }
+        }
+
+        void clear() {
+            head = null;
+            tail = null;
+        }
+    }
+}
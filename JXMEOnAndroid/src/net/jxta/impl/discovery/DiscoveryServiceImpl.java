@@ -55,13 +55,14 @@
 package net.jxta.impl.discovery;
 
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringReader;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.MissingResourceException;
@@ -73,6 +74,7 @@ import net.jxta.credential.Credential;
 import net.jxta.discovery.DiscoveryEvent;
 import net.jxta.discovery.DiscoveryListener;
 import net.jxta.discovery.DiscoveryService;
+import net.jxta.discovery.IncrementalDiscoveryListener;
 import net.jxta.document.Advertisement;
 import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.MimeMediaType;
@@ -85,8 +87,11 @@ import net.jxta.endpoint.OutgoingMessageEvent;
 import net.jxta.exception.PeerGroupException;
 import net.jxta.id.ID;
 import net.jxta.id.IDFactory;
+import net.jxta.impl.cm.BloomFilter;
 import net.jxta.impl.cm.Cm;
 import net.jxta.impl.cm.Srdi;
+import net.jxta.impl.cm.SrdiIndex;
+import net.jxta.impl.config.Config;
 import net.jxta.impl.peergroup.StdPeerGroup;
 import net.jxta.impl.protocol.DiscoveryConfigAdv;
 import net.jxta.impl.protocol.DiscoveryQuery;
@@ -147,6 +152,7 @@ import org.apache.log4j.Logger;
 public class DiscoveryServiceImpl implements DiscoveryService,
             QueryHandler,
             RendezvousListener,
+            SrdiHandler,
     Srdi.SrdiInterface {
 
     /**
@@ -174,6 +180,18 @@ public class DiscoveryServiceImpl implements DiscoveryService,
      */
     private final int MAX_RESPONSES = 50;
 
+    /**
+     *  The number of entries cached per directory when a byte limit but no
+     *  entry limit is configured.
+     */
+    private final static int DEFAULT_CACHE_ENTRIES = 50;
+
+    /**
+     *  In summary mode, the number of pending deltas above which a summary
+     *  is pushed instead of the deltas.
+     */
+    private final static int SUMMARY_DELTAS = 256;
+
     private PeerGroup group = null;
 
     /**
@@ -199,14 +217,14 @@ public class DiscoveryServiceImpl implements DiscoveryService,
     private Set listeners = new HashSet();
 
     /**
-     *  The table of discovery query listeners.
-     *
-     *  <p/><ul>
-     *      <li>Keys are the query ID as an {@link java.lang.Integer}</li>
-     *      <li>Values are <@link net.jxta.discovery.DiscoveryListener}</li>
-     *  </ul>
+     *  The remote queries in flight and their listeners.
      */
-    private Hashtable listenerTable = new Hashtable();
+    private final QueryCoalescer queries = new QueryCoalescer();
+
+    /**
+     *  Calls the listeners off the thread which received the response.
+     */
+    private volatile ListenerDispatcher dispatcher = null;
 
     private Object checkPeerAdvLock = new String("Check/Update PeerAdvertisement Lock");
     private PeerAdvertisement lastPeerAdv = null;
@@ -214,11 +232,26 @@ public class DiscoveryServiceImpl implements DiscoveryService,
 
     private boolean isRdv = false;
     private boolean alwaysUseReplicaPeer = false;
+    private boolean persistentCache = false;
+    private boolean srdiSummary = false;
+    private DiscoveryConfigAdv discoConfigAdv = null;
     private Credential credential = null;
     private StructuredDocument credentialDoc = null;
     private Srdi srdi = null;
     private Thread srdiThread = null;
 
+    /**
+     *  The SRDI entries pushed by our edge peers, only while we are a
+     *  rendezvous.
+     */
+    private volatile SrdiIndex srdiIndex = null;
+
+    /**
+     *  The admission control of the queries, only while we are a
+     *  rendezvous.
+     */
+    private volatile QueryAdmission admission = null;
+
     private long initialDelay = 60 * TimeUtils.ASECOND;
     private long runInterval = 30 * TimeUtils.ASECOND;
 
@@ -263,15 +296,42 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                                        int threshold,
                                        DiscoveryListener listener) {
 
-        int myQueryID = nextQid();
+        return getRemoteAdvertisements(peer, type, attribute, value, threshold, null, listener);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public int getRemoteAdvertisements(String peer,
+                                       int type,
+                                       String attribute,
+                                       String value,
+                                       int threshold,
+                                       String cursor,
+                                       DiscoveryListener listener) {
+
         if (resolver == null) {
             // warn about calling the service before it started
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("resolver has not started yet, query discarded.");
             }
-            return myQueryID;
+            return nextQid();
         }
 
+        String key = QueryCoalescer.keyOf(peer, type, attribute, value, cursor);
+        QueryCoalescer.Joined joined = queries.join(key, threshold, listener, System.currentTimeMillis());
+        if (joined != null) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Joined query #" + joined.queryID + " for " + threshold + " " + dirname[type] + " advs");
+            }
+            for (int i = 0; i < joined.replay.length; i++) {
+                dispatcher.event(listener, joined.replay[i]);
+            }
+            return joined.queryID;
+        }
+
+        int myQueryID = nextQid();
+
         if (LOG.isEnabledFor(Level.DEBUG)) {
             StringBuffer query = new StringBuffer("Sending query#" + myQueryID + " for " + threshold + " " + dirname[type] + " advs");
 
@@ -293,10 +353,9 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         dquery.setAttr(attribute);
         dquery.setValue(value);
         dquery.setThreshold(threshold);
+        dquery.setCursor(cursor);
 
-        if (listener != null) {
-            listenerTable.put(new Integer(myQueryID), listener);
-        }
+        queries.sent(key, myQueryID, threshold, listener, t0);
 
         ResolverQuery query = new ResolverQuery(handlerName, credentialDoc, localPeerId, dquery.toString(), myQueryID);
         resolver.sendQuery(peer, query);
@@ -338,7 +397,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             }
             LOG.debug(query);
         }
-        return search(type, attribute, value, Integer.MAX_VALUE, false, null).elements();
+        return search(type, attribute, value, Integer.MAX_VALUE, false, null, null, null).elements();
     }
 
     /**
@@ -370,9 +429,11 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             }
 
             if (adv instanceof DiscoveryConfigAdv) {
-                DiscoveryConfigAdv discoConfigAdv = (DiscoveryConfigAdv) adv;
+                discoConfigAdv = (DiscoveryConfigAdv) adv;
 
                 alwaysUseReplicaPeer = discoConfigAdv.getForwardAlwaysReplica();
+                persistentCache = discoConfigAdv.getPersistentCache();
+                srdiSummary = discoConfigAdv.getSrdiSummary();
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     if (alwaysUseReplicaPeer) {
                         LOG.debug("alwaysUseReplicaPeer set to true via service parameters");
@@ -381,7 +442,29 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             }
         }
 
+        dispatcher = new ListenerDispatcher(group.getHomeThreadGroup(), ListenerDispatcher.DROP_OLDEST, ListenerDispatcher.DEFAULT_LIMIT);
+
         cm = ((StdPeerGroup) group).getCacheManager();
+        // limits first, so that a warm start loads as much as they allow
+        if (discoConfigAdv != null) {
+            for (int i = 0; i < dirname.length; i++) {
+                int entries = discoConfigAdv.getCacheEntries(dirname[i]);
+                long bytes = discoConfigAdv.getCacheBytes(dirname[i]);
+                if (entries > 0 || bytes > 0) {
+                    cm.setLimits(dirname[i], (entries > 0) ? entries : DEFAULT_CACHE_ENTRIES, (bytes > 0) ? bytes : Long.MAX_VALUE);
+                }
+            }
+        }
+        if (persistentCache) {
+            File storeHome = new File(new File(Config.JXTA_HOME, "cm"), group.getPeerGroupID().getUniqueValue().toString());
+            try {
+                cm.openStore(storeHome);
+            } catch (IOException failed) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Failed to open cache store " + storeHome + ", caching in memory only", failed);
+                }
+            }
+        }
         cm.setTrackDeltas(true);
 
         // Initialize the peer adv tracking.
@@ -405,6 +488,8 @@ public class DiscoveryServiceImpl implements DiscoveryService,
 
             configInfo.append("\n\tConfiguration :");
             configInfo.append("\n\t\tAlways Use ReplicaPeer : " + alwaysUseReplicaPeer);
+            configInfo.append("\n\t\tPersistent Cache : " + persistentCache);
+            configInfo.append("\n\t\tSRDI Summary : " + srdiSummary);
 
             LOG.info(configInfo);
         }
@@ -470,7 +555,11 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             }
         }
 */
-        beEdge();
+        if (rendezvous.isRendezVous()) {
+            beRdv();
+        } else {
+            beEdge();
+        }
         rendezvous.addListener(this);
 
         started = true;
@@ -500,6 +589,9 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             LOG.debug("failed to unregister discovery from resolver.");
         }
 
+        stopSrdiIndex();
+        dispatcher.stop();
+
         // stop the DiscoverySrdiThread
         if (srdiThread != null) {
             srdi.stop();
@@ -595,6 +687,25 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                         long lifetime,
                         long expiration) throws IOException {
 
+        publish(adv, lifetime, expiration, true);
+    }
+
+    /**
+     *  Saves an advertisement in the cache.
+     *
+     *  @param  adv         the advertisement
+     *  @param  lifetime    its lifetime
+     *  @param  expiration  its expiration
+     *  @param  admit       true if published locally, so that it is kept
+     *  however popular the advertisements it displaces. Those of responses
+     *  are only kept if popular enough.
+     *  @throws IOException if the advertisement could not be saved
+     */
+    private void publish(Advertisement adv,
+                         long lifetime,
+                         long expiration,
+                         boolean admit) throws IOException {
+
         ID advID = null;
         String advName = null;
         int type = getAdvType(adv);
@@ -648,7 +759,11 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         }
 
         // save it
-        cm.save(dirname[type], advName, adv, lifetime, expiration);
+        if (admit) {
+            cm.save(dirname[type], advName, adv, lifetime, expiration);
+        } else {
+            cm.save(dirname[type], advName, adv, lifetime, expiration, false);
+        }
     }
 
     /**
@@ -687,13 +802,25 @@ public class DiscoveryServiceImpl implements DiscoveryService,
     public void processResponse(ResolverResponseMsg response, EndpointAddress srcAddress) {
 
         long t0 = System.currentTimeMillis();
+        final int queryID = response.getQueryId();
         DiscoveryResponse res;
 
-        try {
-            StructuredTextDocument asDoc = (StructuredTextDocument)
-                                           StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(response.getResponse()));
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Processing responses for query #" + queryID);
+        }
 
-            res = new DiscoveryResponse(asDoc);
+        // only the listeners present when the response arrives get its
+        // advertisements one at a time.
+        final IncrementalDiscoveryListener[] incremental = getIncrementalListeners(queryID);
+        final int[] count = new int[1];
+
+        try {
+            res = DiscoveryResponse.read(response.getResponse(), new DiscoveryResponse.ResponseHandler() {
+                      public void response(DiscoveryResponse res, String text, long exp) {
+                          count[0]++;
+                          processAdvertisement(queryID, text, exp, incremental);
+                      }
+                  });
         } catch (Exception e) {
             // we don't understand this msg, let's skip it
             if (LOG.isEnabledFor(Level.WARN)) {
@@ -702,45 +829,20 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             return;
         }
 
-        Advertisement adv;
-        if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("Processing responses for query #" + response.getQueryId());
-        }
-        Enumeration en = res.getAdvertisements();
-        Enumeration exps = res.getExpirations();
-
-        long exp;
-
-        if (en != null) {
-            while (en.hasMoreElements()) {
-                adv = (Advertisement) en.nextElement();
-                exp = ((Long) exps.nextElement()).longValue();
-
-                if (exp > 0 && adv != null) {
-                    try {
-                        publish(adv, exp, exp);
-                    } catch (Exception e) {
-                        if (LOG.isEnabledFor(Level.WARN)) {
-                            LOG.warn("Error publishing Advertisement", e);
-                        }
-                    }
-                }
-            }
-        } else {
-            if (LOG.isEnabledFor(Level.DEBUG)) {
+        if (count[0] == 0) {
+            PeerAdvertisement peerAdv = res.getPeerAdvertisement();
+            if ((peerAdv != null) && (res.getDiscoveryType() == PEER)) {
+                // the only response is the peerAdv
+                processAdvertisement(queryID, peerAdv, DEFAULT_EXPIRATION, incremental);
+            } else if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Received empty responses");
             }
         }
 
         DiscoveryEvent newevent = new DiscoveryEvent(srcAddress, res, response.getQueryId());
-        DiscoveryListener dl = (DiscoveryListener)
-                               listenerTable.get(new Integer(response.getQueryId()));
-        if (dl != null) {
-            try {
-                dl.discoveryEvent(new DiscoveryEvent(srcAddress, res, response.getQueryId()));
-            } catch (Throwable all) {
-                LOG.fatal("Uncaught Throwable in listener :" + Thread.currentThread().getName(), all);
-            }
+        DiscoveryListener[] waiting = queries.responded(newevent);
+        for (int i = 0; i < waiting.length; i++) {
+            dispatcher.event(waiting[i], newevent);
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -748,24 +850,94 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         }
 
         // are there any registered discovery listeners,
-        // generate the event and callback.
+        // generate the event and queue the callback.
         t0 = System.currentTimeMillis();
 
-        DiscoveryListener[] allListeners = (DiscoveryListener[]) listeners.toArray(new DiscoveryListener[0]);
+        DiscoveryListener[] allListeners;
+        synchronized (this) {
+            allListeners = (DiscoveryListener[]) listeners.toArray(new DiscoveryListener[0]);
+        }
         for (int eachListener = 0; eachListener < allListeners.length; eachListener++) {
+            dispatcher.event(allListeners[eachListener], newevent);
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Queued all listenters to query #" + response.getQueryId() + " in :" + (System.currentTimeMillis() - t0));
+        }
+    }
+
+    /**
+     *  Returns the listeners of a query, then the service listeners, which
+     *  want the advertisements of its responses one at a time.
+     *
+     *  @param  queryID  the query ID
+     *  @return  the listeners, possibly empty
+     */
+    private IncrementalDiscoveryListener[] getIncrementalListeners(int queryID) {
+
+        List result = new ArrayList();
+        DiscoveryListener[] waiting = queries.getListeners(queryID);
+        for (int i = 0; i < waiting.length; i++) {
+            if (waiting[i] instanceof IncrementalDiscoveryListener) {
+                result.add(waiting[i]);
+            }
+        }
+        DiscoveryListener[] allListeners;
+        synchronized (this) {
+            allListeners = (DiscoveryListener[]) listeners.toArray(new DiscoveryListener[0]);
+        }
+        for (int i = 0; i < allListeners.length; i++) {
+            if ((allListeners[i] instanceof IncrementalDiscoveryListener) && !result.contains(allListeners[i])) {
+                result.add(allListeners[i]);
+            }
+        }
+        return (IncrementalDiscoveryListener[]) result.toArray(new IncrementalDiscoveryListener[result.size()]);
+    }
+
+    /**
+     *  Parses an advertisement of a response and processes it.
+     *
+     *  @param  queryID      the query ID of the response
+     *  @param  text         the advertisement
+     *  @param  exp          its expiration
+     *  @param  incremental  the listeners to hand it to
+     */
+    private void processAdvertisement(int queryID, String text, long exp, IncrementalDiscoveryListener[] incremental) {
+
+        Advertisement adv;
+        try {
+            adv = AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, new StringReader(text));
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("No advertisements in response element", e);
+            }
+            return;
+        }
+        processAdvertisement(queryID, adv, exp, incremental);
+    }
+
+    /**
+     *  Publishes an advertisement of a response and hands it to the
+     *  incremental listeners.
+     *
+     *  @param  queryID      the query ID of the response
+     *  @param  adv          the advertisement
+     *  @param  exp          its expiration
+     *  @param  incremental  the listeners to hand it to
+     */
+    private void processAdvertisement(int queryID, Advertisement adv, long exp, IncrementalDiscoveryListener[] incremental) {
+
+        if (exp > 0) {
             try {
-                allListeners[eachListener].discoveryEvent(newevent);
-            } catch (Throwable all) {
+                publish(adv, exp, exp, false);
+            } catch (Exception e) {
                 if (LOG.isEnabledFor(Level.WARN)) {
-                    LOG.warn(
-                        "Uncaught Throwable in listener (" + allListeners[eachListener].getClass().getName() + ") :"
-                        + Thread.currentThread().getName(),
-                        all);
+                    LOG.warn("Error publishing Advertisement", e);
                 }
             }
         }
-        if (LOG.isEnabledFor(Level.DEBUG)) {
-            LOG.debug("Called all listenters to query #" + response.getQueryId() + " in :" + (System.currentTimeMillis() - t0));
+
+        for (int i = 0; i < incremental.length; i++) {
+            dispatcher.advertisement(incremental[i], queryID, adv, exp);
         }
     }
 
@@ -792,9 +964,22 @@ public class DiscoveryServiceImpl implements DiscoveryService,
 
         Vector results = null;
         Vector expirations = new Vector();
+        Vector keys = new Vector();
+        String cursor = null;
         DiscoveryQuery dq;
         long t0 = System.currentTimeMillis();
 
+        // a rendezvous sheds what a source sends beyond its share, when
+        // possible before parsing the query
+        QueryAdmission admission = this.admission;
+        String source = query.getSrc();
+        if ((admission != null) && (source != null) && !admission.mayAdmit(source, isPriorityQuery(query.getQuery()), t0)) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Shed query #" + query.getQueryId() + " from " + source);
+            }
+            return ResolverService.OK;
+        }
+
         try {
             StructuredTextDocument asDoc = (StructuredTextDocument)
                                            StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(query.getQuery()));
@@ -819,13 +1004,22 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             LOG.debug("Got a " + dirname[dq.getDiscoveryType()] + " query #" + query.getQueryId() + " query :" + dq.getAttr() + " = " + dq.getValue());
         }
 
+        // our own peer adv is cheap to send, it has priority
+        if ((admission != null) && (source != null)
+                && !admission.admit(source, (dq.getDiscoveryType() == PEER) && (0 == dq.getThreshold()), t0)) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Shed query #" + query.getQueryId() + " from " + source);
+            }
+            return ResolverService.OK;
+        }
+
         int thresh = Math.min(dq.getThreshold(), MAX_RESPONSES);
 
         if ((dq.getDiscoveryType() == PEER) && (0 == dq.getThreshold())) {
             results = new Vector();
             results.add(group.getPeerAdvertisement().toString());
             expirations.add(new Long(DiscoveryService.DEFAULT_EXPIRATION));
-            respond(query, dq, results, expirations);
+            respond(query, dq, results, expirations, null);
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Responding to query #" + query.getQueryId() + " in :" + (System.currentTimeMillis() - t0));
             }
@@ -834,7 +1028,13 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("start local search query" + dq.getAttr() + " " + dq.getValue());
             }
-            results = search(dq.getDiscoveryType(), dq.getAttr(), dq.getValue(), thresh, true, expirations);
+            // one more than a page tells whether there is a next page
+            results = search(dq.getDiscoveryType(), dq.getAttr(), dq.getValue(), thresh + 1, true, expirations, dq.getCursor(), keys);
+            if (results.size() > thresh) {
+                results.setSize(thresh);
+                expirations.setSize(thresh);
+                cursor = (String) keys.get(thresh - 1);
+            }
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("start local search pruned " + results.size());
             }
@@ -844,23 +1044,29 @@ public class DiscoveryServiceImpl implements DiscoveryService,
          *  threshold==0 and type==PEER is a special case. In this case we are
          *  responding for the purpose of providing our own adv only.
          */
-        if (!results.isEmpty()) {
+        boolean answered = !results.isEmpty();
+        if (answered) {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Responding to " + dirname[dq.getDiscoveryType()] + " Query : " + dq.getAttr() + " = " + dq.getValue());
             }
-            respond(query, dq, results, expirations);
+            respond(query, dq, results, expirations, cursor);
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Responded to query #" + query.getQueryId() + " in :" + (System.currentTimeMillis() - t0));
             }
+        }
+
+        // a rendezvous sends what it could not answer to the publishers
+        if ((results.size() < thresh) && forwardToPublishers(query, dq, thresh - results.size())) {
             return ResolverService.OK;
         }
-        return ResolverService.Repropagate;
+        return answered ? ResolverService.OK : ResolverService.Repropagate;
     }
 
     private void respond(ResolverQueryMsg query,
                          DiscoveryQuery dq,
                          Vector results,
-                         Vector expirations) {
+                         Vector expirations,
+                         String cursor) {
 
         ResolverResponseMsg response;
         DiscoveryResponse dresponse = new DiscoveryResponse();
@@ -871,6 +1077,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         dresponse.setQueryValue(dq.getValue());
         dresponse.setResponses(results);
         dresponse.setExpirations(expirations);
+        dresponse.setCursor(cursor);
 
         // create a response from the query
         response = query.makeResponse();
@@ -897,15 +1104,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
      */
     public synchronized boolean removeDiscoveryListener(DiscoveryListener listener) {
 
-        Iterator e = listenerTable.keySet().iterator();
-
-        while (e.hasNext()) {
-            Object key = e.next();
-
-            if (listenerTable.get(key) == listener) {
-                e.remove();
-            }
-        }
+        queries.removeListener(listener);
 
         return (listeners.remove(listener));
     }
@@ -950,14 +1149,18 @@ public class DiscoveryServiceImpl implements DiscoveryService,
      *      this parameter are null (don't care), or exact element name in the
      *      advertisement of interest (e.g. "Name")
      * @param  value        Value
-     * @return              vector of results either as docs, or Strings
+     * @param  after        the key after which to start, or null
+     * @param  keys         if not null, receives the keys of the results
+     * @return              vector of results either as docs, or SerializedAdvertisements
      */
     private Vector search(int type,
                           String attr,
                           String value,
                           int threshold,
                           boolean bytes,
-                          Vector expirations) {
+                          Vector expirations,
+                          String after,
+                          Vector keys) {
 
         if( type == PEER ) {
             checkUpdatePeerAdv();
@@ -978,13 +1181,13 @@ public class DiscoveryServiceImpl implements DiscoveryService,
                 LOG.debug("Searching for " + threshold + " entries of type : " + dirname[type]);
             }
             // a discovery query with a specific search criteria.
-            results = cm.search(dirname[type], attr, value, threshold, expirations);
+            results = cm.search(dirname[type], attr, value, threshold, expirations, bytes, after, keys);
         } else {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Getting " + threshold + " entries of type : " + dirname[type]);
             }
             // Returning any entry that exists
-            results = cm.getRecords(dirname[type], threshold, expirations, bytes);
+            results = cm.getRecords(dirname[type], threshold, expirations, bytes, after, keys);
         }
 
         if (LOG.isEnabledFor(Level.DEBUG)) {
@@ -1095,10 +1298,212 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         return cm.getLifetime(dirname[type], advName);
     }
 
+    /**
+     *  Returns whether the text of a query looks like a priority query, a
+     *  query for our own peer advertisement, without parsing it. The answer
+     *  is only a hint: admission is decided again once the query is parsed.
+     *
+     *  @param  query  the query document
+     *  @return  true if the query appears to be a priority query
+     */
+    private static boolean isPriorityQuery(String query) {
+        return (query != null)
+               && (query.indexOf("<Type>" + PEER + "</Type>") >= 0)
+               && (query.indexOf("<Threshold>0</Threshold>") >= 0);
+    }
+
+    /**
+     *  Returns the number of queries admitted while we are a rendezvous.
+     *
+     *  @return the number of queries admitted.
+     */
+    public long getQueriesAdmittedCount() {
+        QueryAdmission current = admission;
+        return (current == null) ? 0 : current.getAdmittedCount();
+    }
+
+    /**
+     *  Returns the number of queries shed while we are a rendezvous.
+     *
+     *  @return the number of queries shed.
+     */
+    public long getQueriesShedCount() {
+        QueryAdmission current = admission;
+        return (current == null) ? 0 : current.getShedCount();
+    }
+
+    /**
+     *  Returns the number of queries shed before being parsed.
+     *
+     *  @return the number of queries shed before being parsed.
+     */
+    public long getQueriesShedEarlyCount() {
+        QueryAdmission current = admission;
+        return (current == null) ? 0 : current.getShedEarlyCount();
+    }
+
+    /**
+     *  Returns the number of priority queries shed.
+     *
+     *  @return the number of priority queries shed.
+     */
+    public long getQueriesShedPriorityCount() {
+        QueryAdmission current = admission;
+        return (current == null) ? 0 : current.getShedPriorityCount();
+    }
+
+    /**
+     *  Returns the number of events and advertisements delivered to the
+     *  listeners.
+     *
+     *  @return the number of deliveries made.
+     */
+    public long getListenerDeliveredCount() {
+        ListenerDispatcher current = dispatcher;
+        return (current == null) ? 0 : current.getDeliveredCount();
+    }
+
+    /**
+     *  Returns the number of deliveries to the listeners dropped because a
+     *  listener's queue was full.
+     *
+     *  @return the number of deliveries dropped.
+     */
+    public long getListenerDroppedCount() {
+        ListenerDispatcher current = dispatcher;
+        return (current == null) ? 0 : current.getDroppedCount();
+    }
+
+    /**
+     *  Returns the number of advertisements replaced by a newer copy while
+     *  queued for a listener.
+     *
+     *  @return the number of coalesced deliveries.
+     */
+    public long getListenerCoalescedCount() {
+        ListenerDispatcher current = dispatcher;
+        return (current == null) ? 0 : current.getCoalescedCount();
+    }
+
+    /**
+     *  Returns the average time a delivery waited for its listener.
+     *
+     *  @return the average delivery lag in milliseconds.
+     */
+    public long getListenerAverageLag() {
+        ListenerDispatcher current = dispatcher;
+        return (current == null) ? 0 : current.getAverageLag();
+    }
+
+    /**
+     *  Returns the longest time a delivery waited for its listener.
+     *
+     *  @return the maximum delivery lag in milliseconds.
+     */
+    public long getListenerMaxLag() {
+        ListenerDispatcher current = dispatcher;
+        return (current == null) ? 0 : current.getMaxLag();
+    }
+
     /**
      *  {@inheritDoc}
      */
-    public void messageSendFailed(PeerID peerid, OutgoingMessageEvent e) {}
+    public void messageSendFailed(PeerID peerid, OutgoingMessageEvent e) {
+        SrdiIndex index = srdiIndex;
+        if (index != null) {
+            index.remove(peerid);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Only a rendezvous keeps the entries pushed to it.
+     */
+    public boolean processSrdi(ResolverSrdiMsg message) {
+        SrdiIndex index = srdiIndex;
+        if (index == null) {
+            return false;
+        }
+
+        SrdiMessage srdiMsg;
+        try {
+            StructuredTextDocument asDoc = (StructuredTextDocument)
+                                           StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(message.getPayload()));
+            srdiMsg = new SrdiMessageImpl(asDoc);
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Malformed SRDI message : ", e);
+            }
+            return false;
+        }
+
+        PeerID pid = srdiMsg.getPeerID();
+        if (srdiMsg.getSummary() != null) {
+            try {
+                index.addSummary(srdiMsg.getPrimaryKey(), pid, BloomFilter.decode(srdiMsg.getSummary()), srdiMsg.getSummaryExpiration());
+            } catch (IOException e) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Malformed SRDI summary from " + pid, e);
+                }
+            }
+        }
+        Iterator eachEntry = srdiMsg.getEntries().iterator();
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+            index.add(srdiMsg.getPrimaryKey(), entry.key, entry.value, pid, entry.expiration);
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Indexed " + srdiMsg.getEntries().size() + " " + srdiMsg.getPrimaryKey() + " entries from " + pid);
+        }
+        Srdi current = srdi;
+        if (current != null) {
+            current.replicateEntries(srdiMsg);
+        }
+        return true;
+    }
+
+    /**
+     *  Forwards a query to the peers which published matching entries, if
+     *  we are a rendezvous and know of any. Otherwise, or always if so
+     *  configured, an exact query is also forwarded to the replica peer of
+     *  its key, which holds the entries of the publishers if they pushed to
+     *  another rendezvous.
+     *
+     *  @return true if the query was forwarded
+     */
+    private boolean forwardToPublishers(ResolverQueryMsg query, DiscoveryQuery dq, int threshold) {
+        SrdiIndex index = srdiIndex;
+        if (index == null || dq.getAttr() == null || srdi == null) {
+            return false;
+        }
+        String pKey = dirname[dq.getDiscoveryType()];
+        Vector peers = index.query(pKey, dq.getAttr(), dq.getValue(), threshold);
+
+        if ((peers.isEmpty() || alwaysUseReplicaPeer) && (dq.getValue() != null) && (dq.getValue().indexOf('*') < 0)) {
+            PeerID replica = srdi.getReplicaPeer(pKey, dq.getAttr(), dq.getValue());
+            if (replica != null && !peers.contains(replica)) {
+                peers.add(replica);
+            }
+        }
+
+        // never back to ourself nor to the querying peer
+        Iterator eachPeer = peers.iterator();
+        while (eachPeer.hasNext()) {
+            PeerID peer = (PeerID) eachPeer.next();
+            if (peer.equals(group.getPeerID()) || peer.toString().equals(query.getSrc())) {
+                eachPeer.remove();
+            }
+        }
+        if (peers.isEmpty()) {
+            return false;
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Forwarding query #" + query.getQueryId() + " to " + peers.size() + " publishers");
+        }
+        srdi.forwardQuery(peers, query);
+        return true;
+    }
 
     /**
      *  {@inheritDoc}
@@ -1117,6 +1522,11 @@ public class DiscoveryServiceImpl implements DiscoveryService,
      */
     protected void pushSrdi(ID peer, int type, boolean all) {
 
+        if (srdiSummary && (all || cm.getDeltaCount(dirname[type]) > SUMMARY_DELTAS)) {
+            pushSummary(peer, type);
+            return;
+        }
+
         List entries;
 
         if (all) {
@@ -1148,6 +1558,39 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         }
     }
 
+    /**
+     *  Pushes a summary of all the entries of a type in place of the
+     *  entries themselves. It expires with the last of them.
+     */
+    private void pushSummary(ID peer, int type) {
+
+        List entries = cm.getEntries(dirname[type], true);
+        if (entries.isEmpty()) {
+            return;
+        }
+
+        long expiration = 0;
+        Iterator eachEntry = entries.iterator();
+        while (eachEntry.hasNext()) {
+            expiration = Math.max(expiration, ((SrdiMessage.Entry) eachEntry.next()).expiration);
+        }
+
+        try {
+            BloomFilter filter = SrdiIndex.summarize(entries);
+            SrdiMessage srdiMsg = new SrdiMessageImpl(group.getPeerID(), 1, dirname[type], new ArrayList());
+            srdiMsg.setSummary(filter.encode(), expiration);
+
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Pushing summary of " + entries.size() + " entries of type " + dirname[type] + " (" + filter.getBits() + " bits)");
+            }
+            srdi.pushSrdi(peer, srdiMsg);
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Exception pushing SRDI summary", e);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1182,6 +1625,7 @@ public class DiscoveryServiceImpl implements DiscoveryService,
             break;
 
         case RendezvousEvent.BECAMERDV:
+            beRdv();
             break;
 
         case RendezvousEvent.BECAMEEDGE:
@@ -1255,25 +1699,76 @@ public class DiscoveryServiceImpl implements DiscoveryService,
         }
 
         isRdv = false;
+        admission = null;
+        stopSrdiIndex();
         if (rendezvous.getConnectedRendezVous().hasMoreElements()) {
             // if we have a rendezvous connection track deltas, otherwise wait
             // for a connect event to set this option
             cm.setTrackDeltas(true);
         }
 
+        startSrdi();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Switched to a Edge peer role.");
+        }
+    }
+
+    /**
+     * Change the behavior to be a Rendezvous Peer Discovery Service: keep
+     * the SRDI entries pushed by the edges and forward queries to the
+     * publishers.
+     */
+    private synchronized void beRdv() {
+
+        if (isRdv && srdiIndex != null) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("Already a Rendezvous peer -- No Switch is needed.");
+            }
+            return;
+        }
+
+        isRdv = true;
+        File home = null;
+        if (persistentCache) {
+            home = new File(new File(Config.JXTA_HOME, "cm"), group.getPeerGroupID().getUniqueValue().toString());
+        }
+        srdiIndex = new SrdiIndex(handlerName, home);
+        admission = new QueryAdmission();
+        resolver.registerSrdiHandler(handlerName, this);
+
+        // queries are forwarded through it
+        startSrdi();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Switched to a Rendezvous peer role.");
+        }
+    }
+
+    private void startSrdi() {
+        if (srdiThread != null) {
+            return;
+        }
+
         // Create a new SRDI
         srdi = new Srdi(group, handlerName, this, initialDelay, runInterval);
 
-        // only edge peers distribute srdi
+        // only edge peers distribute srdi, the thread idles while we are a
+        // rendezvous
         srdiThread = new Thread(group.getHomeThreadGroup(), srdi, "Discovery Srdi Thread");
         srdiThread.setDaemon(true);
         srdiThread.start();
         if (LOG.isEnabledFor(Level.DEBUG)) {
             LOG.debug("Started SRDIThread");
         }
+    }
 
-        if (LOG.isEnabledFor(Level.INFO)) {
-            LOG.info("Switched to a Edge peer role.");
+    private synchronized void stopSrdiIndex() {
+        if (srdiIndex == null) {
+            return;
         }
+        resolver.unregisterSrdiHandler(handlerName);
+        srdiIndex.stop();
+        srdiIndex = null;
     }
 }
@@ -0,0 +1,377 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.discovery;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.jxta.discovery.DiscoveryEvent;
+import net.jxta.discovery.DiscoveryListener;
+import net.jxta.discovery.IncrementalDiscoveryListener;
+import net.jxta.document.Advertisement;
+import net.jxta.id.ID;
+import net.jxta.impl.util.TimeUtils;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+/**
+ *  Calls the discovery listeners from a few shared threads rather than
+ *  from the thread which received the response, so that a slow listener
+ *  does not hold up the endpoint.
+ *
+ *  <p/>Each listener has its own queue, delivered in order by one thread at
+ *  a time. A queue holds at most <code>limit</code> deliveries; past that
+ *  the oldest or the newest is dropped, as per the policy. An advertisement
+ *  still queued for a listener is replaced, rather than queued again, when
+ *  the same query returns it again.
+ */
+final class ListenerDispatcher {
+
+    /**
+     *  Log4J Logger
+     */
+    private final static transient Logger LOG = Logger.getLogger(ListenerDispatcher.class.getName());
+
+    /**
+     *  When a queue is full, drop its oldest delivery.
+     */
+    static final int DROP_OLDEST = 0;
+
+    /**
+     *  When a queue is full, drop the new delivery.
+     */
+    static final int DROP_NEWEST = 1;
+
+    /**
+     *  The default maximum number of deliveries queued per listener.
+     */
+    static final int DEFAULT_LIMIT = 256;
+
+    /**
+     *  The number of dispatch threads.
+     */
+    static final int THREADS = 2;
+
+    /**
+     *  The number of deliveries made to a listener before letting the
+     *  others go.
+     */
+    private static final int BATCH = 16;
+
+    /**
+     *  The lag past which a listener is reported as slow.
+     */
+    static final long LAG_WARNING = 5 * TimeUtils.ASECOND;
+
+    /**
+     *  A call to a listener.
+     */
+    private static abstract class Delivery {
+        final long queued = System.currentTimeMillis();
+
+        /**
+         *  The key under which the delivery may be replaced, or null.
+         */
+        Object key = null;
+
+        abstract void deliver(DiscoveryListener listener);
+    }
+
+    private static final class EventDelivery extends Delivery {
+        final DiscoveryEvent event;
+
+        EventDelivery(DiscoveryEvent event) {
+            this.event = event;
+        }
+
+        void deliver(DiscoveryListener listener) {
+            listener.discoveryEvent(event);
+        }
+    }
+
+    private static final class AdvertisementDelivery extends Delivery {
+        final int queryID;
+        Advertisement adv;
+        long expiration;
+
+        AdvertisementDelivery(int queryID, Advertisement adv, long expiration) {
+            this.queryID = queryID;
+            this.adv = adv;
+            this.expiration = expiration;
+        }
+
+        void deliver(DiscoveryListener listener) {
+            ((IncrementalDiscoveryListener) listener).advertisementDiscovered(queryID, adv, expiration);
+        }
+    }
+
+    /**
+     *  The queue of a listener. It is scheduled on the executor while not
+     *  empty, and forgotten once drained.
+     */
+    private final class Mailbox implements Runnable {
+        final DiscoveryListener listener;
+        final LinkedList pending = new LinkedList();
+        final Map byKey = new HashMap();
+
+        Mailbox(DiscoveryListener listener) {
+            this.listener = listener;
+        }
+
+        public void run() {
+            for (int i = 0; i < BATCH; i++) {
+                Delivery next;
+                synchronized (ListenerDispatcher.this) {
+                    if (pending.isEmpty()) {
+                        mailboxes.remove(listener);
+                        return;
+                    }
+                    next = (Delivery) pending.removeFirst();
+                    if (next.key != null) {
+                        byKey.remove(next.key);
+                    }
+                }
+
+                long lag = System.currentTimeMillis() - next.queued;
+                try {
+                    next.deliver(listener);
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.WARN)) {
+                        LOG.warn("Uncaught Throwable in listener (" + listener.getClass().getName() + ") :"
+                                 + Thread.currentThread().getName(), all);
+                    }
+                }
+                delivered(listener, lag);
+            }
+            schedule(this);
+        }
+    }
+
+    /**
+     *  The queues of the listeners with deliveries pending.
+     */
+    private final Map mailboxes = new HashMap();
+
+    private final ExecutorService executor;
+    private final int policy;
+    private final int limit;
+
+    private long deliveredCount = 0;
+    private long droppedCount = 0;
+    private long coalescedCount = 0;
+    private long totalLag = 0;
+    private long maxLag = 0;
+
+    /**
+     *  @param  group   the thread group of the dispatch threads
+     *  @param  policy  {@link #DROP_OLDEST} or {@link #DROP_NEWEST}
+     *  @param  limit   the maximum number of deliveries queued per listener
+     */
+    ListenerDispatcher(final ThreadGroup group, int policy, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("queue limit must be greater than zero");
+        }
+        this.policy = policy;
+        this.limit = limit;
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(),
+                                          new ThreadFactory() {
+                                              private int count = 0;
+
+                                              public synchronized Thread newThread(Runnable r) {
+                                                  Thread thread = new Thread(group, r, "Discovery Listener Dispatch " + (++count));
+                                                  thread.setDaemon(true);
+                                                  return thread;
+                                              }
+                                          });
+    }
+
+    /**
+     *  Queues an event for a listener.
+     */
+    void event(DiscoveryListener listener, DiscoveryEvent event) {
+        enqueue(listener, new EventDelivery(event));
+    }
+
+    /**
+     *  Queues an advertisement of a response for a listener.
+     */
+    void advertisement(IncrementalDiscoveryListener listener, int queryID, Advertisement adv, long expiration) {
+        AdvertisementDelivery delivery = new AdvertisementDelivery(queryID, adv, expiration);
+        ID id = adv.getID();
+        if (id != null) {
+            delivery.key = queryID + " " + id;
+        }
+        enqueue(listener, delivery);
+    }
+
+    private void enqueue(DiscoveryListener listener, Delivery delivery) {
+        Mailbox mailbox;
+        synchronized (this) {
+            mailbox = (Mailbox) mailboxes.get(listener);
+            boolean idle = (mailbox == null);
+            if (idle) {
+                mailbox = new Mailbox(listener);
+                mailboxes.put(listener, mailbox);
+            }
+
+            if (delivery.key != null) {
+                AdvertisementDelivery queued = (AdvertisementDelivery) mailbox.byKey.get(delivery.key);
+                if (queued != null) {
+                    queued.adv = ((AdvertisementDelivery) delivery).adv;
+                    queued.expiration = ((AdvertisementDelivery) delivery).expiration;
+                    coalescedCount++;
+                    return;
+                }
+            }
+
+            if (mailbox.pending.size() >= limit) {
+                droppedCount++;
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("Queue full for listener " + listener.getClass().getName() + ", dropping a delivery");
+                }
+                if (policy == DROP_NEWEST) {
+                    return;
+                }
+                Delivery oldest = (Delivery) mailbox.pending.removeFirst();
+                if (oldest.key != null) {
+                    mailbox.byKey.remove(oldest.key);
+                }
+            }
+
+            mailbox.pending.addLast(delivery);
+            if (delivery.key != null) {
+                mailbox.byKey.put(delivery.key, delivery);
+            }
+            if (!idle) {
+                return;
+            }
+        }
+        schedule(mailbox);
+    }
+
+    private void schedule(Mailbox mailbox) {
+        try {
+            executor.execute(mailbox);
+        } catch (RejectedExecutionException stopped) {
+            synchronized (this) {
+                mailboxes.remove(mailbox.listener);
+            }
+        }
+    }
+
+    private void delivered(DiscoveryListener listener, long lag) {
+        synchronized (this) {
+            deliveredCount++;
+            totalLag += lag;
+            if (lag > maxLag) {
+                maxLag = lag;
+            }
+        }
+        if ((lag > LAG_WARNING) && LOG.isEnabledFor(Level.WARN)) {
+            LOG.warn("Listener " + listener.getClass().getName() + " is lagging by " + lag + "ms");
+        }
+    }
+
+    /**
+     *  Stops the dispatch threads. Pending deliveries are dropped.
+     */
+    void stop() {
+        executor.shutdownNow();
+        synchronized (this) {
+            mailboxes.clear();
+        }
+    }
+
+    /**
+     *  Returns the number of deliveries made.
+     */
+    synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     *  Returns the number of deliveries dropped because a queue was full.
+     */
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     *  Returns the number of advertisements replaced while still queued.
+     */
+    synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     *  Returns the average time in milliseconds a delivery was queued.
+     */
+    synchronized long getAverageLag() {
+        return (deliveredCount == 0) ? 0 : totalLag / deliveredCount;
+    }
+
+    /**
+     *  Returns the longest time in milliseconds a delivery was queued.
+     */
+    synchronized long getMaxLag() {
+        return maxLag;
+    }
+}
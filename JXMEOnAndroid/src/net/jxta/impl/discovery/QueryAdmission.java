@@ -0,0 +1,201 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.discovery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  Admission control of the queries a rendezvous answers: a token bucket
+ *  per source peer.
+ *
+ *  <p/>Each source may send <code>RATE</code> queries a second, in bursts
+ *  of up to <code>BURST</code>. Priority queries, which are cheap to
+ *  answer, may further draw up to <code>RESERVE</code> tokens that the
+ *  other queries cannot use. Only the <code>MAX_SOURCES</code> most recent
+ *  sources are tracked; a source forgotten starts again with a full bucket.
+ */
+final class QueryAdmission {
+
+    /**
+     *  The number of queries a second allowed per source.
+     */
+    static final double RATE = 5.0;
+
+    /**
+     *  The number of queries a source may send at once.
+     */
+    static final int BURST = 20;
+
+    /**
+     *  The number of tokens only priority queries may use.
+     */
+    static final int RESERVE = 10;
+
+    /**
+     *  The number of sources tracked.
+     */
+    static final int MAX_SOURCES = 1024;
+
+    private static final class Bucket {
+        double tokens = BURST;
+        long last;
+
+        Bucket(long now) {
+            last = now;
+        }
+
+        void refill(long now) {
+            if (now > last) {
+                tokens = Math.min(BURST, tokens + ((now - last) * RATE) / TimeUtils.ASECOND);
+                last = now;
+            }
+        }
+    }
+
+    private final Map buckets = new LinkedHashMap(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            return size() > MAX_SOURCES;
+        }
+    };
+
+    private long admitted = 0;
+    private long shed = 0;
+    private long shedEarly = 0;
+    private long shedPriority = 0;
+
+    private Bucket getBucket(String source, long now) {
+        Bucket bucket = (Bucket) buckets.get(source);
+        if (bucket == null) {
+            bucket = new Bucket(now);
+            buckets.put(source, bucket);
+        } else {
+            bucket.refill(now);
+        }
+        return bucket;
+    }
+
+    /**
+     *  Checks, before the query is parsed, whether a query from the source
+     *  could be admitted. No token is taken. The reserve is only considered
+     *  for a query which looks like a priority query, so that a flood of
+     *  other queries is shed without being parsed.
+     *
+     *  @param  source    the source peer
+     *  @param  priority  whether the query looks like a priority query
+     *  @param  now       the current time
+     *  @return  false if the query would be refused
+     */
+    synchronized boolean mayAdmit(String source, boolean priority, long now) {
+        Bucket bucket = getBucket(source, now);
+        if (bucket.tokens - 1 >= (priority ? -RESERVE : 0)) {
+            return true;
+        }
+        shed++;
+        shedEarly++;
+        return false;
+    }
+
+    /**
+     *  Takes a token for a query from the source.
+     *
+     *  @param  source    the source peer
+     *  @param  priority  whether the query is a priority query
+     *  @param  now       the current time
+     *  @return  whether the query is admitted
+     */
+    synchronized boolean admit(String source, boolean priority, long now) {
+        Bucket bucket = getBucket(source, now);
+        if (bucket.tokens - 1 >= (priority ? -RESERVE : 0)) {
+            bucket.tokens -= 1;
+            admitted++;
+            return true;
+        }
+        shed++;
+        if (priority) {
+            shedPriority++;
+        }
+        return false;
+    }
+
+    /**
+     *  Returns the number of queries admitted.
+     */
+    synchronized long getAdmittedCount() {
+        return admitted;
+    }
+
+    /**
+     *  Returns the number of queries shed.
+     */
+    synchronized long getShedCount() {
+        return shed;
+    }
+
+    /**
+     *  Returns the number of queries shed before being parsed.
+     */
+    synchronized long getShedEarlyCount() {
+        return shedEarly;
+    }
+
+    /**
+     *  Returns the number of priority queries shed.
+     */
+    synchronized long getShedPriorityCount() {
+        return shedPriority;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.discovery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import net.jxta.discovery.DiscoveryEvent;
+import net.jxta.discovery.DiscoveryListener;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  Tracks the remote discovery queries in flight so that identical queries
+ *  share a single resolver query.
+ *
+ *  <p/>A query is identified by its destination peer, type, attribute,
+ *  value and cursor. While one is in flight (for <code>WINDOW</code>), an identical
+ *  query with no greater threshold joins it: the listener is attached, is
+ *  given the responses already received, and the query ID of the original
+ *  query is returned. A query that got no response during its window is
+ *  remembered for a further <code>NEGATIVE_TTL</code>, during which the
+ *  same query is not sent again.
+ *
+ *  <p/>Listeners are kept for <code>RETENTION</code> after the query was
+ *  sent, responses arriving later are only given to the service listeners.
+ */
+final class QueryCoalescer {
+
+    /**
+     *  How long a query is considered in flight.
+     */
+    static final long WINDOW = 15 * TimeUtils.ASECOND;
+
+    /**
+     *  How long a query that got no response is not resent.
+     */
+    static final long NEGATIVE_TTL = 30 * TimeUtils.ASECOND;
+
+    /**
+     *  How long the listeners of a query are kept.
+     */
+    static final long RETENTION = 5 * TimeUtils.AMINUTE;
+
+    /**
+     *  The number of responses kept for listeners joining late.
+     */
+    static final int REPLAY_LIMIT = 16;
+
+    private static final DiscoveryListener[] NO_LISTENERS = new DiscoveryListener[0];
+    private static final DiscoveryEvent[] NO_EVENTS = new DiscoveryEvent[0];
+
+    /**
+     *  A query sent.
+     */
+    static final class InFlight {
+        final String key;
+        final int queryID;
+        final int threshold;
+        final long sent;
+        final List listeners = new ArrayList(1);
+        final List received = new ArrayList(1);
+        int responses = 0;
+
+        InFlight(String key, int queryID, int threshold, long sent) {
+            this.key = key;
+            this.queryID = queryID;
+            this.threshold = threshold;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     *  A query joined.
+     */
+    static final class Joined {
+
+        /**
+         *  The query ID of the query joined.
+         */
+        final int queryID;
+
+        /**
+         *  The responses already received, to be given to a newly attached
+         *  listener.
+         */
+        final DiscoveryEvent[] replay;
+
+        Joined(int queryID, DiscoveryEvent[] replay) {
+            this.queryID = queryID;
+            this.replay = replay;
+        }
+    }
+
+    /**
+     *  The latest query sent for each key.
+     */
+    private final Map byKey = new HashMap();
+
+    /**
+     *  The queries by ID, in the order sent.
+     */
+    private final LinkedHashMap byId = new LinkedHashMap();
+
+    private long sentCount = 0;
+    private long coalescedCount = 0;
+    private long negativeCount = 0;
+
+    /**
+     *  Returns the key identifying a query.
+     */
+    static String keyOf(String peer, int type, String attr, String value, String cursor) {
+        StringBuffer key = new StringBuffer();
+        key.append(type).append('\u0000');
+        key.append(peer == null ? "" : peer).append('\u0000');
+        key.append(attr == null ? "" : attr).append('\u0000');
+        key.append(value == null ? "" : value).append('\u0000');
+        key.append(cursor == null ? "" : cursor);
+        return key.toString();
+    }
+
+    /**
+     *  Attaches a listener to an identical query in flight, or recently
+     *  unanswered.
+     *
+     *  @param  key        the query key
+     *  @param  threshold  the threshold of the new query
+     *  @param  listener   the listener, may be null
+     *  @param  now        the current time
+     *  @return  the query joined, or null if the query must be sent
+     */
+    synchronized Joined join(String key, int threshold, DiscoveryListener listener, long now) {
+        purge(now);
+
+        InFlight query = (InFlight) byKey.get(key);
+        if (query == null || query.threshold < threshold) {
+            return null;
+        }
+        long age = now - query.sent;
+        if (age < WINDOW) {
+            coalescedCount++;
+        } else if (query.responses == 0 && age < WINDOW + NEGATIVE_TTL) {
+            negativeCount++;
+        } else {
+            return null;
+        }
+
+        // A listener already attached has seen the responses received.
+        DiscoveryEvent[] replay = NO_EVENTS;
+        if (listener != null && !query.listeners.contains(listener)) {
+            query.listeners.add(listener);
+            replay = (DiscoveryEvent[]) query.received.toArray(NO_EVENTS);
+        }
+        return new Joined(query.queryID, replay);
+    }
+
+    /**
+     *  Records a query about to be sent.
+     *
+     *  @param  key        the query key
+     *  @param  queryID    the query ID
+     *  @param  threshold  the query threshold
+     *  @param  listener   the listener, may be null
+     *  @param  now        the current time
+     */
+    synchronized void sent(String key, int queryID, int threshold, DiscoveryListener listener, long now) {
+        InFlight query = new InFlight(key, queryID, threshold, now);
+        if (listener != null) {
+            query.listeners.add(listener);
+        }
+        byKey.put(key, query);
+        byId.put(new Integer(queryID), query);
+        sentCount++;
+    }
+
+    /**
+     *  Returns the listeners of a query.
+     *
+     *  @param  queryID  the query ID
+     *  @return  the listeners of the query, possibly empty
+     */
+    synchronized DiscoveryListener[] getListeners(int queryID) {
+        InFlight query = (InFlight) byId.get(new Integer(queryID));
+        if (query == null) {
+            return NO_LISTENERS;
+        }
+        return (DiscoveryListener[]) query.listeners.toArray(NO_LISTENERS);
+    }
+
+    /**
+     *  Records a response and returns the listeners waiting for it.
+     *
+     *  @param  event  the response
+     *  @return  the listeners of the query, possibly empty
+     */
+    synchronized DiscoveryListener[] responded(DiscoveryEvent event) {
+        InFlight query = (InFlight) byId.get(new Integer(event.getQueryID()));
+        if (query == null) {
+            return NO_LISTENERS;
+        }
+        query.responses++;
+        if (query.received.size() < REPLAY_LIMIT) {
+            query.received.add(event);
+        }
+        return (DiscoveryListener[]) query.listeners.toArray(NO_LISTENERS);
+    }
+
+    /**
+     *  Detaches a listener from all the queries.
+     */
+    synchronized void removeListener(DiscoveryListener listener) {
+        Iterator each = byId.values().iterator();
+        while (each.hasNext()) {
+            ((InFlight) each.next()).listeners.remove(listener);
+        }
+    }
+
+    /**
+     *  Forgets the queries older than <code>RETENTION</code>.
+     */
+    private void purge(long now) {
+        Iterator each = byId.values().iterator();
+        while (each.hasNext()) {
+            InFlight query = (InFlight) each.next();
+            if (now - query.sent < RETENTION) {
+                break;
+            }
+            each.remove();
+            if (byKey.get(query.key) == query) {
+                byKey.remove(query.key);
+            }
+        }
+    }
+
+    /**
+     *  Returns the number of queries sent.
+     */
+    synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    /**
+     *  Returns the number of queries which joined one in flight.
+     */
+    synchronized long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     *  Returns the number of queries not sent because an identical one
+     *  recently got no response.
+     */
+    synchronized long getNegativeCount() {
+        return negativeCount;
+    }
+}
@@ -165,6 +165,11 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      */
     private Object owner = null;
 
+    /**
+     * True if the owner flushes this messenger once it has nothing more to send. See {@link #setFlushDeferred(boolean)}.
+     */
+    private volatile boolean flushDeferred = false;
+
     /**
      * The self destruct timer.
      * When this messenger has become idle, it is closed. As a side effect, it makes the owning canonical messenger,
@@ -429,6 +434,24 @@ public abstract class BlockingMessenger extends AbstractMessenger {
         this.owner = owner;
     }
 
+    /**
+     * Tells this messenger that its owner invokes {@link #flushImpl()} whenever it runs out of messages to send. The implementation
+     * may then keep a burst of messages buffered and write them together, rather than pushing each one to the network as it is
+     * sent. Owners that cannot make that promise must not call this method.
+     *
+     * @param deferred true if the owner flushes this messenger when its queue is drained.
+     */
+    public void setFlushDeferred(boolean deferred) {
+        flushDeferred = deferred;
+    }
+
+    /**
+     * @return true if sends may leave data buffered until the next {@link #flushImpl()}.
+     */
+    protected boolean isFlushDeferred() {
+        return flushDeferred;
+    }
+
     /**
      * A trivial convenience method that transports still depend upon.
      * The reason it exists is that it used to be non-trivial, when
@@ -768,6 +791,13 @@ public abstract class BlockingMessenger extends AbstractMessenger {
      */
     protected abstract boolean sendMessageBImpl(Message message, String service, String param) throws IOException;
 
+    /**
+     * Push buffered data to the network. Invoked by the owner, see {@link #setFlushDeferred(boolean)}. Only needed by
+     * implementations that buffer when {@link #isFlushDeferred()}. Does nothing by default.
+     */
+    protected void flushImpl() throws IOException {
+    }
+
     /**
      * return true if this messenger has not been used for a long time. The definition of long time is: "so long that closing it
      * is worth the risk of having to re-open". A messenger should self close if it thinks it meets the definition of
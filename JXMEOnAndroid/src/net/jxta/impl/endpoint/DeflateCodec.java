@@ -0,0 +1,256 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import java.io.IOException;
+
+import net.jxta.document.MimeMediaType;
+
+/**
+ *  Applies and removes the deflate content encoding of wire format messages.
+ *  A codec keeps its {@link Deflater} and {@link Inflater} between messages
+ *  so that a connection can encode and decode all of its messages without
+ *  allocating the (large) zlib state each time.
+ *
+ *  <p/>Each direction is synchronized separately: one thread may encode
+ *  while another decodes.
+ *
+ *  @see WireFormatMessageFactory#DEFLATE_ENCODING
+ */
+public class DeflateCodec {
+
+    /**
+     *  Used for encoding, guarded by itself.
+     */
+    private final Deflater deflater;
+
+    /**
+     *  Used for decoding, guarded by itself.
+     */
+    private final Inflater inflater;
+
+    /**
+     *  If true then the zlib state was released.
+     */
+    private volatile boolean ended = false;
+
+    /**
+     *  Creates a codec.
+     *
+     *  @param level the compression level, {@link Deflater#BEST_SPEED} to
+     *  {@link Deflater#BEST_COMPRESSION} or {@link Deflater#DEFAULT_COMPRESSION}.
+     */
+    public DeflateCodec(int level) {
+        deflater = new Deflater(level);
+        inflater = new Inflater();
+    }
+
+    /**
+     *  Deflates a message serialization.
+     *
+     *  @param serialed the unencoded serialization.
+     *  @return the deflated serialization.
+     *  @throws IOException if the message cannot be serialized.
+     */
+    public WireFormatMessage encode(WireFormatMessage serialed) throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream((int) Math.min(serialed.getByteLength() / 2 + 64, Integer.MAX_VALUE));
+
+        synchronized (deflater) {
+            if (ended) {
+                throw new IOException("Codec was ended");
+            }
+            deflater.reset();
+
+            // the stream does not end a deflater it was given.
+            DeflaterOutputStream dos = new DeflaterOutputStream(deflated, deflater);
+
+            serialed.sendToStream(dos);
+            dos.finish();
+        }
+
+        return new Deflated(serialed.getMimeType(), deflated.toByteArray());
+    }
+
+    /**
+     *  Inflates a deflated message serialization.
+     *
+     *  @param buf the deflated bytes.
+     *  @param offset offset of the deflated bytes within buf.
+     *  @param length count of deflated bytes.
+     *  @param limit the largest serialization accepted.
+     *  @return a stream of the unencoded serialization, from which elements
+     *  are decoded without copying.
+     *  @see MessageSlab
+     *  @throws IOException if the data is not deflated or inflates beyond limit.
+     */
+    public InputStream decode(byte[] buf, int offset, int length, int limit) throws IOException {
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(Math.min(4 * length, limit));
+        byte[] chunk = new byte[4096];
+
+        synchronized (inflater) {
+            if (ended) {
+                throw new IOException("Codec was ended");
+            }
+            inflater.reset();
+
+            InflaterInputStream iis = new InflaterInputStream(new ByteArrayInputStream(buf, offset, length), inflater);
+
+            do {
+                int read = iis.read(chunk);
+
+                if (read < 0) {
+                    break;
+                }
+
+                if (inflated.size() + read > limit) {
+                    throw new IOException("Inflated message is larger than " + limit + " bytes");
+                }
+
+                inflated.write(chunk, 0, read);
+            } while (true);
+        }
+
+        return MessageSlab.wrap(inflated.toByteArray()).getStream(0, inflated.size());
+    }
+
+    /**
+     *  Releases the zlib state. Encoding or decoding afterwards fails with
+     *  an IOException.
+     */
+    public void end() {
+        synchronized (deflater) {
+            synchronized (inflater) {
+                ended = true;
+                deflater.end();
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     *  A deflated serialization.
+     */
+    private static class Deflated implements WireFormatMessage {
+
+        private final MimeMediaType type;
+
+        private final byte[] bytes;
+
+        Deflated(MimeMediaType type, byte[] bytes) {
+            this.type = type;
+            this.bytes = bytes;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public MimeMediaType getMimeType() {
+            return type;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getFileExtension() {
+            return "???";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InputStream getStream() throws IOException {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void sendToStream(OutputStream sendTo) throws IOException {
+            sendTo.write(bytes);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public MimeMediaType getContentEncoding() {
+            return WireFormatMessageFactory.DEFLATE_ENCODING;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getByteLength() {
+            return bytes.length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public ByteBuffer[] getByteBuffers() {
+            return new ByteBuffer[] { ByteBuffer.wrap(bytes) };
+        }
+    }
+}
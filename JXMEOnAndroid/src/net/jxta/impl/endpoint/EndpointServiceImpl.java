@@ -1876,6 +1876,8 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
             // messenger.
             try {
                 ((BlockingMessenger) cachedMessenger).setOwner(this);
+                // We flush it whenever our queues are drained.
+                ((BlockingMessenger) cachedMessenger).setFlushDeferred(true);
             } catch (ClassCastException cce) {
                 if (LOG.isEnabledFor(Level.ERROR)) {
                     LOG.error("Transport messengers must all extend BlockingMessenger for now. " + cachedMessenger + " may remain open beyond its use.");
@@ -1925,6 +1927,20 @@ public class EndpointServiceImpl implements EndpointService, MessengerEventListe
                 throw any;
             }
         }
+
+
+        /**
+         *  Flush the current messenger. Called when our queues are drained.
+         *
+         *@exception  IOException  if the transport failed to flush.
+         */
+        protected void flushImpl() throws IOException {
+            Messenger theMessenger = cachedMessenger;
+
+            if (theMessenger instanceof BlockingMessenger) {
+                ((BlockingMessenger) theMessenger).flushImpl();
+            }
+        }
     }
 
 
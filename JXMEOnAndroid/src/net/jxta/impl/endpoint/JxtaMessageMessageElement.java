@@ -61,6 +61,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -111,6 +112,22 @@ public class JxtaMessageMessageElement extends MessageElement {
         this.msg = msg;
     }
 
+    /**
+     *  Create a new Message Element from a serialized message. The message is
+     *  decoded when first asked for.
+     *
+     * @param name Name of the MessageElement.
+     * @param type Type of the MessageElement.
+     * @param serial the serialized message.
+     * @param sig optional message digest/digital signature elemnent or null if
+     * no signature is desired.
+     */
+    protected JxtaMessageMessageElement(String name, MimeMediaType type, WireFormatMessage serial, MessageElement sig) {
+        super(name, type, sig);
+
+        this.serial = serial;
+    }
+
     /**
      *  {@inheritDoc}
      */
@@ -127,7 +144,7 @@ public class JxtaMessageMessageElement extends MessageElement {
             if(target instanceof JxtaMessageMessageElement) {
                 JxtaMessageMessageElement likeMe = (JxtaMessageMessageElement) target;
 
-                return super.equals(likeMe) & msg.equals(likeMe.msg);
+                return super.equals(likeMe) & getMessage().equals(likeMe.getMessage());
             } else {
                 // have to do a slow stream comparison.
                 // XXX 20020615 bondolo@jxta.org the performance of this could be much improved.
@@ -169,7 +186,7 @@ public class JxtaMessageMessageElement extends MessageElement {
      */
     public int hashCode() {
         int result = super.hashCode() *  6037 +   // a prime
-                     msg.hashCode();
+                     getMessage().hashCode();
 
         return (0 != result) ? result : 1;
     }
@@ -227,6 +244,17 @@ public class JxtaMessageMessageElement extends MessageElement {
         serial.sendToStream(sendTo);
     }
 
+    /**
+     *  Returns the serialized message as buffers.
+     *
+     *  @see WireFormatMessage#getByteBuffers()
+     */
+    ByteBuffer[] getByteBuffers() throws IOException {
+        initSerial();
+
+        return serial.getByteBuffers();
+    }
+
     /**
      *  Returns the message which backs this element.
      *
@@ -234,8 +262,21 @@ public class JxtaMessageMessageElement extends MessageElement {
      *  obey the contract of MessageElement.
      *
      *  @return Returns the message which backs this element.
+     *  @throws IllegalStateException if the serialized message cannot be decoded.
      */
-    public Message getMessage() {
+    public synchronized Message getMessage() {
+        if(null == msg) {
+            try {
+                msg = WireFormatMessageFactory.fromWire(serial.getStream(), type, serial.getContentEncoding());
+            } catch (IOException failed) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Could not decode message of element " + name, failed);
+                }
+
+                throw new IllegalStateException("Could not decode message : " + failed.getMessage());
+            }
+        }
+
         return msg;
     }
 
@@ -0,0 +1,583 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.ByteArrayMessageElement;
+import net.jxta.endpoint.MessageElement;
+
+/**
+ *  A receive buffer holding one framed message. Slabs of up to
+ *  {@link #MAX_POOLED} bytes come from a pool, so receiving a message does
+ *  not allocate a buffer, and {@link WireFormatMessageBinary} decodes the
+ *  elements of a message read from a slab's stream as views over slices of
+ *  the slab rather than as copies.
+ *
+ *  <p/>A slab is reference counted. The reader holds one reference, which it
+ *  gives up with {@link #release()} once the message has been decoded. The
+ *  element views together hold the other. Messages are handed to listeners
+ *  which may keep them indefinitely, so the views' reference is dropped by
+ *  the garbage collector: the slab returns to the pool only once no element
+ *  of the message is reachable.
+ *
+ *  <p/>Decoding from a slab is lazy. Element contents stay in the slab until
+ *  read, sub-messages are decoded when first asked for, and an element keeps
+ *  its header as received so that forwarding it copies bytes rather than
+ *  encoding it again.
+ *
+ *  <p/>Usage:
+ *  <pre>
+ *      MessageSlab slab = MessageSlab.acquire(length);
+ *      try {
+ *          in.readFully(slab.getBuffer(), 0, length);
+ *          msg = WireFormatMessageFactory.fromWire(slab.getStream(0, length), type, null);
+ *      } finally {
+ *          slab.release();
+ *      }
+ *  </pre>
+ */
+public final class MessageSlab {
+
+    /**
+     *  The smallest pooled slab is 2^MIN_SHIFT bytes.
+     */
+    private static final int MIN_SHIFT = 10;
+
+    /**
+     *  The largest pooled slab is 2^MAX_SHIFT bytes.
+     */
+    private static final int MAX_SHIFT = 16;
+
+    /**
+     *  Larger slabs are allocated for each message.
+     */
+    public static final int MAX_POOLED = 1 << MAX_SHIFT;
+
+    /**
+     *  The most free slabs kept of each size.
+     */
+    private static final int POOL_DEPTH = 4;
+
+    /**
+     *  Free slab buffers, by size. Guarded by itself.
+     */
+    private static final LinkedList[] pool = new LinkedList[MAX_SHIFT - MIN_SHIFT + 1];
+
+    /**
+     *  The references of slabs whose views are tracked. Guarded by itself.
+     */
+    private static final Set tracked = new HashSet();
+
+    /**
+     *  Where the references of slabs without reachable views are queued.
+     */
+    private static final ReferenceQueue unreachable = new ReferenceQueue();
+
+    static {
+        for (int eachSize = 0; eachSize < pool.length; eachSize++) {
+            pool[eachSize] = new LinkedList();
+        }
+    }
+
+    /**
+     *  The buffer.
+     */
+    private final byte[] buf;
+
+    /**
+     *  Index of the pool of this slab or -1 if not pooled.
+     */
+    private final int sizeIdx;
+
+    /**
+     *  The number of references. Guarded by this.
+     */
+    private int refs = 1;
+
+    /**
+     *  If true then views of this slab were made. Guarded by this.
+     */
+    private boolean shared = false;
+
+    private MessageSlab(byte[] buf, int sizeIdx) {
+        this.buf = buf;
+        this.sizeIdx = sizeIdx;
+    }
+
+    /**
+     *  Returns a slab of at least the specified size. The caller holds its
+     *  reference and must {@link #release()} it.
+     *
+     *  @param size the number of bytes needed.
+     *  @return the slab.
+     */
+    public static MessageSlab acquire(int size) {
+        reclaim();
+
+        if (size > MAX_POOLED) {
+            return new MessageSlab(new byte[size], -1);
+        }
+
+        int sizeIdx = 0;
+        while ((1 << (MIN_SHIFT + sizeIdx)) < size) {
+            sizeIdx++;
+        }
+
+        byte[] free = null;
+        synchronized (pool[sizeIdx]) {
+            if (!pool[sizeIdx].isEmpty()) {
+                free = (byte[]) pool[sizeIdx].removeFirst();
+            }
+        }
+
+        return new MessageSlab((null != free) ? free : new byte[1 << (MIN_SHIFT + sizeIdx)], sizeIdx);
+    }
+
+    /**
+     *  Returns an unpooled slab over an existing buffer.
+     *
+     *  @param buf the buffer.
+     *  @return the slab.
+     */
+    public static MessageSlab wrap(byte[] buf) {
+        return new MessageSlab(buf, -1);
+    }
+
+    /**
+     *  Returns the buffer of this slab, which may be larger than requested.
+     *
+     *  @return the buffer.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     *  Returns a stream of part of this slab. Message elements decoded from it
+     *  are views of the slab.
+     *
+     *  @param offset the offset of the message.
+     *  @param length the length of the message.
+     *  @return a stream of the message.
+     */
+    public InputStream getStream(int offset, int length) {
+        return new SlabInputStream(this, offset, length);
+    }
+
+    /**
+     *  Gives up the reader's reference.
+     */
+    public void release() {
+        synchronized (this) {
+            if (refs <= 0) {
+                throw new IllegalStateException("Slab was already released");
+            }
+
+            refs--;
+            if ((refs > 0) || shared) {
+                return;
+            }
+        }
+
+        recycle(buf, sizeIdx);
+    }
+
+    /**
+     *  Notes that views of this slab are being made. Their reference is
+     *  dropped once none of them is reachable.
+     */
+    private synchronized void share() {
+        if (shared || (-1 == sizeIdx)) {
+            return;
+        }
+
+        shared = true;
+        synchronized (tracked) {
+            tracked.add(new SlabReference(this));
+        }
+    }
+
+    /**
+     *  Returns buffers of slabs which have no more reachable views to the pool.
+     */
+    private static void reclaim() {
+        Reference unused;
+
+        while (null != (unused = unreachable.poll())) {
+            synchronized (tracked) {
+                tracked.remove(unused);
+            }
+
+            SlabReference slab = (SlabReference) unused;
+
+            recycle(slab.buf, slab.sizeIdx);
+        }
+    }
+
+    /**
+     *  Puts a buffer back in its pool.
+     */
+    private static void recycle(byte[] buf, int sizeIdx) {
+        if (-1 == sizeIdx) {
+            return;
+        }
+
+        synchronized (pool[sizeIdx]) {
+            if (pool[sizeIdx].size() < POOL_DEPTH) {
+                pool[sizeIdx].addFirst(buf);
+            }
+        }
+    }
+
+    /**
+     *  Tracks the reachability of a shared slab. Holds the buffer so that it
+     *  can be reused once the slab is unreachable.
+     */
+    private static class SlabReference extends WeakReference {
+        final byte[] buf;
+        final int sizeIdx;
+
+        SlabReference(MessageSlab slab) {
+            super(slab, unreachable);
+            buf = slab.buf;
+            sizeIdx = slab.sizeIdx;
+        }
+    }
+
+    /**
+     *  An element decoded from a slab which can provide its header as received.
+     */
+    interface RawElement {
+
+        /**
+         *  Returns the received header of the element, from the flags to the
+         *  content length. The buffer views the slab, it is valid while the
+         *  element is reachable.
+         *
+         *  @return the header or null if it is no longer available.
+         */
+        ByteBuffer getRawHeader();
+    }
+
+    /**
+     *  The stream of a slab from which views are made.
+     */
+    static class SlabInputStream extends ByteArrayInputStream {
+        private final MessageSlab slab;
+
+        SlabInputStream(MessageSlab slab, int offset, int length) {
+            super(slab.buf, offset, length);
+            this.slab = slab;
+        }
+
+        /**
+         *  Skips bytes which will be viewed.
+         *
+         *  @param length the number of bytes.
+         *  @return the offset of the bytes in the slab buffer.
+         *  @throws EOFException if fewer bytes remain.
+         */
+        synchronized int skipView(int length) throws EOFException {
+            if ((length < 0) || (count - pos < length)) {
+                throw new EOFException("Slab ends before " + length + " bytes");
+            }
+
+            int at = pos;
+            pos += length;
+            return at;
+        }
+
+        /**
+         *  Returns a stream of the next bytes and skips them.
+         *
+         *  @param length the number of bytes.
+         *  @return the stream.
+         *  @throws EOFException if fewer bytes remain.
+         */
+        SlabInputStream slice(int length) throws EOFException {
+            return new SlabInputStream(slab, skipView(length), length);
+        }
+
+        /**
+         *  Returns the offset in the slab buffer of the next byte.
+         */
+        synchronized int position() {
+            return pos;
+        }
+
+        /**
+         *  Returns a string decoded from the next bytes.
+         *
+         *  @param length the number of UTF-8 bytes.
+         *  @return the string.
+         *  @throws IOException if fewer bytes remain.
+         */
+        String readString(int length) throws IOException {
+            return WireFormatMessageBinary.decodeString(buf, skipView(length), length);
+        }
+
+        /**
+         *  Makes an element viewing bytes of the slab.
+         *
+         *  @param offset the offset of the bytes, from {@link #skipView(int)}.
+         *  @param headerAt the offset of the element header, after the namespace id.
+         *  @param headerLength the length of the element header.
+         */
+        MessageElement newElement(String name, MimeMediaType type, int offset, int length, MessageElement sig, int headerAt, int headerLength) {
+            slab.share();
+            return new SlabMessageElement(name, type, buf, offset, length, sig, slab, headerAt, headerLength);
+        }
+
+        /**
+         *  Makes an element whose content is a message serialized in the slab.
+         *  The message is decoded when first asked for.
+         *
+         *  @param offset the offset of the message, from {@link #skipView(int)}.
+         *  @param headerAt the offset of the element header, after the namespace id.
+         *  @param headerLength the length of the element header.
+         */
+        MessageElement newMessageElement(String name, MimeMediaType type, int offset, int length, MessageElement sig, int headerAt, int headerLength) {
+            slab.share();
+            return new SlabMessageMessageElement(name, type, new SlabWireFormatMessage(slab, type, offset, length), sig, slab, headerAt, headerLength);
+        }
+    }
+
+    /**
+     *  A message serialized in a slab.
+     */
+    static class SlabWireFormatMessage implements WireFormatMessage {
+        private final MessageSlab slab;
+        private final MimeMediaType type;
+        private final int offset;
+        private final int length;
+
+        SlabWireFormatMessage(MessageSlab slab, MimeMediaType type, int offset, int length) {
+            this.slab = slab;
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public MimeMediaType getMimeType() {
+            return type;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getFileExtension() {
+            return "???";
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         *  <p/>Messages decoded from the stream view the slab.
+         */
+        public InputStream getStream() {
+            return new SlabInputStream(slab, offset, length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void sendToStream(OutputStream sendTo) throws IOException {
+            sendTo.write(slab.buf, offset, length);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public MimeMediaType getContentEncoding() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getByteLength() {
+            return length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public ByteBuffer[] getByteBuffers() {
+            return new ByteBuffer[] { ByteBuffer.wrap(slab.buf, offset, length) };
+        }
+    }
+
+    /**
+     *  An element whose content is a message serialized in a slab.
+     */
+    static class SlabMessageMessageElement extends JxtaMessageMessageElement implements RawElement {
+        private final MessageSlab slab;
+        private final int headerAt;
+        private final int headerLength;
+
+        SlabMessageMessageElement(String name, MimeMediaType type, WireFormatMessage serial, MessageElement sig, MessageSlab slab, int headerAt, int headerLength) {
+            super(name, type, serial, sig);
+            this.slab = slab;
+            this.headerAt = headerAt;
+            this.headerLength = headerLength;
+        }
+
+        /**
+         *  {@inheritDoc}
+         */
+        public ByteBuffer getRawHeader() {
+            return ByteBuffer.wrap(slab.buf, headerAt, headerLength);
+        }
+    }
+
+    /**
+     *  An element viewing a slab. Its contents are handed out only in ways
+     *  which keep the slab reachable.
+     */
+    static class SlabMessageElement extends ByteArrayMessageElement implements RawElement {
+
+        /**
+         *  Our slab. Held for as long as this element is reachable, even once
+         *  we use a copy of our contents, because the buffers returned by
+         *  {@link #viewBuffer()} and the array being written by
+         *  {@link #sendToStream(java.io.OutputStream)} may still be the slab.
+         */
+        private final MessageSlab slab;
+
+        /**
+         *  Where our header is in the slab.
+         */
+        private final int headerAt;
+        private final int headerLength;
+
+        SlabMessageElement(String name, MimeMediaType type, byte[] b, int offset, int len, MessageElement sig, MessageSlab slab, int headerAt, int headerLength) {
+            super(name, type, b, offset, len, sig);
+            this.slab = slab;
+            this.headerAt = headerAt;
+            this.headerLength = headerLength;
+        }
+
+        /**
+         *  {@inheritDoc}
+         */
+        public ByteBuffer getRawHeader() {
+            return ByteBuffer.wrap(slab.buf, headerAt, headerLength);
+        }
+
+        /**
+         *  Returns our contents as a buffer which may view the slab. The
+         *  buffer is valid while this element is reachable.
+         */
+        synchronized ByteBuffer viewBuffer() {
+            return ByteBuffer.wrap(b, offset, len);
+        }
+
+        /**
+         *  {@inheritDoc}
+         *
+         *  <p/>The slab itself is never returned since it is reused once
+         *  this element is unreachable.
+         */
+        public synchronized byte[] getBytes(boolean copy) {
+            if (!copy && (b == slab.buf) && (0 == offset) && (b.length == len)) {
+                b = super.getBytes(true);
+                return b;
+            }
+
+            return super.getBytes(copy);
+        }
+
+        /**
+         *  {@inheritDoc}
+         *
+         *  <p/>The stream keeps the slab reachable.
+         */
+        public synchronized InputStream getStream() {
+            if (b != slab.buf) {
+                return super.getStream();
+            }
+
+            return new SlabInputStream(slab, offset, len);
+        }
+
+        /**
+         *  {@inheritDoc}
+         *
+         *  <p/>A buffer cannot keep the slab reachable, so we switch to a copy
+         *  of our contents first.
+         */
+        public synchronized ByteBuffer getByteBuffer() {
+            return ByteBuffer.wrap(getBytes(false));
+        }
+    }
+}
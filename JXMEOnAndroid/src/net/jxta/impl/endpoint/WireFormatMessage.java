@@ -57,6 +57,9 @@
 
 package net.jxta.impl.endpoint;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import net.jxta.document.Document;
 import net.jxta.document.MimeMediaType;
 
@@ -85,4 +88,17 @@ public interface WireFormatMessage extends Document {
      */
     long getByteLength();
 
+    /**
+     *  Returns the serialized and encoded form of the message as a sequence
+     *  of buffers, suitable for a gathering write. The buffers may share the
+     *  contents of the message elements and must not be modified. Each call
+     *  returns new buffers. The buffers are valid only while this object is
+     *  reachable: elements received from the network may view a receive
+     *  buffer which is reused once they are unreachable.
+     *
+     *   @return the buffers, whose remaining bytes total {@link #getByteLength()}.
+     *   @throws IOException if the message cannot be serialized.
+     */
+    ByteBuffer[] getByteBuffers() throws IOException;
+
 }
@@ -66,11 +66,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import net.jxta.document.Document;
 import net.jxta.document.MimeMediaType;
 import net.jxta.endpoint.ByteArrayMessageElement;
@@ -119,7 +123,8 @@ public class WireFormatMessageBinary implements WireFormatMessage {
     private static final MimeMediaType [] myContentEncodings = {
 
                 // we support raw binary!
-                null
+                null,
+                WireFormatMessageFactory.DEFLATE_ENCODING
             };
 
     /**
@@ -155,7 +160,20 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          * {@inheritDoc}
          */
         public Message fromWire(InputStream is, MimeMediaType type, MimeMediaType contentEncoding) throws IOException {
-            // FIXME 20020504 bondolo@jxta.org  Ignores type and contentEncoding completely.
+            // FIXME 20020504 bondolo@jxta.org  Ignores type completely.
+            if (null != contentEncoding) {
+                if (!WireFormatMessageFactory.DEFLATE_ENCODING.equals(contentEncoding)) {
+                    throw new IOException("Unsupported content encoding : " + contentEncoding);
+                }
+
+                Inflater inflater = new Inflater();
+                try {
+                    return fromWire(new InflaterInputStream(is, inflater), type, null);
+                } finally {
+                    inflater.end();
+                }
+            }
+
             Message msg = new Message();
 
             if (LOG.isEnabledFor(Level.DEBUG))
@@ -163,7 +181,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
 
             DataInputStream dis = new DataInputStream(is);
 
-            HashMap idToNamespace = readHeader(dis);
+            HashMap idToNamespace = readHeader(dis, is);
 
             int elementCnt = dis.readShort();
 
@@ -219,21 +237,60 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          */
         public WireFormatMessage toWire(Message msg, MimeMediaType type, MimeMediaType[] preferedContentEncoding) {
             try {
-                return new WireFormatMessageBinary(msg, type, preferedContentEncoding);
+                WireFormatMessage serialed = new WireFormatMessageBinary(msg, type, preferedContentEncoding);
+
+                if (WireFormatMessageFactory.DEFLATE_ENCODING.equals(selectContentEncoding(preferedContentEncoding))) {
+                    // one shot. Connections keep their own codec.
+                    DeflateCodec codec = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+                    try {
+                        serialed = codec.encode(serialed);
+                    } finally {
+                        codec.end();
+                    }
+                }
+
+                return serialed;
             } catch (IOException caught) {
                 throw new IllegalStateException("Could not build wire format for message due to " + caught.getMessage());
             }
         }
 
+        /**
+         *  Returns the first of the prefered content encodings which we
+         *  support.
+         *
+         *  @param preferedContentEncoding acceptable message encodings in
+         *  descending order of preference. May be null.
+         *  @return the content encoding to apply or null for raw.
+         */
+        private static MimeMediaType selectContentEncoding(MimeMediaType[] preferedContentEncoding) {
+            if (null == preferedContentEncoding) {
+                return null;
+            }
+
+            for (int eachPrefered = 0; eachPrefered < preferedContentEncoding.length; eachPrefered++) {
+                for (int eachEncoding = 0; eachEncoding < myContentEncodings.length; eachEncoding++) {
+                    MimeMediaType prefered = preferedContentEncoding[eachPrefered];
+
+                    if ((null == prefered) ? (null == myContentEncodings[eachEncoding]) : prefered.equals(myContentEncodings[eachEncoding])) {
+                        return prefered;
+                    }
+                }
+            }
+
+            return null;
+        }
+
         /**
          *  Read in a message header from the provided data stream.
          *
          *  @param dis  the data stream to read from
+         *  @param is   the stream underlying dis
          *  @return hashmap containing the namespace id to namespace values
          *  @throws IOException if EOF or other IOException is encountered
          *  during the reading of the header.
          */
-        private static HashMap readHeader(DataInputStream dis) throws IOException {
+        private static HashMap readHeader(DataInputStream dis, InputStream is) throws IOException {
             // Read message signature
             char [] msgsig = new char[4];
 
@@ -288,7 +345,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             int id=2;
             for(int i=0; i<namespaceCnt; ++i) {
                 try {
-                    String namespace = readString(dis);
+                    String namespace = readString(dis, is);
                     id2namespace.put(new Integer(id++), namespace);
                 } catch (IOException caught) {
                     if (LOG.isEnabledFor(Level.WARN))
@@ -342,21 +399,27 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 throw failure;
             }
 
+            // Elements read from a slab are views of it.
+            MessageSlab.SlabInputStream slab = (is instanceof MessageSlab.SlabInputStream) ? (MessageSlab.SlabInputStream) is : null;
+
             // Namespace id
             int nsid = dis.readByte();
 
+            // the header as received, for forwarding the element.
+            int headerAt = (null != slab) ? slab.position() : -1;
+
             // flags
             byte flags = dis.readByte();
 
             // Name
-            String name = readString(dis);
+            String name = readString(dis, is);
 
             // Mime type
             MimeMediaType type = null;
             if ((flags & HAS_TYPE) != 0) {
-                String typeString = readString(dis);
+                String typeString = readString(dis, is);
                 try {
-                    type = new MimeMediaType(typeString);
+                    type = decodeType(typeString);
                 } catch (IllegalArgumentException uhoh) {
                     throw new IOException("Bad MimeType in message element header : " + uhoh.getMessage());
                 }
@@ -364,6 +427,7 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 type = MimeMediaType.AOS;
 
             int dataLen = dis.readInt();
+            int headerLength = (null != slab) ? slab.position() - headerAt : -1;
 
             if (LOG.isEnabledFor(Level.DEBUG))
                 LOG.debug("element : nsid = " + nsid +
@@ -377,13 +441,19 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             res[0] = new Integer(nsid & 0x000000FF);
 
             byte[] value = null;
+            int valueAt = -1;
             Message submsg = null;
 
             // Value
             if (type.equalsIngoringParams(myTypes [0])) {
-                InputStream subis = new LimitInputStream(is, dataLen);
+                if (null != slab) {
+                    // decoded when first asked for.
+                    valueAt = slab.skipView(dataLen);
+                } else {
+                    InputStream subis = new LimitInputStream(is, dataLen);
 
-                submsg = WireFormatMessageFactory.fromWire(subis, type, null);
+                    submsg = WireFormatMessageFactory.fromWire(subis, type, null);
+                }
             } else {
                 if(dataLen > Integer.MAX_VALUE) {
                     if (LOG.isEnabledFor(Level.ERROR))
@@ -392,20 +462,24 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                     throw new IllegalStateException("WireFormatMessageBinary does not support elements longer than 2GB");
                 }
 
-                value = new byte[dataLen];
-
-                String mayFail = null;
-                if (LOG.isEnabledFor(Level.WARN)) {
-                    mayFail = is.toString();
-                }
+                if (null != slab) {
+                    valueAt = slab.skipView(dataLen);
+                } else {
+                    value = new byte[dataLen];
 
-                try {
-                    dis.readFully(value);
-                } catch(EOFException failed) {
+                    String mayFail = null;
                     if (LOG.isEnabledFor(Level.WARN)) {
-                        LOG.error("had tried to read " + dataLen + " from " + mayFail + " which is now " + is);
+                        mayFail = is.toString();
+                    }
+
+                    try {
+                        dis.readFully(value);
+                    } catch(EOFException failed) {
+                        if (LOG.isEnabledFor(Level.WARN)) {
+                            LOG.error("had tried to read " + dataLen + " from " + mayFail + " which is now " + is);
+                        }
+                        throw failed;
                     }
-                    throw failed;
                 }
             }
 
@@ -415,7 +489,12 @@ public class WireFormatMessageBinary implements WireFormatMessage {
                 sig = (MessageElement) sigRes[1];
             }
 
-            if(null != value) {
+            if(-1 != valueAt) {
+                if(type.equalsIngoringParams(myTypes [0]))
+                    res[1] = slab.newMessageElement(name, type, valueAt, dataLen, sig, headerAt, headerLength);
+                else
+                    res[1] = slab.newElement(name, type, valueAt, dataLen, sig, headerAt, headerLength);
+            } else if(null != value) {
                 res[1] = new ByteArrayMessageElement(name, type, value, sig);
             } else {
                 res[1] = new JxtaMessageMessageElement(name, type, submsg, sig);
@@ -428,21 +507,95 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          *  Read and construct a string from the data stream.
          *
          *  @param dis the stream to read from
+         *  @param is  the stream underlying dis
          *  @return the String which was read.
          *  @throws IOException if EOF or other IOException is encountered
          *  during the reading of the string.
          */
-        private static String readString(DataInputStream dis) throws IOException {
+        private static String readString(DataInputStream dis, InputStream is) throws IOException {
             int len = dis.readShort();
             if (len < 0)
                 throw new IOException("Bad string length in message");
 
+            if (is instanceof MessageSlab.SlabInputStream)
+                return ((MessageSlab.SlabInputStream) is).readString(len);
+
             byte[] bytes = new byte[len];
             dis.readFully(bytes);
-            return new String(bytes, "UTF8");
+            return decodeString(bytes, 0, len);
         }
     };
 
+    /**
+     *  Recently decoded short ASCII strings, indexed by hash. Namespaces,
+     *  element names and mime types repeat from message to message.
+     */
+    private static final String[] stringCache = new String[256];
+
+    /**
+     *  Recently decoded mime types, each as a pair of the string and the type.
+     */
+    private static final Object[][] typeCache = new Object[64][];
+
+    /**
+     *  Decodes a mime type, returning a cached type if possible.
+     *
+     *  @param typeString the mime type string.
+     *  @return the mime type.
+     *  @throws IllegalArgumentException if the string is not a mime type.
+     */
+    static MimeMediaType decodeType(String typeString) {
+        int idx = typeString.hashCode() & (typeCache.length - 1);
+
+        // racy, but the pairs and types are immutable.
+        Object[] cached = typeCache[idx];
+        if ((null != cached) && typeString.equals(cached[0]))
+            return (MimeMediaType) cached[1];
+
+        MimeMediaType result = new MimeMediaType(typeString).intern();
+        typeCache[idx] = new Object[] {typeString, result};
+        return result;
+    }
+
+    /**
+     *  Decodes a UTF-8 string, returning a cached string if possible.
+     *
+     *  @param b the buffer.
+     *  @param offset offset of the string in the buffer.
+     *  @param len length of the string in bytes.
+     *  @return the String.
+     *  @throws IOException never, all JVMs support UTF-8.
+     */
+    static String decodeString(byte[] b, int offset, int len) throws IOException {
+        if (len > 64)
+            return new String(b, offset, len, "UTF8");
+
+        int hash = 0;
+        for (int eachByte = 0; eachByte < len; eachByte++) {
+            if (b[offset + eachByte] < 0)
+                return new String(b, offset, len, "UTF8");
+
+            hash = 31 * hash + b[offset + eachByte];
+        }
+
+        int idx = (hash ^ (hash >>> 8)) & (stringCache.length - 1);
+
+        // racy, but strings are immutable.
+        String cached = stringCache[idx];
+        if ((null != cached) && (cached.length() == len)) {
+            int eachChar = 0;
+            while ((eachChar < len) && (cached.charAt(eachChar) == b[offset + eachChar]))
+                eachChar++;
+
+            if (eachChar == len)
+                return cached;
+        }
+
+        String result = new String(b, offset, len, "UTF8");
+        stringCache[idx] = result;
+        return result;
+    }
+
     /**
      *  Internal representation for a binary format wire message. Implemented
      *  as an inner class to allow content encodings to be easily mapped on
@@ -537,6 +690,21 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             }
         }
 
+        /**
+         *  Adds the buffers of the message to the list: the header, then the
+         *  header and contents of each element.
+         */
+        void getByteBuffers(List buffers) throws IOException {
+            buffers.add(ByteBuffer.wrap(header));
+
+            Iterator eachElement = elements.listIterator();
+
+            while(eachElement.hasNext()) {
+                binaryElementProxy anElement = (binaryElementProxy) eachElement.next();
+                anElement.getByteBuffers(buffers);
+            }
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -636,6 +804,22 @@ public class WireFormatMessageBinary implements WireFormatMessage {
         }
 
         void buildHeader() throws IOException {
+            if(element instanceof MessageSlab.RawElement) {
+                ByteBuffer raw = ((MessageSlab.RawElement) element).getRawHeader();
+
+                if(null != raw) {
+                    // unchanged since received, copy the header.
+                    header = new byte[5 + raw.remaining()];
+                    header[0] = 'j';
+                    header[1] = 'x';
+                    header[2] = 'e';
+                    header[3] = 'l';
+                    header[4] = namespaceid;
+                    raw.get(header, 5, raw.remaining());
+                    return;
+                }
+            }
+
             byte [] elementName = element.getElementName().getBytes("UTF8");
             byte [] elementType = null;
             if(!MimeMediaType.AOS.equals(element.getMimeType()))
@@ -708,6 +892,29 @@ public class WireFormatMessageBinary implements WireFormatMessage {
             if(null != sig)
                 sig.sendToStream(sendTo);
         }
+
+        /**
+         *  Adds the buffers of the element to the list. Byte array contents
+         *  and serialized sub-messages are referenced rather than copied.
+         */
+        void getByteBuffers(List buffers) throws IOException {
+            buffers.add(ByteBuffer.wrap(header));
+
+            if(element instanceof MessageSlab.SlabMessageElement) {
+                buffers.add(((MessageSlab.SlabMessageElement) element).viewBuffer());
+            } else if(element instanceof ByteArrayMessageElement) {
+                buffers.add(((ByteArrayMessageElement) element).getByteBuffer());
+            } else if(element instanceof JxtaMessageMessageElement) {
+                ByteBuffer [] parts = ((JxtaMessageMessageElement) element).getByteBuffers();
+                for(int eachPart = 0; eachPart < parts.length; eachPart++)
+                    buffers.add(parts[eachPart]);
+            } else {
+                buffers.add(ByteBuffer.wrap(element.getBytes(false)));
+            }
+
+            if(null != sig)
+                sig.getByteBuffers(buffers);
+        }
     };
 
     /**
@@ -839,6 +1046,18 @@ public class WireFormatMessageBinary implements WireFormatMessage {
          msgProxy.sendToStream(sendTo);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public ByteBuffer[] getByteBuffers() throws IOException {
+        if(msg.getMessageModCount() != msgModCount) {
+            throw new IllegalStateException("message was unexpectedly modified!");
+        }
+        List buffers = new ArrayList(2 + 2 * msgProxy.elements.size());
+        msgProxy.getByteBuffers(buffers);
+        return (ByteBuffer[]) buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -92,6 +92,14 @@ public class WireFormatMessageFactory extends ClassFactory {
      */
     private static final Logger LOG = Logger.getLogger(WireFormatMessageFactory.class.getName());
 
+    /**
+     *  The deflate content encoding. The encoded form of a message is its
+     *  serialization compressed with zlib.
+     *
+     *  @see DeflateCodec
+     */
+    public static final MimeMediaType DEFLATE_ENCODING = new MimeMediaType("application/deflate").intern();
+
     /**
      *  Interface for instantiators of wire format messages.
      */
@@ -104,6 +104,14 @@ public class MessagePackageHeader {
     }
     
     List headers = new ArrayList();
+
+    /**
+     *  The header names we know. Received names matching one of these are
+     *  not decoded again.
+     */
+    private static final String[] KNOWN_NAMES = {
+        "content-length", "content-type", "content-coding", "accept-content-coding", "srcEA"
+    };
     
     /**
      * Creates a new instance of MessagePackage. Used for outgoing messages.
@@ -122,6 +130,7 @@ public class MessagePackageHeader {
         boolean sawLength = false;
         boolean sawType = false;
         DataInput di = new DataInputStream(in);
+        byte [] headerNameBytes = new byte [Byte.MAX_VALUE];
         
         // XXX 20021014 bondolo@jxta.org A framing signature would help here.
         
@@ -131,11 +140,12 @@ public class MessagePackageHeader {
             if(0 == headerNameLength)
                 sawEmpty = true;
             else {
-                byte [] headerNameBytes = new byte [headerNameLength];
+                if(headerNameLength < 0)
+                    throw new IOException("Invalid header name length");
                 
-                di.readFully(headerNameBytes);
+                di.readFully(headerNameBytes, 0, headerNameLength);
                 
-                String headerNameString = new String(headerNameBytes, "UTF-8");
+                String headerNameString = headerName(headerNameBytes, headerNameLength);
                 
                 if(headerNameString.equalsIgnoreCase("content-length")) {
                     if(sawLength)
@@ -175,6 +185,30 @@ public class MessagePackageHeader {
         }
     }
     
+    /**
+     *  Returns a header name, one of the known names if it matches.
+     *
+     *  @param nameBytes buffer holding the name in UTF-8
+     *  @param length length of the name
+     */
+    private static String headerName(byte [] nameBytes, int length) throws UnsupportedEncodingException {
+        for(int eachKnown = 0; eachKnown < KNOWN_NAMES.length; eachKnown++) {
+            String known = KNOWN_NAMES[eachKnown];
+            
+            if(known.length() != length)
+                continue;
+            
+            int eachChar = 0;
+            while((eachChar < length) && (known.charAt(eachChar) == nameBytes[eachChar]))
+                eachChar++;
+            
+            if(eachChar == length)
+                return known;
+        }
+        
+        return new String(nameBytes, 0, length, "UTF-8");
+    }
+    
     /**
      *  Add a header.
      *
@@ -234,6 +268,23 @@ public class MessagePackageHeader {
         return matchingHeaders.iterator();
     }
     
+    /**
+     *  Gets the first header matching the specified name
+     *
+     *  @param name the name of the header we are seeking.
+     *  @return the header or null if there is none.
+     */
+    private Header findHeader(String name) {
+        for(int eachHeader = 0; eachHeader < headers.size(); eachHeader++) {
+            Header aHeader = (Header) headers.get(eachHeader);
+            
+            if(name.equals(aHeader.getName()))
+                return aHeader;
+        }
+        
+        return null;
+    }
+    
     /**
      *  Write the headers to a stream
      *
@@ -281,7 +332,7 @@ public class MessagePackageHeader {
      *  @return length from the header.
      */
     public long getContentLengthHeader() {
-        Header header = (Header) getHeader("content-length").next();
+        Header header = findHeader("content-length");
         byte [] lengthAsBytes = header.getValue();
         
         long lengthAsLong = 0L;
@@ -312,7 +363,7 @@ public class MessagePackageHeader {
      *  @return type from the header.
      */
     public MimeMediaType getContentTypeHeader() {
-        Header header = (Header) getHeader("content-type").next();
+        Header header = findHeader("content-type");
         try {
             return new MimeMediaType(new String(header.getValue(), "UTF-8"));
         } catch (UnsupportedEncodingException never) {
@@ -320,5 +371,80 @@ public class MessagePackageHeader {
             throw new IllegalStateException("UTF-8 encoding support missing!");
         }
     }
-    
+
+    /**
+     *  Convenience Method for Content Coding header
+     *
+     *  @param encoding content encoding of the message.
+     */
+    public void setContentEncodingHeader(MimeMediaType encoding) {
+        try {
+            replaceHeader("content-coding", encoding.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+    }
+
+    /**
+     *  Convenience Method for Content Coding header
+     *
+     *  @return content encoding from the header or null if the message is
+     *  not encoded.
+     */
+    public MimeMediaType getContentEncodingHeader() {
+        Header header = findHeader("content-coding");
+
+        if(null == header)
+            return null;
+
+        try {
+            return new MimeMediaType(new String(header.getValue(), "UTF-8"));
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+    }
+
+    /**
+     *  Convenience Method for Accept Content Coding headers. Announces a
+     *  content encoding which the sender is able to decode. Peers which do
+     *  not know this header ignore it.
+     *
+     *  @param encoding content encoding the sender accepts.
+     */
+    public void addAcceptEncodingHeader(MimeMediaType encoding) {
+        try {
+            addHeader("accept-content-coding", encoding.toString().getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException never) {
+            // utf-8 is a required encoding.
+            throw new IllegalStateException("UTF-8 encoding support missing!");
+        }
+    }
+
+    /**
+     *  Convenience Method for Accept Content Coding headers
+     *
+     *  @param encoding content encoding we would like to use.
+     *  @return true if the sender announced that it accepts this encoding.
+     */
+    public boolean acceptsEncoding(MimeMediaType encoding) {
+        Iterator eachHeader = getHeader("accept-content-coding");
+
+        while(eachHeader.hasNext()) {
+            Header header = (Header) eachHeader.next();
+            try {
+                if(encoding.equals(new MimeMediaType(new String(header.getValue(), "UTF-8"))))
+                    return true;
+            } catch (UnsupportedEncodingException never) {
+                // utf-8 is a required encoding.
+                throw new IllegalStateException("UTF-8 encoding support missing!");
+            } catch (IllegalArgumentException garbled) {
+                // not a mime type we know
+                ;
+            }
+        }
+
+        return false;
+    }
 }
@@ -0,0 +1,235 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+
+import java.io.IOException;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.Message;
+import net.jxta.util.LimitInputStream;
+
+import net.jxta.impl.endpoint.DeflateCodec;
+import net.jxta.impl.endpoint.MessageSlab;
+import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.WireFormatMessageFactory;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+
+/**
+ *  The content coding of the messages of one connection.
+ *
+ *  <p/>The deflate encoding is negotiated with message package headers so
+ *  that peers which do not know it keep working: the first message we send
+ *  carries an <tt>accept-content-coding</tt> header, which such peers
+ *  ignore. Once the remote peer has announced the same, messages of at least
+ *  {@link TcpTransport#DeflateThreshold} bytes are deflated and marked with a
+ *  <tt>content-coding</tt> header. Received messages are decoded according
+ *  to their <tt>content-coding</tt> header whether or not we asked for it.
+ */
+final class ContentCoding {
+
+    /**
+     *  Our codec, null if content coding is disabled.
+     */
+    private final DeflateCodec codec;
+
+    /**
+     *  If true then we have announced the encodings we accept.
+     */
+    private volatile boolean announced = false;
+
+    /**
+     *  If true then the remote peer accepts deflated messages.
+     */
+    private volatile boolean remoteInflates = false;
+
+    ContentCoding() {
+        codec = (TcpTransport.DeflateThreshold < 0) ? null : new DeflateCodec(TcpTransport.DeflateLevel);
+    }
+
+    /**
+     *  Serializes a message and fills in the package header for it.
+     *
+     *  @param msg the message.
+     *  @param type the serialization desired.
+     *  @param header the package header to fill in.
+     *  @return the serialization to send after the header.
+     *  @throws IOException if the message cannot be serialized.
+     */
+    WireFormatMessage toWire(Message msg, MimeMediaType type, MessagePackageHeader header) throws IOException {
+        WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, type, (MimeMediaType[]) null);
+
+        if (remoteInflates && (serialed.getByteLength() >= TcpTransport.DeflateThreshold)) {
+            WireFormatMessage deflated = codec.encode(serialed);
+
+            // incompressible content is sent as is.
+            if (deflated.getByteLength() < serialed.getByteLength()) {
+                serialed = deflated;
+                header.setContentEncodingHeader(deflated.getContentEncoding());
+            }
+        }
+
+        header.setContentTypeHeader(serialed.getMimeType());
+        header.setContentLengthHeader(serialed.getByteLength());
+
+        if ((null != codec) && !announced) {
+            announced = true;
+            header.addAcceptEncodingHeader(WireFormatMessageFactory.DEFLATE_ENCODING);
+        }
+
+        return serialed;
+    }
+
+    /**
+     *  Reads the body of a received message from a stream.
+     *
+     *  @param header the package header of the message.
+     *  @param in the stream, positioned at the body.
+     *  @return the message.
+     *  @throws IOException if the body cannot be read or decoded.
+     */
+    Message fromWire(MessagePackageHeader header, InputStream in) throws IOException {
+        long msglength = header.getContentLengthHeader();
+
+        if ((msglength < 0) || (msglength > NioTcpConnection.MaxFrameSize)) {
+            if ((msglength < 0) || (null != header.getContentEncodingHeader())) {
+                throw new IOException("Invalid message length : " + msglength);
+            }
+
+            // too big to buffer, decode as it arrives.
+            noteAccepted(header);
+            return WireFormatMessageFactory.fromWire(new LimitInputStream(in, msglength, true), header.getContentTypeHeader(), (MimeMediaType) null);
+        }
+
+        MessageSlab slab = MessageSlab.acquire((int) msglength);
+
+        try {
+            new DataInputStream(in).readFully(slab.getBuffer(), 0, (int) msglength);
+
+            return decode(header, slab, (int) msglength);
+        } finally {
+            slab.release();
+        }
+    }
+
+    /**
+     *  Reads the body of a received message from a buffer.
+     *
+     *  @param header the package header of the message.
+     *  @param buf the buffer.
+     *  @param offset offset of the body in the buffer.
+     *  @param length length of the body.
+     *  @return the message.
+     *  @throws IOException if the body cannot be decoded.
+     */
+    Message fromWire(MessagePackageHeader header, byte[] buf, int offset, int length) throws IOException {
+        MessageSlab slab = MessageSlab.acquire(length);
+
+        try {
+            System.arraycopy(buf, offset, slab.getBuffer(), 0, length);
+
+            return decode(header, slab, length);
+        } finally {
+            slab.release();
+        }
+    }
+
+    /**
+     *  Decodes the body of a received message. The elements of the message
+     *  are views of the slab.
+     *
+     *  @param header the package header of the message.
+     *  @param slab the slab holding the body.
+     *  @param length length of the body.
+     *  @return the message.
+     *  @throws IOException if the body cannot be decoded.
+     */
+    private Message decode(MessagePackageHeader header, MessageSlab slab, int length) throws IOException {
+        noteAccepted(header);
+
+        MimeMediaType encoding = header.getContentEncodingHeader();
+        InputStream body;
+
+        if ((null != encoding) && (null != codec) && WireFormatMessageFactory.DEFLATE_ENCODING.equals(encoding)) {
+            body = codec.decode(slab.getBuffer(), 0, length, NioTcpConnection.MaxFrameSize);
+            encoding = null;
+        } else {
+            body = slab.getStream(0, length);
+        }
+
+        return WireFormatMessageFactory.fromWire(body, header.getContentTypeHeader(), encoding);
+    }
+
+    /**
+     *  Releases the codec.
+     */
+    void end() {
+        if (null != codec) {
+            codec.end();
+        }
+    }
+
+    /**
+     *  Notes whether the remote peer announced that it accepts deflated messages.
+     */
+    private void noteAccepted(MessagePackageHeader header) {
+        if ((null != codec) && !remoteInflates && header.acceptsEncoding(WireFormatMessageFactory.DEFLATE_ENCODING)) {
+            remoteInflates = true;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  Runs the {@link NioTcpConnection}s of a transport, and accepts incoming
+ *  connections, on a small fixed number of I/O threads instead of a thread
+ *  per connection. Each thread owns a selector; connections are spread over
+ *  them round-robin and stay with their thread for their lifetime.
+ *
+ *  <p/>Incoming messages are demuxed on the I/O thread, so endpoint
+ *  listeners must not block for long. Sends from an I/O thread never wait
+ *  for the data to be written, and connections opened from an I/O thread
+ *  are connected and welcomed without blocking.
+ */
+final class NioDispatcher {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(NioDispatcher.class.getName());
+
+    /**
+     *  How often the connection timeouts are checked.
+     */
+    static final long CheckInterval = TimeUtils.ASECOND;
+
+    /**
+     *  The transport we are working for.
+     */
+    private final TcpTransport owner;
+
+    private final Worker[] workers;
+
+    /**
+     *  The worker which gets the next registered connection.
+     */
+    private int nextWorker = 0;
+
+    /**
+     *  The channel on which we accept connections, if any. It belongs to the
+     *  first worker.
+     */
+    private ServerSocketChannel server = null;
+
+    private volatile boolean closed = false;
+
+    /**
+     *  An I/O thread and its selector.
+     */
+    final class Worker implements Runnable {
+
+        final Selector selector;
+
+        /**
+         *  Work which must be done on this thread, registrations and interest
+         *  changes.
+         */
+        private final ConcurrentLinkedQueue tasks = new ConcurrentLinkedQueue();
+
+        private Thread thread = null;
+
+        /**
+         *  Set once this worker's thread has ended. Connections are no
+         *  longer given to it.
+         */
+        volatile boolean stopped = false;
+
+        Worker() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         *  @return true if called from this worker's thread.
+         */
+        boolean isCurrent() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         *  Runs a task on this worker's thread. Once the worker has stopped
+         *  the task is run on the calling thread, against the closed
+         *  selector.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (stopped) {
+                runTasks();
+            } else {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         *  Runs the queued tasks. A failing task is logged and does not
+         *  prevent the others from running.
+         */
+        private void runTasks() {
+            Runnable task;
+            while ((task = (Runnable) tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Throwable all) {
+                    if (LOG.isEnabledFor(Level.ERROR)) {
+                        LOG.error("Uncaught Throwable in I/O task of thread :" + Thread.currentThread().getName(), all);
+                    }
+                }
+            }
+        }
+
+        /**
+         *  {@inheritDoc}
+         *
+         *  <p/>A failure of one task or one connection is logged and that
+         *  connection closed; only a failure of the selector itself ends the
+         *  thread.
+         */
+        public void run() {
+            long lastCheck = TimeUtils.timeNow();
+
+            try {
+                while (!closed) {
+                    selector.select(CheckInterval);
+
+                    runTasks();
+
+                    Iterator eachKey = selector.selectedKeys().iterator();
+                    while (eachKey.hasNext()) {
+                        SelectionKey key = (SelectionKey) eachKey.next();
+                        eachKey.remove();
+
+                        Object attached = key.attachment();
+                        try {
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (attached == null) {
+                                accept();
+                            } else {
+                                ((NioTcpConnection) attached).ready(key);
+                            }
+                        } catch (Throwable all) {
+                            failed(attached, all);
+                        }
+                    }
+
+                    long now = TimeUtils.timeNow();
+                    if (TimeUtils.toRelativeTimeMillis(now, lastCheck) >= CheckInterval) {
+                        lastCheck = now;
+                        eachKey = selector.keys().iterator();
+                        while (eachKey.hasNext()) {
+                            Object attached = ((SelectionKey) eachKey.next()).attachment();
+                            if (attached != null) {
+                                try {
+                                    ((NioTcpConnection) attached).checkTimeouts(now);
+                                } catch (Throwable all) {
+                                    failed(attached, all);
+                                }
+                            }
+                        }
+                    }
+                }
+            } catch (Throwable all) {
+                if (LOG.isEnabledFor(Level.FATAL)) {
+                    LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+                }
+            } finally {
+                stopped = true;
+                Iterator eachKey = selector.keys().iterator();
+                while (eachKey.hasNext()) {
+                    Object attached = ((SelectionKey) eachKey.next()).attachment();
+                    if (attached != null) {
+                        ((NioTcpConnection) attached).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                    ;
+                }
+                // registrations which raced with our end find the selector closed.
+                runTasks();
+            }
+        }
+
+        /**
+         *  Handles the failure of a key: the connection is closed, the
+         *  thread goes on with the others.
+         */
+        private void failed(Object attached, Throwable failure) {
+            if (LOG.isEnabledFor(Level.ERROR)) {
+                LOG.error("Uncaught Throwable handling " + ((attached == null) ? "accept" : attached.toString()) + " in thread :" + Thread.currentThread().getName(), failure);
+            }
+            if (attached != null) {
+                ((NioTcpConnection) attached).close();
+            }
+        }
+    }
+
+    /**
+     *  Creates a dispatcher.
+     *
+     *  @param owner    the transport we are working for.
+     *  @param threads  the number of I/O threads.
+     *  @throws IOException if the selectors cannot be opened.
+     */
+    NioDispatcher(TcpTransport owner, int threads) throws IOException {
+        this.owner = owner;
+        workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker();
+        }
+    }
+
+    /**
+     *  Binds the server channel. Connections are accepted once started.
+     *
+     *  @param serverInterface  the network interface to use.
+     *  @param port             the port we will be listening on.
+     *  @return the bound address.
+     *  @throws IOException if the channel could not be bound.
+     */
+    synchronized InetSocketAddress bind(InetAddress serverInterface, int port) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().bind(new InetSocketAddress(serverInterface, port), TcpTransport.MaxAcceptCnxBacklog);
+            channel.configureBlocking(false);
+        } catch (IOException failed) {
+            channel.close();
+            throw failed;
+        }
+        server = channel;
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Server will accept connections at " + channel.socket().getLocalSocketAddress());
+        }
+        return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     *  Get the address of the server channel, if bound.
+     */
+    synchronized InetSocketAddress getLocalSocketAddress() {
+        return (null == server) ? null : (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /**
+     *  @return the number of I/O threads.
+     */
+    int getThreadCount() {
+        return workers.length;
+    }
+
+    /**
+     *  Starts the I/O threads and, if bound, accepting connections.
+     *
+     *  @param inGroup  the thread group we should create our threads in.
+     */
+    synchronized void start(ThreadGroup inGroup) {
+        for (int i = 0; i < workers.length; i++) {
+            Thread thread = new Thread(inGroup, workers[i], "TCP I/O " + i);
+            thread.setDaemon(true);
+            workers[i].thread = thread;
+            thread.start();
+        }
+
+        final ServerSocketChannel channel = server;
+        if (channel != null) {
+            final Worker acceptor = workers[0];
+            acceptor.execute(new Runnable() {
+                                 public void run() {
+                                     try {
+                                         channel.register(acceptor.selector, SelectionKey.OP_ACCEPT, null);
+                                     } catch (IOException failed) {
+                                         if (LOG.isEnabledFor(Level.ERROR)) {
+                                             LOG.error("Failed to accept connections", failed);
+                                         }
+                                     }
+                                 }
+                             }
+                            );
+        }
+    }
+
+    /**
+     *  Stops the I/O threads, which close all connections.
+     */
+    synchronized void stop() {
+        closed = true;
+
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+                ;
+            }
+            server = null;
+        }
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].selector.wakeup();
+        }
+    }
+
+    /**
+     *  @return true if called from one of our I/O threads.
+     */
+    boolean isIoThread() {
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i].isCurrent()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  Hands a connection to one of the I/O threads.
+     *
+     *  @param conn the connection.
+     *  @throws IOException if the dispatcher is stopped.
+     */
+    void register(final NioTcpConnection conn) throws IOException {
+        Worker worker = null;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("TCP transport is stopped");
+            }
+            for (int tries = 0; (worker == null) && (tries < workers.length); tries++) {
+                Worker candidate = workers[nextWorker];
+                nextWorker = (nextWorker + 1) % workers.length;
+                if (!candidate.stopped) {
+                    worker = candidate;
+                }
+            }
+        }
+        if (worker == null) {
+            throw new IOException("TCP I/O threads have failed");
+        }
+
+        final Worker assigned = worker;
+
+        conn.worker = assigned;
+        assigned.execute(new Runnable() {
+                             public void run() {
+                                 conn.register(assigned.selector);
+                             }
+                         }
+                        );
+    }
+
+    /**
+     *  Accepts all pending connections. Their welcome message is exchanged
+     *  without blocking, the messenger is announced when it completes.
+     */
+    private void accept() {
+        ServerSocketChannel channel = server;
+        if (channel == null) {
+            return;
+        }
+
+        while (true) {
+            SocketChannel incoming;
+            try {
+                incoming = channel.accept();
+            } catch (IOException failed) {
+                if (!closed && LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("ServerSocketChannel.accept() failed", failed);
+                }
+                return;
+            }
+            if (incoming == null) {
+                return;
+            }
+
+            try {
+                register(new NioTcpConnection(incoming, owner));
+            } catch (Throwable all) {
+                try {
+                    incoming.close();
+                } catch (IOException ignored) {
+                    ;
+                }
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Failed to create connection", all);
+                }
+            }
+        }
+    }
+}
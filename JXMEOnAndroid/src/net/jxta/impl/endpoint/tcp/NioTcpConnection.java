@@ -0,0 +1,863 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import net.jxta.document.MimeMediaType;
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.id.ID;
+
+import net.jxta.impl.endpoint.WireFormatMessage;
+import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
+import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.impl.util.TimeUtils;
+
+/**
+ *  A connection driven by a {@link NioDispatcher}. It speaks the same
+ *  protocol as {@link TcpConnection}: a welcome message in each direction,
+ *  then messages framed by a {@link MessagePackageHeader}.
+ *
+ *  <p/>Received bytes are accumulated in a buffer until a complete welcome
+ *  message, header or message body is available, which is then decoded from
+ *  the buffer. Messages sent are queued as the buffers of their wire format,
+ *  which reference the element contents, and written with gathering writes
+ *  as the socket accepts them. A sender waits while more than {@link TcpTransport#SendBufferSize}
+ *  bytes are queued, unless it is an I/O thread.
+ *
+ *  <p/>The timeouts of the watched streams are applied by the dispatcher:
+ *  the connection fails if a started read or write makes no progress for
+ *  {@link TcpTransport#ShortTimeout} or if nothing is received for
+ *  {@link TcpTransport#LongTimeout}.
+ */
+final class NioTcpConnection implements TcpLink {
+
+    /**
+     *  Log4J Logger
+     */
+    private static final Logger LOG = Logger.getLogger(NioTcpConnection.class.getName());
+
+    private static final MimeMediaType appMsg = new MimeMediaType("application/x-jxta-msg").intern();
+
+    /**
+     *  The largest welcome message we accept, as {@link WelcomeMessage}.
+     */
+    static final int MaxWelcomeSize = 4096;
+
+    /**
+     *  The largest header or message body we buffer. The blocking connection
+     *  streams messages and has no limit, we must hold a message in memory.
+     */
+    static final int MaxFrameSize = 16 * 1024 * 1024;
+
+    /**
+     *  The most buffers passed to a single gathering write.
+     */
+    static final int MaxGather = 64;
+
+    /**
+     *  Receive states.
+     */
+    private static final int WELCOME = 0;
+    private static final int HEADER = 1;
+    private static final int BODY = 2;
+
+    private final TcpTransport proto;
+    private final SocketChannel channel;
+    private final InetSocketAddress remote;
+    private final boolean initiator;
+
+    private volatile EndpointAddress dstAddress = null;
+    private EndpointAddress fullDstAddress = null;
+
+    private volatile WelcomeMessage itsWelcome = null;
+
+    private volatile boolean closed = false;
+
+    /**
+     *  True while a connect started without blocking has not completed.
+     */
+    private volatile boolean connecting = false;
+
+    private boolean closingDueToFailure = false;
+    private volatile boolean started = false;
+    private volatile long lastUsed = TimeUtils.timeNow();
+
+    /**
+     *  The worker which runs this connection, set when registered.
+     */
+    volatile NioDispatcher.Worker worker = null;
+
+    /**
+     *  Our key, only used by the worker.
+     */
+    private SelectionKey key = null;
+
+    /*
+     *  Receive state, only used by the worker.
+     */
+    private ByteBuffer in = ByteBuffer.allocate(TcpTransport.ChunkSize);
+    private int state = WELCOME;
+    private MessagePackageHeader header = null;
+    private int bodyLength = 0;
+    private final long created = TimeUtils.timeNow();
+    private long connectedAt = created;
+    private long lastRead = created;
+
+    /*
+     *  Send state, guarded by writeLock. The queue holds the buffers of each
+     *  frame followed by the serialized message which owns them, which must
+     *  stay reachable until they are written.
+     */
+    private final Object writeLock = new String("tcp write lock");
+    private final LinkedList queue = new LinkedList();
+    private long pending = 0;
+    private long lastWrite = created;
+    private boolean writeInterest = false;
+
+    /**
+     *  The content coding of our messages.
+     */
+    private final ContentCoding coding = new ContentCoding();
+
+    /**
+     *  Creates a new connection to the specified destination address. The
+     *  welcome messages are exchanged on the calling thread, which needs the
+     *  identity of the remote peer anyway, then the connection is handed to
+     *  the dispatcher. It receives once started.
+     *
+     *  <p/>On an I/O thread, for instance a listener replying to a message it
+     *  was handed, blocking would stall every connection of the selector.
+     *  There the connect is completed by the dispatcher and the welcome
+     *  messages are exchanged as for an accepted connection. Messages sent
+     *  meanwhile are queued after our welcome message, and the identity of
+     *  the remote peer is unknown until its welcome message is received.
+     *
+     *  @param destaddr the destination address of this connection.
+     *  @param p        the transport which this connection is part of.
+     *  @param dispatcher the dispatcher which will run this connection.
+     *  @throws IOException for failures in creating the connection.
+     */
+    NioTcpConnection(EndpointAddress destaddr, TcpTransport p, NioDispatcher dispatcher) throws IOException {
+        initiator = true;
+        proto = p;
+
+        fullDstAddress = destaddr;
+        dstAddress = new EndpointAddress(destaddr, null, null);
+        remote = TcpConnection.getSocketAddress(destaddr);
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("New TCP Connection to : " + dstAddress + " / " + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+        }
+
+        // See TcpConnection.
+        if (remote.getAddress().isLoopbackAddress() != proto.usingInterface.isLoopbackAddress()) {
+            throw new IOException("Network unreachable");
+        }
+
+        channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            configure(socket);
+
+            WelcomeMessage myWelcome = new WelcomeMessage(fullDstAddress, proto.getPublicAddress(), proto.group.getPeerID(), false);
+            ByteBuffer welcome = toBuffer(myWelcome);
+
+            if (dispatcher.isIoThread()) {
+                channel.configureBlocking(false);
+                connecting = !channel.connect(remote);
+                write(new ByteBuffer[] {welcome}, null, false);
+                dispatcher.register(this);
+                return;
+            }
+
+            socket.connect(remote, TcpTransport.connectionTimeOut);
+            while (welcome.hasRemaining()) {
+                channel.write(welcome);
+            }
+
+            // The response should arrive shortly or we bail out. The welcome
+            // is read a byte at a time, nothing beyond it is consumed.
+            socket.setSoTimeout(TcpTransport.ShortTimeout);
+            itsWelcome = new WelcomeMessage(socket.getInputStream());
+            socket.setSoTimeout(0);
+
+            channel.configureBlocking(false);
+            state = HEADER;
+            lastRead = TimeUtils.timeNow();
+            dispatcher.register(this);
+        } catch (IOException e) {
+            // We're the only one to know about it.
+            closed = true;
+            channel.close();
+            throw e;
+        }
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Hello from " + itsWelcome.getPublicAddress() + " [" + itsWelcome.getPeerID() + "]");
+        }
+    }
+
+    /**
+     *  Creates a new connection from an accepted channel. Our welcome message
+     *  is queued, the messenger is announced when the remote welcome message
+     *  has been received.
+     *
+     *  @param incoming the accepted channel.
+     *  @param p        the transport we are working for.
+     *  @throws IOException for failures in creating the connection.
+     */
+    NioTcpConnection(SocketChannel incoming, TcpTransport p) throws IOException {
+        initiator = false;
+        proto = p;
+        channel = incoming;
+        remote = (InetSocketAddress) incoming.socket().getRemoteSocketAddress();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info("Connection from " + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+        }
+
+        // Temporarily, our address for inclusion in the welcome message
+        // response.
+        dstAddress = new EndpointAddress(proto.getProtocolName(), remote.getAddress().getHostAddress() + ":" + remote.getPort(), null, null);
+        fullDstAddress = dstAddress;
+
+        configure(incoming.socket());
+        incoming.configureBlocking(false);
+
+        WelcomeMessage myWelcome = new WelcomeMessage(fullDstAddress, proto.getPublicAddress(), proto.group.getPeerID(), false);
+        write(new ByteBuffer[] {toBuffer(myWelcome)}, null, false);
+    }
+
+    /**
+     *  Sets the socket options. Unlike the blocking connection we do not
+     *  linger, closing would block the I/O thread.
+     */
+    private static void configure(Socket socket) throws IOException {
+        socket.setKeepAlive(true);
+        socket.setSendBufferSize(Math.max(TcpTransport.ChunkSize, socket.getSendBufferSize()));
+        socket.setReceiveBufferSize(Math.max(TcpTransport.RecvBufferSize, socket.getReceiveBufferSize()));
+        socket.setTcpNoDelay(true);
+    }
+
+    private static ByteBuffer toBuffer(WelcomeMessage welcome) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        welcome.sendToStream(out);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Implementation for debugging.
+     */
+    public String toString() {
+        WelcomeMessage welcome = itsWelcome;
+        return super.toString() + ":" + ((null != welcome) ? welcome.getPeerID().toString() : "unknown") + " on address " + dstAddress;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public EndpointAddress getDestinationAddress() {
+        return (EndpointAddress) dstAddress.clone();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public EndpointAddress getConnectionAddress() {
+        WelcomeMessage welcome = itsWelcome;
+        return (null == welcome) ? null : welcome.getDestinationAddress();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public ID getDestinationPeerID() {
+        WelcomeMessage welcome = itsWelcome;
+        return (null == welcome) ? null : welcome.getPeerID();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public boolean isConnected() {
+        // an outgoing connection is usable while its welcome is pending.
+        return (initiator || (itsWelcome != null)) && !closed;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public void start() {
+        started = true;
+        interest(SelectionKey.OP_READ, true);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>The message is queued and written by the I/O thread as the
+     *  socket accepts it, so there is nothing to batch and flush is ignored.
+     */
+    public void sendMessage(Message msg, boolean flush) throws IOException {
+        if (closed) {
+            throw new IOException("Connection was closed to : " + dstAddress);
+        }
+
+        MessagePackageHeader header = new MessagePackageHeader();
+        WireFormatMessage serialed = coding.toWire(msg, appMsg, header);
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("sendMessage (" + serialed.getByteLength() + ") to " + dstAddress + " via " + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+        }
+
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream(64);
+        header.sendToStream(headerBytes);
+
+        ByteBuffer[] body = serialed.getByteBuffers();
+        ByteBuffer[] frame = new ByteBuffer[body.length + 1];
+        frame[0] = ByteBuffer.wrap(headerBytes.toByteArray());
+        System.arraycopy(body, 0, frame, 1, body.length);
+
+        write(frame, serialed, true);
+        lastUsed = TimeUtils.timeNow();
+    }
+
+    /**
+     *  Queues bytes to send and writes as much as the socket accepts.
+     *
+     *  @param buffers  the bytes.
+     *  @param owner    kept reachable until the bytes are written, may be null.
+     *  @param wait     if true and not on an I/O thread, wait while too much is queued.
+     *  @throws IOException if the connection failed or was closed.
+     */
+    private void write(ByteBuffer[] buffers, Object owner, boolean wait) throws IOException {
+        IOException failure = null;
+
+        synchronized (writeLock) {
+            if (closed) {
+                throw new IOException("Connection was closed to : " + dstAddress);
+            }
+            boolean idle = queue.isEmpty();
+            if (idle) {
+                lastWrite = TimeUtils.timeNow();
+            }
+            for (int i = 0; i < buffers.length; i++) {
+                queue.addLast(buffers[i]);
+                pending += buffers[i].remaining();
+            }
+            if (null != owner) {
+                queue.addLast(owner);
+            }
+
+            try {
+                if (idle) {
+                    flushQueue();
+                }
+                if (!queue.isEmpty() && !writeInterest) {
+                    writeInterest = true;
+                    interest(SelectionKey.OP_WRITE, true);
+                }
+
+                NioDispatcher.Worker current = worker;
+                boolean onIoThread = (current == null) || proto.isIoThread();
+                while (wait && !onIoThread && !closed && (pending > TcpTransport.SendBufferSize)) {
+                    writeLock.wait(TcpTransport.ShortTimeout);
+                    if (!closed && (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), lastWrite) >= TcpTransport.ShortTimeout)) {
+                        throw new IOException("write() timeout after " + TcpTransport.ShortTimeout + "ms");
+                    }
+                }
+            } catch (InterruptedException woken) {
+                Thread.interrupted();
+                failure = new IOException("Interrupted while sending");
+            } catch (IOException failed) {
+                failure = failed;
+            }
+        }
+
+        if (failure != null) {
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp send - message send failed for " + remote.getAddress().getHostAddress() + ":" + remote.getPort(), failure);
+            }
+            closingDueToFailure = true;
+            close();
+            throw failure;
+        }
+        if (closed) {
+            throw new IOException("Connection was closed to : " + dstAddress);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Nothing to do: sendMessage never leaves a message buffered.
+     */
+    public void flush() {
+    }
+
+    /**
+     *  Writes queued bytes until the socket would block. Must hold
+     *  writeLock.
+     */
+    private void flushQueue() throws IOException {
+        if (connecting) {
+            // written once connected.
+            return;
+        }
+        while (true) {
+            // let go of the owners of the frames which were written.
+            while (!queue.isEmpty() && !(queue.getFirst() instanceof ByteBuffer)) {
+                queue.removeFirst();
+            }
+            if (queue.isEmpty()) {
+                break;
+            }
+
+            ByteBuffer[] gather = new ByteBuffer[Math.min(queue.size(), MaxGather)];
+            int gathered = 0;
+            Iterator eachEntry = queue.iterator();
+            while ((gathered < gather.length) && eachEntry.hasNext()) {
+                Object entry = eachEntry.next();
+                if (entry instanceof ByteBuffer) {
+                    gather[gathered++] = (ByteBuffer) entry;
+                }
+            }
+
+            long written = channel.write(gather, 0, gathered);
+            if (written > 0) {
+                pending -= written;
+                lastWrite = TimeUtils.timeNow();
+            }
+            while (!queue.isEmpty() && (queue.getFirst() instanceof ByteBuffer) && !((ByteBuffer) queue.getFirst()).hasRemaining()) {
+                queue.removeFirst();
+            }
+            if (gather[gathered - 1].hasRemaining()) {
+                // the socket is full.
+                break;
+            }
+        }
+        writeLock.notifyAll();
+    }
+
+    /**
+     *  Changes the interest of our key, on the worker thread.
+     */
+    private void interest(final int ops, final boolean on) {
+        final NioDispatcher.Worker current = worker;
+        if (current == null) {
+            // not yet registered, register() will use the current state.
+            return;
+        }
+        if (current.isCurrent()) {
+            updateInterest(ops, on);
+        } else {
+            current.execute(new Runnable() {
+                                public void run() {
+                                    updateInterest(ops, on);
+                                }
+                            }
+                           );
+        }
+    }
+
+    private void updateInterest(int ops, boolean on) {
+        SelectionKey current = key;
+        if ((current != null) && current.isValid()) {
+            try {
+                current.interestOps(on ? (current.interestOps() | ops) : (current.interestOps() & ~ops));
+            } catch (CancelledKeyException closing) {
+                // the channel was closed by another thread since isValid().
+                ;
+            }
+        }
+    }
+
+    /**
+     *  Registers the channel with the selector of our worker. Called on the
+     *  worker thread.
+     */
+    void register(Selector selector) {
+        if (closed) {
+            return;
+        }
+
+        int ops;
+        if (connecting) {
+            ops = SelectionKey.OP_CONNECT;
+        } else {
+            ops = (started || (itsWelcome == null)) ? SelectionKey.OP_READ : 0;
+            synchronized (writeLock) {
+                if (writeInterest) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+        }
+
+        try {
+            key = channel.register(selector, ops, this);
+        } catch (ClosedSelectorException stopped) {
+            close();
+        } catch (IOException failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Failed to register connection to " + dstAddress, failed);
+            }
+            closingDueToFailure = true;
+            close();
+        }
+    }
+
+    /**
+     *  Handles the readiness of our channel. Called on the worker thread.
+     *
+     *  @param selected our key.
+     */
+    void ready(SelectionKey selected) {
+        try {
+            if (selected.isValid() && selected.isConnectable()) {
+                if (!channel.finishConnect()) {
+                    return;
+                }
+                connected(selected);
+            }
+            if (selected.isValid() && selected.isWritable()) {
+                synchronized (writeLock) {
+                    flushQueue();
+                    if (queue.isEmpty()) {
+                        writeInterest = false;
+                        updateInterest(SelectionKey.OP_WRITE, false);
+                    }
+                }
+            }
+            if (selected.isValid() && selected.isReadable()) {
+                receive();
+            }
+        } catch (EOFException finished) {
+            // The other side has closed the connection
+            if (LOG.isEnabledFor(Level.INFO)) {
+                LOG.info("tcp receive - Connection was closed by " + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+            }
+            close();
+        } catch (Throwable e) {
+            closingDueToFailure = true;
+            if (!closed && LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp receive - Error on connection " + remote.getAddress().getHostAddress() + ":" + remote.getPort(), e);
+            }
+            close();
+        }
+    }
+
+    /**
+     *  A connect started without blocking has completed: receive the
+     *  welcome message and write what was queued meanwhile.
+     */
+    private void connected(SelectionKey selected) throws IOException {
+        connecting = false;
+        connectedAt = TimeUtils.timeNow();
+        lastRead = connectedAt;
+
+        synchronized (writeLock) {
+            lastWrite = connectedAt;
+            flushQueue();
+            writeInterest = !queue.isEmpty();
+            selected.interestOps(SelectionKey.OP_READ | (writeInterest ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    /**
+     *  Reads what is available and handles every complete frame.
+     */
+    private void receive() throws IOException {
+        int count = channel.read(in);
+        if (count < 0) {
+            throw new EOFException("Connection closed");
+        }
+        if (count == 0) {
+            return;
+        }
+        lastRead = TimeUtils.timeNow();
+
+        in.flip();
+        int needed;
+        do {
+            needed = frame();
+        } while ((0 == needed) && !closed);
+        in.compact();
+
+        if (needed > MaxFrameSize) {
+            throw new IOException("Frame too large : " + needed);
+        }
+        if (needed > in.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(needed);
+            in.flip();
+            larger.put(in);
+            in = larger;
+        } else if ((0 == in.position()) && (in.capacity() > TcpTransport.RecvBufferSize)) {
+            // do not keep a large buffer around after a large message
+            in = ByteBuffer.allocate(TcpTransport.ChunkSize);
+        }
+    }
+
+    /**
+     *  Handles the next frame of the buffer if complete.
+     *
+     *  @return 0 if a frame was handled, otherwise the number of bytes,
+     *  from the current position, needed to complete it.
+     */
+    private int frame() throws IOException {
+        int start = in.position();
+        int limit = in.limit();
+
+        switch (state) {
+            case WELCOME:
+                for (int i = start; i + 1 < limit; i++) {
+                    if (('\r' == in.get(i)) && ('\n' == in.get(i + 1))) {
+                        WelcomeMessage welcome = new WelcomeMessage(new ByteArrayInputStream(in.array(), in.arrayOffset() + start, i + 2 - start));
+                        in.position(i + 2);
+                        state = HEADER;
+                        if (initiator) {
+                            itsWelcome = welcome;
+                            if (LOG.isEnabledFor(Level.DEBUG)) {
+                                LOG.debug("Hello from " + welcome.getPublicAddress() + " [" + welcome.getPeerID() + "]");
+                            }
+                        } else {
+                            welcomed(welcome);
+                        }
+                        return 0;
+                    }
+                }
+                if (limit - start >= MaxWelcomeSize) {
+                    throw new IOException("Invalid welcome message, too long");
+                }
+                return limit - start + 1;
+
+            case HEADER:
+                int at = start;
+                while (true) {
+                    if (at >= limit) {
+                        return at - start + 1;
+                    }
+                    // the name length is a signed byte for MessagePackageHeader.
+                    int nameLength = in.get(at);
+                    if (0 == nameLength) {
+                        break;
+                    }
+                    if (nameLength < 0) {
+                        throw new IOException("Invalid header name length : " + nameLength);
+                    }
+                    if (at + 1 + nameLength + 2 > limit) {
+                        return at + 1 + nameLength + 2 - start;
+                    }
+                    int valueLength = ((in.get(at + 1 + nameLength) & 0xFF) << 8) | (in.get(at + 2 + nameLength) & 0xFF);
+                    at += 1 + nameLength + 2 + valueLength;
+                }
+
+                header = new MessagePackageHeader(new ByteArrayInputStream(in.array(), in.arrayOffset() + start, at + 1 - start));
+                in.position(at + 1);
+
+                long msglength = header.getContentLengthHeader();
+                if ((msglength < 0) || (msglength > MaxFrameSize)) {
+                    throw new IOException("Invalid message length : " + msglength);
+                }
+                bodyLength = (int) msglength;
+                state = BODY;
+                return 0;
+
+            case BODY:
+                if (limit - start < bodyLength) {
+                    return bodyLength;
+                }
+
+                Message msg = coding.fromWire(header, in.array(), in.arrayOffset() + start, bodyLength);
+                in.position(start + bodyLength);
+                header = null;
+                state = HEADER;
+
+                if (LOG.isEnabledFor(Level.DEBUG)) {
+                    LOG.debug("tcp receive - handing incoming message from " + remote.getAddress().getHostAddress() + ":" + remote.getPort() + " to EndpointService");
+                }
+
+                // Demux the message for the upper layers.
+                proto.endpoint.demux(msg);
+                lastUsed = TimeUtils.timeNow();
+                return 0;
+
+            default:
+                throw new IllegalStateException("Unknown state " + state);
+        }
+    }
+
+    /**
+     *  The welcome message of an incoming connection was received: announce
+     *  the messenger as IncomingUnicastServer does.
+     */
+    private void welcomed(WelcomeMessage welcome) throws IOException {
+        // The correct value for dstAddr: that of the other party.
+        dstAddress = welcome.getPublicAddress();
+        fullDstAddress = dstAddress;
+        itsWelcome = welcome;
+
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Hello from " + welcome.getPublicAddress() + " [" + welcome.getPeerID() + "]");
+        }
+
+        TcpMessenger newMessenger = new TcpMessenger(getDestinationAddress(), this, proto);
+        try {
+            proto.messengerReadyEvent(newMessenger, getConnectionAddress());
+        } catch (Throwable all) {
+            if (LOG.isEnabledFor(Level.FATAL)) {
+                LOG.fatal("Uncaught Throwable in thread :" + Thread.currentThread().getName(), all);
+            }
+        }
+        newMessenger.start();
+    }
+
+    /**
+     *  Fails the connection if it stalled. Called on the worker thread.
+     *
+     *  @param now the current time.
+     */
+    void checkTimeouts(long now) {
+        String stalled = null;
+
+        if (connecting) {
+            if (TimeUtils.toRelativeTimeMillis(now, created) > TcpTransport.connectionTimeOut) {
+                stalled = "connect()";
+            }
+        } else if (WELCOME == state) {
+            if (TimeUtils.toRelativeTimeMillis(now, connectedAt) > TcpTransport.ShortTimeout) {
+                stalled = "welcome";
+            }
+        } else if (started || !initiator) {
+            long idle = TimeUtils.toRelativeTimeMillis(now, lastRead);
+            boolean inFrame = (BODY == state) || (in.position() > 0);
+            if (inFrame ? (idle > TcpTransport.ShortTimeout) : (idle > TcpTransport.LongTimeout)) {
+                stalled = "read()";
+            }
+        }
+
+        synchronized (writeLock) {
+            if (!connecting && (pending > 0) && (TimeUtils.toRelativeTimeMillis(now, lastWrite) > TcpTransport.ShortTimeout)) {
+                stalled = "write()";
+            }
+        }
+
+        if (stalled != null) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("tcp - Error : " + stalled + " timeout on connection " + remote.getAddress().getHostAddress() + ":" + remote.getPort());
+            }
+            closingDueToFailure = true;
+            close();
+        }
+    }
+
+    /**
+     *  Closes the connection. Queued messages are discarded.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        lastUsed = 0; // we idle now. Way idle.
+        coding.end();
+
+        if (LOG.isEnabledFor(Level.INFO)) {
+            LOG.info((closingDueToFailure ? "Failure" : "Normal") + " close of socket to : " + dstAddress + " / " + remote.getAddress().getHostAddress()
+                     + ":" + remote.getPort());
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            if (LOG.isEnabledFor(Level.DEBUG)) {
+                LOG.debug("Error : could not close channel ", ignored);
+            }
+        }
+
+        synchronized (writeLock) {
+            queue.clear();
+            pending = 0;
+            writeLock.notifyAll();
+        }
+    }
+}
@@ -62,6 +62,7 @@ import java.io.BufferedOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 
 import java.io.EOFException;
@@ -77,21 +78,20 @@ import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.Message;
 import net.jxta.id.ID;
 import net.jxta.peer.PeerID;
-import net.jxta.util.LimitInputStream;
 import net.jxta.util.WatchedInputStream;
 import net.jxta.util.WatchedOutputStream;
 
 import net.jxta.impl.endpoint.IPUtils;
 import net.jxta.impl.endpoint.WireFormatMessage;
-import net.jxta.impl.endpoint.WireFormatMessageFactory;
 import net.jxta.impl.endpoint.msgframing.MessagePackageHeader;
 import net.jxta.impl.endpoint.msgframing.WelcomeMessage;
+import net.jxta.impl.util.TimeUtils;
 
 /**
  * Low-level TcpMessenger
  *
  */
-class TcpConnection implements Runnable {
+class TcpConnection implements Runnable, TcpLink {
 
     /**
      *  Log4J Logger
@@ -129,6 +129,22 @@ class TcpConnection implements Runnable {
      */
     private final transient Object writeLock = new String("tcp write lock");
 
+    /**
+     *  Bytes written to the output stream since it was last flushed. Guarded
+     *  by writeLock.
+     */
+    private transient long batched = 0;
+
+    /**
+     *  When the first of the buffered bytes was written. Guarded by writeLock.
+     */
+    private transient long batchBegin = 0;
+
+    /**
+     *  The content coding of our messages.
+     */
+    private final transient ContentCoding coding = new ContentCoding();
+
     /**
      *  Creates a new TcpConnection for the specified destination address.
      *
@@ -144,27 +160,9 @@ class TcpConnection implements Runnable {
         this.fullDstAddress = destaddr;
         this.dstAddress = new EndpointAddress(destaddr, null, null);
 
-        String protoAddr = destaddr.getProtocolAddress();
-        int portIndex = protoAddr.lastIndexOf(":");
-
-        if (portIndex == -1) {
-            throw new IllegalArgumentException("Invalid Protocol Address (port # missing) ");
-        }
-
-        String portString = protoAddr.substring(portIndex + 1);
-        try {
-            port = Integer.valueOf(portString).intValue();
-        } catch (NumberFormatException caught) {
-            throw new IllegalArgumentException("Invalid Protocol Address (port # invalid): " + portString);
-        }
-
-        // Check for bad port number.
-        if ((port <= 0) || (port > 65535)) {
-            throw new IllegalArgumentException("Invalid port number in Protocol Address : " + port);
-        }
-
-        String hostString = protoAddr.substring(0, portIndex);
-        inetAddress = InetAddress.getByName(hostString);
+        InetSocketAddress target = getSocketAddress(destaddr);
+        inetAddress = target.getAddress();
+        port = target.getPort();
 
         if (LOG.isEnabledFor(Level.INFO)) {
             LOG.info("New TCP Connection to : " + dstAddress + " / "+ inetAddress.getHostAddress() + ":" + port);
@@ -234,6 +232,38 @@ class TcpConnection implements Runnable {
         }
     }
 
+    /**
+     *  Resolves the host and port of a tcp endpoint address.
+     *
+     *  @param destaddr the address.
+     *  @return the socket address.
+     *  @throws IOException if the host cannot be resolved.
+     */
+    static InetSocketAddress getSocketAddress(EndpointAddress destaddr) throws IOException {
+        String protoAddr = destaddr.getProtocolAddress();
+        int portIndex = protoAddr.lastIndexOf(":");
+
+        if (portIndex == -1) {
+            throw new IllegalArgumentException("Invalid Protocol Address (port # missing) ");
+        }
+
+        String portString = protoAddr.substring(portIndex + 1);
+        int port;
+        try {
+            port = Integer.valueOf(portString).intValue();
+        } catch (NumberFormatException caught) {
+            throw new IllegalArgumentException("Invalid Protocol Address (port # invalid): " + portString);
+        }
+
+        // Check for bad port number.
+        if ((port <= 0) || (port > 65535)) {
+            throw new IllegalArgumentException("Invalid port number in Protocol Address : " + port);
+        }
+
+        String hostString = protoAddr.substring(0, portIndex);
+        return new InetSocketAddress(InetAddress.getByName(hostString), port);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -329,7 +359,7 @@ class TcpConnection implements Runnable {
             }
             throw new IOException("Could not get streams");
         }
-        outputStream = new BufferedOutputStream(woutputStream, TcpTransport.SendBufferSize);
+        outputStream = new BufferedOutputStream(woutputStream, Math.max(TcpTransport.SendBufferSize, TcpTransport.MaxBatchBytes));
         inputStream = winputStream;
 
         myWelcome = new WelcomeMessage(fullDstAddress, proto.getPublicAddress(), proto.group.getPeerID(), false);
@@ -354,16 +384,24 @@ class TcpConnection implements Runnable {
         recvThread.setDaemon(true);
     }
 
-    protected void start() {
+    public void start() {
         recvThread.start();
     }
 
     /**
      * Send message to the remote peer.
      *
+     * <p/>If batching is enabled by {@link TcpTransport#BatchLinger} and the
+     * caller does not ask for a flush, the message stays in the output
+     * buffer. The buffer is still flushed once
+     * {@link TcpTransport#MaxBatchBytes} are buffered or the first buffered
+     * message is older than the linger.
+     *
      *  @param msg  the message to send.
+     *  @param flush  if false, the message may stay buffered until the next
+     *  call to {@link #flush()}.
      */
-    public void sendMessage(Message msg) throws IOException {
+    public void sendMessage(Message msg, boolean flush) throws IOException {
 
         // socket is a stream, only one writer at a time...
         synchronized (writeLock) {
@@ -381,19 +419,13 @@ class TcpConnection implements Runnable {
 
 
             try {
-                // 20020730 bondolo@jxta.org Do something with content-coding here
-                // serialize the message.
-                WireFormatMessage serialed = WireFormatMessageFactory.toWire(msg, appMsg, (MimeMediaType[]) null);
-
-                // Build the protocol header
-                // Allocate a buffer to contain the message and the header
-
+                // Build the protocol header and serialize the message,
+                // deflated if the remote peer accepts it.
                 MessagePackageHeader header = new MessagePackageHeader();
 
-                header.setContentTypeHeader(serialed.getMimeType());
+                WireFormatMessage serialed = coding.toWire(msg, appMsg, header);
 
                 size = serialed.getByteLength();
-                header.setContentLengthHeader(size);
 
                 if (LOG.isEnabledFor(Level.DEBUG)) {
                     LOG.debug("sendMessage (" + serialed.getByteLength() + ") to " + dstAddress + " via " + inetAddress.getHostAddress() + ":" + port);
@@ -401,11 +433,22 @@ class TcpConnection implements Runnable {
 
                 header.sendToStream(outputStream);
                 serialed.sendToStream(outputStream);
-                outputStream.flush();
+
+                long now = System.currentTimeMillis();
+
+                if (0 == batched) {
+                    batchBegin = now;
+                }
+                batched += size;
+                if (flush || (TcpTransport.BatchLinger <= 0) || (batched >= TcpTransport.MaxBatchBytes) ||
+                        (TimeUtils.toRelativeTimeMillis(now, batchBegin) >= TcpTransport.BatchLinger)) {
+                    outputStream.flush();
+                    batched = 0;
+                }
 
                 // all done!
                 success = true;
-                setLastUsed(System.currentTimeMillis());
+                setLastUsed(now);
 
             } catch (Throwable failure) {
 
@@ -420,6 +463,33 @@ class TcpConnection implements Runnable {
         }
     }
 
+    /**
+     *  Flushes the messages buffered by sendMessage. Called by the sending
+     *  thread once it has nothing more to send.
+     */
+    public void flush() throws IOException {
+        synchronized (writeLock) {
+            if (closed || (0 == batched)) {
+                return;
+            }
+
+            try {
+                outputStream.flush();
+                batched = 0;
+                setLastUsed(System.currentTimeMillis());
+            } catch (IOException failure) {
+                if (LOG.isEnabledFor(Level.INFO)) {
+                    LOG.info("tcp send - flush failed for " + inetAddress.getHostAddress() + ":" + port, failure);
+                }
+
+                closingDueToFailure = true;
+                close();
+
+                throw failure;
+            }
+        }
+    }
+
     /**
      *  {@inheritDoc}
      *
@@ -447,12 +517,8 @@ class TcpConnection implements Runnable {
                     MessagePackageHeader header = new MessagePackageHeader(inputStream);
 
 
-                    MimeMediaType msgMime = header.getContentTypeHeader();
-
                     long msglength = header.getContentLengthHeader();
 
-                    // FIXME 20020730 bondolo@jxta.org Do something with content-coding here.
-
                     if (LOG.isEnabledFor(Level.DEBUG)) {
                         LOG.debug("tcp receive - message body (" + msglength + ") starts for " + inetAddress.getHostAddress() + ":" + port);
                     }
@@ -465,7 +531,7 @@ class TcpConnection implements Runnable {
                     Message msg = null;
 
                     try {
-                        msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream, msglength, true), msgMime, (MimeMediaType) null);
+                        msg = coding.fromWire(header, inputStream);
                     } catch (IOException failed) {
                         if (LOG.isEnabledFor(Level.INFO)) {
                             LOG.info("tcp receive - failed reading msg from " + inetAddress.getHostAddress() + ":" + port);
@@ -593,6 +659,7 @@ class TcpConnection implements Runnable {
             setLastUsed(0); // we idle now. Way idle.
             closeIOs();
             closed = true;
+            coding.end();
             if (recvThread != null) {
                 recvThread.interrupt();
             }
@@ -0,0 +1,127 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+
+package net.jxta.impl.endpoint.tcp;
+
+import java.io.IOException;
+
+import net.jxta.endpoint.EndpointAddress;
+import net.jxta.endpoint.Message;
+import net.jxta.id.ID;
+
+/**
+ *  A connection to a remote peer as seen by a {@link TcpMessenger}. It is
+ *  implemented by {@link TcpConnection}, which uses a receive thread per
+ *  connection, and by {@link NioTcpConnection}, which shares the threads of a
+ *  {@link NioDispatcher}.
+ */
+interface TcpLink {
+
+    /**
+     *  Starts delivering the messages received on this connection.
+     */
+    void start();
+
+    /**
+     *  Sends a message to the remote peer.
+     *
+     *  @param msg  the message to send.
+     *  @param flush  if false, the message may stay buffered until the next
+     *  call to {@link #flush()}.
+     *  @throws IOException if the connection failed or was closed.
+     */
+    void sendMessage(Message msg, boolean flush) throws IOException;
+
+    /**
+     *  Writes out the messages that sendMessage left buffered.
+     *
+     *  @throws IOException if the connection failed or was closed.
+     */
+    void flush() throws IOException;
+
+    /**
+     *  Closes the connection.
+     */
+    void close();
+
+    /**
+     *  @return true if the welcome messages were exchanged and the connection
+     *  is not closed.
+     */
+    boolean isConnected();
+
+    /**
+     *  @return the public address of the remote peer.
+     */
+    EndpointAddress getDestinationAddress();
+
+    /**
+     *  @return the address the remote peer believes it connected to, or null
+     *  if its welcome message has not been received yet.
+     */
+    EndpointAddress getConnectionAddress();
+
+    /**
+     *  @return the peer id of the remote peer, or null if its welcome message
+     *  has not been received yet.
+     */
+    ID getDestinationPeerID();
+
+    /**
+     *  @return absolute time in milliseconds at which the connection was last
+     *  used.
+     */
+    long getLastUsed();
+}
@@ -67,6 +67,7 @@ import net.jxta.endpoint.EndpointAddress;
 import net.jxta.endpoint.Message;
 import net.jxta.endpoint.MessageElement;
 import net.jxta.endpoint.StringMessageElement;
+import net.jxta.id.ID;
 
 import net.jxta.impl.endpoint.BlockingMessenger;
 import net.jxta.impl.endpoint.EndpointServiceImpl;
@@ -104,8 +105,9 @@ class TcpMessenger extends BlockingMessenger {
 
     /**
      *  Cache of the logical destination of this messenger. (It helps if it works even after close)
+     *  Null until known if the connection is still waiting for the welcome message of the remote peer.
      */
-    private final EndpointAddress logicalDestAddress;
+    private volatile EndpointAddress logicalDestAddress;
     
     /**
      *  The message transport we are working for.
@@ -115,7 +117,7 @@ class TcpMessenger extends BlockingMessenger {
     /**
      *  The connection
      */
-    volatile TcpConnection conn;
+    volatile TcpLink conn;
     
     /**
      * If this is an incoming connection we must not close it when this messenger disapears.
@@ -137,7 +139,7 @@ class TcpMessenger extends BlockingMessenger {
      *  @param destaddr the destination of the messenger
      *  @param p    the tcp MessageSender we are working for.
      */
-    TcpMessenger(EndpointAddress destaddr, TcpConnection conn, TcpTransport p)
+    TcpMessenger(EndpointAddress destaddr, TcpLink conn, TcpTransport p)
         throws IOException {
 
         // We need self destruction: tcp messengers are expenssive to make and they refer to
@@ -160,7 +162,16 @@ class TcpMessenger extends BlockingMessenger {
         
         this.proto = p;
         this.incoming = true;
-        logicalDestAddress = new EndpointAddress("jxta", conn.getDestinationPeerID().getUniqueValue().toString(), null, null);
+        logicalDestAddress = toLogicalAddress(conn);
+    }
+
+    /**
+     *  Returns the logical address of the remote peer of a connection, or
+     *  null if it is not yet known.
+     */
+    private static EndpointAddress toLogicalAddress(TcpLink conn) {
+        ID peer = conn.getDestinationPeerID();
+        return (null == peer) ? null : new EndpointAddress("jxta", peer.getUniqueValue().toString(), null, null);
     }
     
     /**
@@ -174,7 +185,7 @@ class TcpMessenger extends BlockingMessenger {
         /**
          *  Create a connection. Not needed immediately, but this gets things going
          */
-        this(destaddr, new TcpConnection(destaddr, p), p);
+        this(destaddr, p.newConnection(destaddr), p);
         this.incoming = false;
     }
 
@@ -210,7 +221,7 @@ class TcpMessenger extends BlockingMessenger {
      */
     public void closeImpl() {
 
-        TcpConnection toClose = conn;
+        TcpLink toClose = conn;
 
         if (toClose == null) {
             return;
@@ -234,7 +245,7 @@ class TcpMessenger extends BlockingMessenger {
     // should still work, but it's a stretch. Transports should get a deeper retrofit eventually.
     public boolean isClosed() {
 
-        TcpConnection holdIt = conn;
+        TcpLink holdIt = conn;
 
         if (holdIt == null) {
             return true;
@@ -263,7 +274,7 @@ class TcpMessenger extends BlockingMessenger {
      * timeout for that.
      */
     public boolean isIdleImpl() {
-        TcpConnection holdIt = conn;
+        TcpLink holdIt = conn;
         return (holdIt == null) || (TimeUtils.toRelativeTimeMillis(TimeUtils.timeNow(), holdIt.getLastUsed()) > 15 * TimeUtils.AMINUTE);
     }
 
@@ -274,6 +285,14 @@ class TcpMessenger extends BlockingMessenger {
     public EndpointAddress getLogicalDestinationImpl() {
         EndpointAddress holdIt = logicalDestAddress;
 
+        if (holdIt == null) {
+            TcpLink holdConn = conn;
+            if (holdConn != null) {
+                holdIt = toLogicalAddress(holdConn);
+                logicalDestAddress = holdIt;
+            }
+        }
+
         return holdIt == null ? null : (EndpointAddress) holdIt.clone();
     }
     
@@ -295,7 +314,7 @@ class TcpMessenger extends BlockingMessenger {
         // to prevent an NPE if they happen in parallel.
         // So, get a private reference just long enough to send.
 
-        TcpConnection myConn = conn;
+        TcpLink myConn = conn;
 
         if (isClosed()) {
             IOException failure = new IOException("Messenger was closed, it cannot be used to send messages.");
@@ -323,7 +342,7 @@ class TcpMessenger extends BlockingMessenger {
                 LOG.debug("Sending " + message + " to " + destAddressToUse + " on connection " + conn.getDestinationAddress());
             }
         
-            myConn.sendMessage(message);
+            myConn.sendMessage(message, !isFlushDeferred());
         } catch (IOException caught) {
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("Message send failed for " + message, caught);
@@ -340,4 +359,15 @@ class TcpMessenger extends BlockingMessenger {
 
         return true;
     }
+
+    /**
+     *  {@inheritDoc}
+     */
+    protected void flushImpl() throws IOException {
+        TcpLink myConn = conn;
+
+        if (myConn != null) {
+            myConn.flush();
+        }
+    }
 }
@@ -80,6 +80,7 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.zip.Deflater;
 import net.jxta.document.Advertisement;
 import net.jxta.document.AdvertisementFactory;
 import net.jxta.document.Attributable;
@@ -199,6 +200,36 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
 
     static final int              MaxAcceptCnxBacklog = 50; // Java's default is 50
 
+    /**
+     *  The most bytes a connection buffers before flushing, when batching.
+     *  From the system property <tt>net.jxta.impl.endpoint.tcp.TcpTransport.batchBytes</tt>.
+     */
+    static final int              MaxBatchBytes = Integer.getInteger("net.jxta.impl.endpoint.tcp.TcpTransport.batchBytes", SendBufferSize).intValue();
+
+    /**
+     *  Enables batching when greater than zero, the default being to flush
+     *  every message. A batching connection leaves messages buffered while
+     *  its messenger has more queued, and is flushed once that queue is
+     *  drained. The value, in milliseconds, bounds how long a steady stream
+     *  may keep the first buffered message waiting. From the system property
+     *  <tt>net.jxta.impl.endpoint.tcp.TcpTransport.batchLinger</tt>.
+     */
+    static final long             BatchLinger = Long.getLong("net.jxta.impl.endpoint.tcp.TcpTransport.batchLinger", 0).longValue();
+
+    /**
+     *  Messages whose serialization is at least this many bytes are deflated
+     *  if the remote peer accepts it. Negative disables content coding. From
+     *  the system property <tt>net.jxta.impl.endpoint.tcp.TcpTransport.deflateThreshold</tt>.
+     */
+    static final int              DeflateThreshold = Integer.getInteger("net.jxta.impl.endpoint.tcp.TcpTransport.deflateThreshold", 512).intValue();
+
+    /**
+     *  The zlib compression level of deflated messages, from 1 (fastest) to
+     *  9 (smallest). From the system property
+     *  <tt>net.jxta.impl.endpoint.tcp.TcpTransport.deflateLevel</tt>.
+     */
+    static final int              DeflateLevel = Integer.getInteger("net.jxta.impl.endpoint.tcp.TcpTransport.deflateLevel", Deflater.DEFAULT_COMPRESSION).intValue();
+
     // Connections that are watched often - io in progress
     List                          ShortCycle = Collections.synchronizedList(new ArrayList());
 
@@ -216,6 +247,16 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
     private int                   restrictionPort = -1;
     private IncomingUnicastServer unicastServer = null;
 
+    /**
+     *  If not null, connections are run by this dispatcher rather than by a
+     *  thread each. Enabled by the system property
+     *  <tt>net.jxta.impl.endpoint.tcp.TcpTransport.nio</tt>, the number of
+     *  I/O threads is given by <tt>net.jxta.impl.endpoint.tcp.TcpTransport.nioThreads</tt>.
+     */
+    private NioDispatcher         dispatcher = null;
+
+    static final int              DefaultNioThreads = 2;
+
     private boolean               isClosed = false;
 
     private boolean               allowMulticast = true;
@@ -437,9 +478,17 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
 
             // Start the servers
             myThreadGroup = new ThreadGroup(group.getHomeThreadGroup(), "TcpTransport " + usingInterface.getHostAddress());
+            if (Boolean.getBoolean("net.jxta.impl.endpoint.tcp.TcpTransport.nio")) {
+                dispatcher = new NioDispatcher(this, Integer.getInteger("net.jxta.impl.endpoint.tcp.TcpTransport.nioThreads", DefaultNioThreads).intValue());
+            }
             if (adv.isServerEnabled()) {
-                unicastServer = new IncomingUnicastServer(this, usingInterface, serverSocketPort, adv.getStartPort(), adv.getEndPort());
-                InetSocketAddress boundAddresss = unicastServer.getLocalSocketAddress();
+                InetSocketAddress boundAddresss;
+                if (null != dispatcher) {
+                    boundAddresss = dispatcher.bind(usingInterface, serverSocketPort);
+                } else {
+                    unicastServer = new IncomingUnicastServer(this, usingInterface, serverSocketPort, adv.getStartPort(), adv.getEndPort());
+                    boundAddresss = unicastServer.getLocalSocketAddress();
+                }
 
                 // XXX bondolo 20040628 Save the port back as a preference to TCPAdv
                 // Build the publicAddresses
@@ -663,6 +712,9 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
                 throw new PeerGroupException("Unable to start TCP Unicast Server");
             }
         }
+        if (dispatcher != null) {
+            dispatcher.start(myThreadGroup);
+        }
 
         // Tell tell the world about our configuration.
         if (LOG.isEnabledFor(Level.INFO)) {
@@ -695,10 +747,19 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
                         + "-" + unicastServer.getEndPort() + "]");
                 }
                 configInfo.append("\n\t\tUnicast Server Bound Addr: " + unicastServer.getLocalSocketAddress());
+            } else if ((null != dispatcher) && (null != dispatcher.getLocalSocketAddress())) {
+                configInfo.append("\n\t\tUnicast Server Bind Addr: " + usingInterface.getHostAddress() + ":" + serverSocketPort);
+                configInfo.append("\n\t\tUnicast Server Bound Addr: " + dispatcher.getLocalSocketAddress());
             } else {
                 configInfo.append("\n\t\tUnicast Server : disabled");
             }
 
+            if (null != dispatcher) {
+                configInfo.append("\n\t\tI/O Threads: " + dispatcher.getThreadCount());
+            } else {
+                configInfo.append("\n\t\tI/O Threads: one per connection");
+            }
+
             if (allowMulticast) {
                 configInfo.append("\n\t\tMulticast Server Bind Addr: " + multicastSocket.getLocalSocketAddress());
             }
@@ -747,6 +808,10 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             unicastServer = null;
         }
 
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+
         if (multicastSocket != null) {
             multicastSocket.close();
             multicastSocket = null;
@@ -982,12 +1047,13 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             MessagePackageHeader header = new MessagePackageHeader(inputStream);
             MimeMediaType msgMime = header.getContentTypeHeader();
             long msglength = header.getContentLengthHeader();
-            // FIXME 20020730 bondolo@jxta.org Do something with content-coding here.
+            // We send multicasts unencoded but honour the content coding of others.
+            MimeMediaType msgEncoding = header.getContentEncodingHeader();
             // read the message!
             Message msg = WireFormatMessageFactory.fromWire(new LimitInputStream(inputStream,
                                                             msglength),
                                                             msgMime,
-                                                            (MimeMediaType) null);
+                                                            msgEncoding);
             // Give the message to the EndpointService Manager
             if (LOG.isEnabledFor(Level.DEBUG)) {
                 LOG.debug("processMulticast : handing multicast message to EndpointService"+msg);
@@ -1067,7 +1133,7 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
                 throw new IllegalStateException("utf-8 encoding support missing!");
             }
 
-            // 20020730 bondolo@jxta.org Do something with content-coding here
+            // Multicasts are not content coded: there is no one to negotiate with.
 
             // Write the header and the message.
             CountingOutputStream count = new CountingOutputStream(new DevNullOutputStream());
@@ -1131,6 +1197,7 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
             endpointAddress = new EndpointAddress(addr, null, null);
             TcpMessenger tcpMessenger = new TcpMessenger(endpointAddress, this);
             result = true;
+            tcpMessenger.close();
         } catch (Throwable e) {
             if (LOG.isEnabledFor(Level.WARN)) {
                 LOG.warn("failure pinging " + addr.toString(), e);
@@ -1144,6 +1211,31 @@ public class TcpTransport implements Runnable, Module, MessageSender, MessageRec
         return result;
     }
 
+    /**
+     *  Opens a connection to the specified address.
+     *
+     *  @param dst the destination address.
+     *  @return the connection, its welcome messages exchanged.
+     *  @throws IOException for failures in creating the connection.
+     */
+    TcpLink newConnection(EndpointAddress dst) throws IOException {
+        NioDispatcher current = dispatcher;
+
+        if (null != current) {
+            return new NioTcpConnection(dst, this, current);
+        }
+        return new TcpConnection(dst, this);
+    }
+
+    /**
+     *  @return true if called from an I/O thread of the dispatcher.
+     */
+    boolean isIoThread() {
+        NioDispatcher current = dispatcher;
+
+        return (null != current) && current.isIoThread();
+    }
+
     int getRestrictionPort() {
         return restrictionPort;
     }
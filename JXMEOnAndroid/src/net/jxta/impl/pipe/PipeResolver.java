@@ -80,6 +80,7 @@ import net.jxta.endpoint.OutgoingMessageEvent;
 import net.jxta.id.ID;
 import net.jxta.impl.cm.Srdi;
 import net.jxta.impl.cm.Srdi.SrdiInterface;
+import net.jxta.impl.cm.SrdiIndex;
 import net.jxta.impl.protocol.PipeResolverMsg;
 import net.jxta.impl.protocol.ResolverQuery;
 import net.jxta.impl.protocol.SrdiMessageImpl;
@@ -96,17 +97,19 @@ import net.jxta.protocol.PipeResolverMessage;
 import net.jxta.protocol.PipeResolverMessage.MessageType;
 import net.jxta.protocol.ResolverQueryMsg;
 import net.jxta.protocol.ResolverResponseMsg;
+import net.jxta.protocol.ResolverSrdiMsg;
 import net.jxta.protocol.SrdiMessage;
 import net.jxta.protocol.SrdiMessage.Entry;
 import net.jxta.resolver.QueryHandler;
 import net.jxta.resolver.ResolverService;
+import net.jxta.resolver.SrdiHandler;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 
 /**
  *  This class implements the Resolver interfaces for a PipeServiceImpl.
  */
-class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
+class PipeResolver implements SrdiInterface, QueryHandler, SrdiHandler, PipeRegistrar {
 
     /**
      *  Constant for pipe event listeners to signify any query id.
@@ -188,6 +191,12 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
     private transient Srdi srdi = null;
     private transient Thread srdiThread = null;
 
+    /**
+     *  The input pipes of our edge peers, created on the first SRDI message
+     *  received as a rendezvous.
+     */
+    private transient volatile SrdiIndex srdiIndex = null;
+
     /**
      *  Constructor for the PipeResolver object
      *
@@ -201,6 +210,7 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
 
         // Register to the Generic ResolverServiceImpl
         resolver.registerHandler(PipeResolverName, this);
+        resolver.registerSrdiHandler(PipeResolverName, this);
 
         // start srdi
         srdi = new Srdi(myGroup, PipeResolverName, this, 2 * TimeUtils.AMINUTE, 1 * TimeUtils.AYEAR);
@@ -372,8 +382,93 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
      *  {@inheritDoc}
      */
     public void messageSendFailed(PeerID peerid, OutgoingMessageEvent e) {
-        // so what.
-        // no op.
+        SrdiIndex index = srdiIndex;
+        if (index != null) {
+            index.remove(peerid);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     *
+     *  <p/>Only a rendezvous keeps the entries pushed to it.
+     */
+    public boolean processSrdi(ResolverSrdiMsg message) {
+        if (!myGroup.isRendezvous()) {
+            return false;
+        }
+
+        SrdiMessage srdiMsg;
+        try {
+            StructuredTextDocument asDoc = (StructuredTextDocument)
+                                           StructuredDocumentFactory.newStructuredDocument(MimeMediaType.XMLUTF8, new StringReader(message.getPayload()));
+            srdiMsg = new SrdiMessageImpl(asDoc);
+        } catch (Exception e) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Malformed SRDI message : ", e);
+            }
+            return false;
+        }
+
+        SrdiIndex index;
+        synchronized (this) {
+            if (srdiIndex == null) {
+                srdiIndex = new SrdiIndex(PipeResolverName);
+            }
+            index = srdiIndex;
+        }
+
+        PeerID pid = srdiMsg.getPeerID();
+        Iterator eachEntry = srdiMsg.getEntries().iterator();
+        while (eachEntry.hasNext()) {
+            SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
+            index.add(srdiMsg.getPrimaryKey(), entry.key, entry.value, pid, entry.expiration);
+        }
+        Srdi current = srdi;
+        if (current != null) {
+            current.replicateEntries(srdiMsg);
+        }
+        return true;
+    }
+
+    /**
+     *  Forwards a pipe query to the peers which reported having an input
+     *  pipe for it, if we are a rendezvous and know of any, otherwise to the
+     *  replica peer of the pipe.
+     *
+     *  @return true if the query was forwarded
+     */
+    private boolean forwardToListeners(ResolverQueryMsg query, PipeResolverMessage pipeQuery) {
+        SrdiIndex index = srdiIndex;
+        if (index == null || !myGroup.isRendezvous() || srdi == null) {
+            return false;
+        }
+        String pipeID = pipeQuery.getPipeID().toString();
+        Vector peers = index.query(pipeQuery.getPipeType(), PipeAdvertisement.IdTag, pipeID, Integer.MAX_VALUE);
+
+        if (peers.isEmpty()) {
+            PeerID replica = srdi.getReplicaPeer(pipeQuery.getPipeType(), PipeAdvertisement.IdTag, pipeID);
+            if (replica != null) {
+                peers.add(replica);
+            }
+        }
+
+        // never back to ourself nor to the querying peer
+        Iterator eachPeer = peers.iterator();
+        while (eachPeer.hasNext()) {
+            PeerID peer = (PeerID) eachPeer.next();
+            if (peer.equals(myGroup.getPeerID()) || peer.toString().equals(query.getSrc())) {
+                eachPeer.remove();
+            }
+        }
+        if (peers.isEmpty()) {
+            return false;
+        }
+        if (LOG.isEnabledFor(Level.DEBUG)) {
+            LOG.debug("Forwarding query #" + query.getQueryId() + " to " + peers.size() + " listeners");
+        }
+        srdi.forwardQuery(peers, query);
+        return true;
     }
 
     /**
@@ -484,6 +579,11 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
             }
         }
         if ((null == peerID) && !directedQuery) {
+            if (forwardToListeners(query, pipeQuery)) {
+                // the listeners answer
+                return ResolverService.OK;
+            }
+
             // We are an edge
             if (query.getSrc().equals(queryFrom)) {
                 // we only respond if the original src was not the query forwarder
@@ -850,6 +950,11 @@ class PipeResolver implements SrdiInterface, QueryHandler, PipeRegistrar {
     void stop() {
 
         resolver.unregisterHandler(PipeResolverName);
+        resolver.unregisterSrdiHandler(PipeResolverName);
+        if (srdiIndex != null) {
+            srdiIndex.stop();
+            srdiIndex = null;
+        }
         credential = null;
         credentialDoc = null;
         // Avoid cross-reference problems with GC
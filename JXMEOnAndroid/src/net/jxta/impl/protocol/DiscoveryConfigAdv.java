@@ -57,6 +57,7 @@ package net.jxta.impl.protocol;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -90,6 +91,12 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
     private final static String FORWARD_ALWAYS_REPLICA = "forwardAlwaysReplica";
     private final static String FORWARD_BELOW_TRESHOLD = "forwardBelowThreshold";
     private final static String LOCAL_ONLY = "localOnly";
+    private final static String PERSISTENT_CACHE = "persistentCache";
+    private final static String SRDI_SUMMARY = "srdiSummary";
+    private final static String CACHE_LIMIT_ELEMENT = "CacheLimit";
+    private final static String CACHE_LIMIT_DIR_ATTR = "dir";
+    private final static String CACHE_LIMIT_ENTRIES_ATTR = "entries";
+    private final static String CACHE_LIMIT_BYTES_ATTR = "bytes";
 
     /**
      *  Log4J Logger
@@ -123,6 +130,29 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
      */
     private boolean localOnly = false;
 
+    /**
+     *  If true, the advertisement cache is kept on disk and reloaded when the
+     *  peer restarts.
+     */
+    private boolean persistentCache = false;
+
+    /**
+     *  If true, full SRDI pushes are sent to the rendezvous as a compact bloom
+     *  filter summary rather than as individual entries.
+     */
+    private boolean srdiSummary = false;
+
+    /**
+     *  The cache limits per cache directory.
+     *
+     *  <p/><ul>
+     *      <li>Keys are the directory name as a {@link java.lang.String}</li>
+     *      <li>Values are a <code>long[]</code> of maximum entries and
+     *      maximum bytes, -1 if not limited by this configuration</li>
+     *  </ul>
+     */
+    private final Map cacheLimits = new HashMap();
+
     /**
      *  Use the Instantiator through the factory
      */
@@ -166,12 +196,73 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
                 forwardBelowTreshold = flag;
             } else if (LOCAL_ONLY.equals(name)) {
                 localOnly = flag;
+            } else if (PERSISTENT_CACHE.equals(name)) {
+                persistentCache = flag;
+            } else if (SRDI_SUMMARY.equals(name)) {
+                srdiSummary = flag;
             } else {
                 if (LOG.isEnabledFor(Level.WARN)) {
                     LOG.warn("Unhandled Attribute: " + name);
                 }
             }
         }
+
+        Enumeration elements = doc.getChildren();
+
+        while (elements.hasMoreElements()) {
+            XMLElement elem = (XMLElement) elements.nextElement();
+
+            if (!handleElement(elem)) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Unhandled Element: " + elem.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    protected boolean handleElement(Element raw) {
+
+        if (super.handleElement(raw)) {
+            return true;
+        }
+
+        XMLElement elem = (XMLElement) raw;
+
+        if (CACHE_LIMIT_ELEMENT.equals(elem.getName())) {
+            Attribute dir = elem.getAttribute(CACHE_LIMIT_DIR_ATTR);
+            if (null == dir) {
+                if (LOG.isEnabledFor(Level.WARN)) {
+                    LOG.warn("Ignoring " + CACHE_LIMIT_ELEMENT + " without " + CACHE_LIMIT_DIR_ATTR);
+                }
+                return true;
+            }
+
+            int entries = -1;
+            long bytes = -1;
+            Attribute attr = elem.getAttribute(CACHE_LIMIT_ENTRIES_ATTR);
+            if (null != attr) {
+                try {
+                    entries = Integer.parseInt(attr.getValue().trim());
+                } catch (NumberFormatException badEntries) {
+                    throw new IllegalArgumentException("Illegal " + CACHE_LIMIT_ENTRIES_ATTR + " value : " + attr.getValue());
+                }
+            }
+            attr = elem.getAttribute(CACHE_LIMIT_BYTES_ATTR);
+            if (null != attr) {
+                try {
+                    bytes = Long.parseLong(attr.getValue().trim());
+                } catch (NumberFormatException badBytes) {
+                    throw new IllegalArgumentException("Illegal " + CACHE_LIMIT_BYTES_ATTR + " value : " + attr.getValue());
+                }
+            }
+            setCacheLimit(dir.getValue().trim(), entries, bytes);
+            return true;
+        }
+
+        return false;
     }
 
     /**
@@ -183,6 +274,17 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
 
         DiscoveryConfigAdv result = new DiscoveryConfigAdv();
 
+        result.forwardAlwaysReplica = forwardAlwaysReplica;
+        result.forwardBelowTreshold = forwardBelowTreshold;
+        result.localOnly = localOnly;
+        result.persistentCache = persistentCache;
+        result.srdiSummary = srdiSummary;
+        Iterator eachLimit = cacheLimits.entrySet().iterator();
+        while (eachLimit.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachLimit.next();
+            result.cacheLimits.put(anEntry.getKey(), ((long[]) anEntry.getValue()).clone());
+        }
+
         return result;
     }
 
@@ -235,6 +337,29 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
             if (localOnly) {
                 attrDoc.addAttribute(FORWARD_BELOW_TRESHOLD, Boolean.toString(localOnly));
             }
+            if (persistentCache) {
+                attrDoc.addAttribute(PERSISTENT_CACHE, Boolean.toString(persistentCache));
+            }
+            if (srdiSummary) {
+                attrDoc.addAttribute(SRDI_SUMMARY, Boolean.toString(srdiSummary));
+            }
+        }
+
+        Iterator eachLimit = cacheLimits.entrySet().iterator();
+        while (eachLimit.hasNext()) {
+            Map.Entry anEntry = (Map.Entry) eachLimit.next();
+            long[] limit = (long[]) anEntry.getValue();
+            Element limitElem = adv.createElement(CACHE_LIMIT_ELEMENT);
+            adv.appendChild(limitElem);
+
+            Attributable limitAttr = (Attributable) limitElem;
+            limitAttr.addAttribute(CACHE_LIMIT_DIR_ATTR, (String) anEntry.getKey());
+            if (limit[0] >= 0) {
+                limitAttr.addAttribute(CACHE_LIMIT_ENTRIES_ATTR, Long.toString(limit[0]));
+            }
+            if (limit[1] >= 0) {
+                limitAttr.addAttribute(CACHE_LIMIT_BYTES_ATTR, Long.toString(limit[1]));
+            }
         }
         return adv;
     }
@@ -296,6 +421,47 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
         return localOnly;
     }
 
+    /**
+     *  True if the advertisement cache is kept on disk across restarts.
+     *
+     *@return    The current setting.
+     */
+    public boolean getPersistentCache() {
+        return persistentCache;
+    }
+
+    /**
+     *  True if full SRDI pushes are sent as bloom filter summaries.
+     *
+     *@return    The current setting.
+     */
+    public boolean getSrdiSummary() {
+        return srdiSummary;
+    }
+
+    /**
+     *  Returns the maximum number of entries cached in a cache directory.
+     *
+     *@param  dir  the cache directory, one of "Peers", "Groups" or "Adv"
+     *@return      the maximum number of entries or -1 if not configured.
+     */
+    public int getCacheEntries(String dir) {
+        long[] limit = (long[]) cacheLimits.get(dir);
+        return (null == limit) ? -1 : (int) limit[0];
+    }
+
+    /**
+     *  Returns the maximum size, in bytes of serialized advertisements, of a
+     *  cache directory.
+     *
+     *@param  dir  the cache directory, one of "Peers", "Groups" or "Adv"
+     *@return      the maximum number of bytes or -1 if not configured.
+     */
+    public long getCacheBytes(String dir) {
+        long[] limit = (long[]) cacheLimits.get(dir);
+        return (null == limit) ? -1 : limit[1];
+    }
+
     /**
      *  Specifies if this discovery service will forward queries to the replica
      *  peer in all cases, rather than only in the absence of local responses.
@@ -326,6 +492,40 @@ public final class DiscoveryConfigAdv extends ExtendableAdvertisement {
         localOnly = newvalue;
     }
 
+    /**
+     *  Specifies if the advertisement cache is kept on disk across restarts.
+     *
+     *@param  newvalue  The new persistentCache value
+     */
+    public void setPersistentCache(boolean newvalue) {
+        persistentCache = newvalue;
+    }
+
+    /**
+     *  Specifies if full SRDI pushes are sent as bloom filter summaries.
+     *
+     *@param  newvalue  The new srdiSummary value
+     */
+    public void setSrdiSummary(boolean newvalue) {
+        srdiSummary = newvalue;
+    }
+
+    /**
+     *  Sets the limits of a cache directory.
+     *
+     *@param  dir      the cache directory, one of "Peers", "Groups" or "Adv"
+     *@param  entries  the maximum number of entries, at least 1, or -1 for the
+     *                 default.
+     *@param  bytes    the maximum number of bytes, at least 1, or -1 for the
+     *                 default.
+     */
+    public void setCacheLimit(String dir, int entries, long bytes) {
+        if (entries == 0 || entries < -1 || bytes == 0 || bytes < -1) {
+            throw new IllegalArgumentException("Cache limits must be -1 or > 0");
+        }
+        cacheLimits.put(dir, new long[] {entries, bytes});
+    }
+
     /**
      *  Instantiator for DiscoveryConfigAdv
      */
@@ -98,6 +98,7 @@ import net.jxta.protocol.DiscoveryQueryMsg;
  *     &lt;xs:element name="Threshold" type="xs:unsignedInt" minOccurs="0"/>
  *     &lt;xs:element name="Attr" type="xs:string" minOccurs="0"/>
  *     &lt;xs:element name="Value" type="xs:string" minOccurs="0"/>
+ *     &lt;xs:element name="Cursor" type="xs:string" minOccurs="0"/>
  *     &lt;!-- The following should refer to a peer adv, but is instead a whole doc for historical reasons -->
  *     &lt;xs:element name="PeerAdv" type="xs:string" minOccurs="0"/>
  *   &lt;/xs:sequence>
@@ -117,6 +118,7 @@ public class DiscoveryQuery extends DiscoveryQueryMsg {
     private static final String thresholdTag = "Threshold";
     private static final String queryAttrTag = "Attr";
     private static final String queryValueTag = "Value";
+    private static final String cursorTag = "Cursor";
 
     /**
      *  Default constructor
@@ -178,6 +180,10 @@ public class DiscoveryQuery extends DiscoveryQueryMsg {
             setValue(elem.getTextValue());
             return true;
         }
+        if(elem.getName().equals(cursorTag)) {
+            setCursor(elem.getTextValue());
+            return true;
+        }
 
         // element was not handled
         return false;
@@ -271,6 +277,12 @@ public class DiscoveryQuery extends DiscoveryQueryMsg {
                     throw new IllegalStateException("Attribute specified, but no value was specified.");
             }
         }
+
+        String cursor = getCursor();
+        if(cursor != null) {
+            e = adv.createElement(cursorTag, cursor);
+            adv.appendChild(e);
+        }
         return adv;
     }
 
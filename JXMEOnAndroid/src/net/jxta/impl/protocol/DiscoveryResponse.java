@@ -97,6 +97,7 @@ import org.apache.log4j.Logger;
  *     &lt;xs:element name="Count" type="xs:unsignedInt" minOccurs="0"/>
  *     &lt;xs:element name="Attr" type="xs:string" minOccurs="0"/>
  *     &lt;xs:element name="Value" type="xs:string" minOccurs="0"/>
+ *     &lt;xs:element name="Cursor" type="xs:string" minOccurs="0"/>
  *     &lt;!-- The following should refer to a peer adv, but is instead a whole doc for historical reasons -->
  *     &lt;xs:element name="PeerAdv" minOccurs="0">
  *     &lt;xs:complexType>
@@ -130,6 +131,7 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
     private final static transient Logger LOG = Logger.getLogger(DiscoveryResponse.class.getName());
 
     private final static String countTag = "Count";
+    private final static String cursorTag = "Cursor";
     private final static String expirationTag = "Expiration";
     private final static String peerAdvTag = "PeerAdv";
     private final static String queryAttrTag = "Attr";
@@ -165,6 +167,278 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
     }
 
 
+    /**
+     *  Receives the responses of a document as they are read.
+     */
+    public interface ResponseHandler {
+
+        /**
+         *  Called for each response element, in document order.
+         *
+         *@param  res         the response being read, holding the elements
+         *                    which precede this one
+         *@param  response    the text of the response element
+         *@param  expiration  the expiration of the response
+         */
+        void response(DiscoveryResponse res, String response, long expiration);
+    }
+
+    /**
+     *  Reads a serialized response, handing each response element to the
+     *  handler as soon as it is read.
+     *
+     *  <p/>The document is scanned rather than parsed into a tree: the
+     *  responses are kept as text and only parsed on demand by
+     *  {@link #getAdvertisements()}.
+     *
+     *@param  doc      the serialized response
+     *@param  handler  the handler, may be null
+     *@return          the response read
+     *@throws  IllegalArgumentException  if the document is not a well formed
+     *                                   response
+     */
+    public static DiscoveryResponse read(String doc, ResponseHandler handler) {
+
+        DiscoveryResponse res = new DiscoveryResponse();
+        Vector responses = new Vector();
+        Vector exps = new Vector();
+
+        res.responses = responses;
+        res.expirations = exps;
+
+        try {
+            int at = skipMarkup(doc, 0);
+            if ((at < 0) || !doc.startsWith(getAdvertisementType(), at + 1)) {
+                throw new IllegalArgumentException("Not a " + getAdvertisementType());
+            }
+            at = doc.indexOf('>', at);
+            if ((at < 0) || ('/' == doc.charAt(at - 1))) {
+                return res;
+            }
+            at++;
+
+            while (true) {
+                at = skipMarkup(doc, at);
+                if (at < 0) {
+                    throw new IllegalArgumentException("Unterminated " + getAdvertisementType());
+                }
+                if ('/' == doc.charAt(at + 1)) {
+                    break;
+                }
+
+                int nameEnd = at + 1;
+                while ((nameEnd < doc.length()) && (" \t\r\n/>".indexOf(doc.charAt(nameEnd)) < 0)) {
+                    nameEnd++;
+                }
+                String name = doc.substring(at + 1, nameEnd);
+                int tagEnd = doc.indexOf('>', nameEnd);
+                if (tagEnd < 0) {
+                    throw new IllegalArgumentException("Unterminated tag " + name);
+                }
+
+                String text = null;
+                int next = tagEnd + 1;
+                if ('/' != doc.charAt(tagEnd - 1)) {
+                    String endTag = "</" + name;
+                    int bodyEnd = doc.indexOf(endTag, next);
+                    if (bodyEnd < 0) {
+                        throw new IllegalArgumentException("Unterminated element " + name);
+                    }
+                    next = doc.indexOf('>', bodyEnd + endTag.length());
+                    if (next < 0) {
+                        throw new IllegalArgumentException("Unterminated element " + name);
+                    }
+                    next++;
+                    text = decode(doc, tagEnd + 1, bodyEnd);
+                }
+
+                if (typeTag.equals(name)) {
+                    res.type = Integer.parseInt(text);
+                } else if (peerAdvTag.equals(name)) {
+                    if (null != text) {
+                        res.setPeerAdvertisement((PeerAdvertisement)
+                                                 AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, new StringReader(text)));
+                    }
+                } else if (queryAttrTag.equals(name)) {
+                    res.setQueryAttr(text);
+                } else if (queryValueTag.equals(name)) {
+                    res.setQueryValue(text);
+                } else if (cursorTag.equals(name)) {
+                    res.setCursor(text);
+                } else if (responsesTag.equals(name)) {
+                    if (null == text) {
+                        if (LOG.isEnabledFor(Level.DEBUG)) {
+                            LOG.debug("Discarding an empty response tag");
+                        }
+                    } else {
+                        String exp = getAttribute(doc, nameEnd, tagEnd, expirationTag);
+                        long expiration = (null != exp) ? Long.parseLong(exp) : DiscoveryService.DEFAULT_EXPIRATION;
+
+                        responses.add(text);
+                        exps.add(new Long(expiration));
+                        if (null != handler) {
+                            handler.response(res, text, expiration);
+                        }
+                    }
+                }
+                at = next;
+            }
+        } catch (IllegalArgumentException failed) {
+            throw failed;
+        } catch (Exception failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Got an Exception during Parse ", failed);
+            }
+            IllegalArgumentException failure = new IllegalArgumentException("Got an Exception during parse");
+            failure.initCause(failed);
+            throw failure;
+        }
+        return res;
+    }
+
+    /**
+     *  Skips the text, comments and processing instructions up to the next
+     *  tag.
+     *
+     *@param  doc   the document
+     *@param  from  where to start
+     *@return       the index of the next tag, or -1 if none
+     */
+    private static int skipMarkup(String doc, int from) {
+        while (true) {
+            int at = doc.indexOf('<', from);
+            if ((at < 0) || (at + 1 >= doc.length())) {
+                return -1;
+            }
+            if (doc.startsWith("<!--", at)) {
+                int end = doc.indexOf("-->", at + 4);
+                if (end < 0) {
+                    return -1;
+                }
+                from = end + 3;
+            } else if (('?' == doc.charAt(at + 1)) || ('!' == doc.charAt(at + 1))) {
+                int end = doc.indexOf('>', at);
+                if (end < 0) {
+                    return -1;
+                }
+                from = end + 1;
+            } else {
+                return at;
+            }
+        }
+    }
+
+    /**
+     *  Returns the value of an attribute of a start tag.
+     *
+     *@param  doc   the document
+     *@param  from  the end of the tag name
+     *@param  to    the end of the tag
+     *@param  name  the attribute name
+     *@return       the value, or null if the tag has no such attribute
+     */
+    private static String getAttribute(String doc, int from, int to, String name) {
+        int at = from;
+        while (true) {
+            at = doc.indexOf(name, at);
+            if ((at < 0) || (at >= to)) {
+                return null;
+            }
+            int eq = at + name.length();
+            while ((eq < to) && Character.isWhitespace(doc.charAt(eq))) {
+                eq++;
+            }
+            if (Character.isWhitespace(doc.charAt(at - 1)) && (eq < to) && ('=' == doc.charAt(eq))) {
+                int quote = eq + 1;
+                while ((quote < to) && Character.isWhitespace(doc.charAt(quote))) {
+                    quote++;
+                }
+                if (quote < to) {
+                    int end = doc.indexOf(doc.charAt(quote), quote + 1);
+                    if ((end > 0) && (end < to)) {
+                        return decode(doc, quote + 1, end);
+                    }
+                }
+                return null;
+            }
+            at = eq;
+        }
+    }
+
+    /**
+     *  Decodes the escaped text of an element, the way
+     *  {@link TextElement#getTextValue()} does: line ends are folded,
+     *  entities replaced and the result trimmed.
+     *
+     *@param  doc   the document
+     *@param  from  the start of the text
+     *@param  to    the end of the text
+     *@return       the text, or null if only white space
+     */
+    private static String decode(String doc, int from, int to) {
+        while ((from < to) && Character.isWhitespace(doc.charAt(from))) {
+            from++;
+        }
+        while ((to > from) && Character.isWhitespace(doc.charAt(to - 1))) {
+            to--;
+        }
+        if (from >= to) {
+            return null;
+        }
+
+        int amp = doc.indexOf('&', from);
+        int cr = doc.indexOf('\r', from);
+        if (((amp < 0) || (amp >= to)) && ((cr < 0) || (cr >= to))) {
+            return doc.substring(from, to);
+        }
+
+        StringBuffer result = new StringBuffer(to - from);
+        int current = from;
+        while (current < to) {
+            char c = doc.charAt(current);
+            if ('\r' == c) {
+                result.append('\n');
+                current++;
+                if ((current < to) && ('\n' == doc.charAt(current))) {
+                    current++;
+                }
+                continue;
+            }
+            int semi = ('&' == c) ? doc.indexOf(';', current) : -1;
+            if ((semi < 0) || (semi >= to) || (semi - current > 6)) {
+                result.append(c);
+                current++;
+                continue;
+            }
+            String escaped = doc.substring(current, semi + 1);
+            if ("&amp;".equals(escaped)) {
+                result.append('&');
+            } else if ("&lt;".equals(escaped)) {
+                result.append('<');
+            } else if ("&gt;".equals(escaped)) {
+                result.append('>');
+            } else if (escaped.startsWith("&#") && (escaped.length() > 3)) {
+                try {
+                    if ('x' == escaped.charAt(2)) {
+                        result.append((char) Integer.parseInt(escaped.substring(3, escaped.length() - 1).toLowerCase(), 16));
+                    } else {
+                        result.append((char) Integer.parseInt(escaped.substring(2, escaped.length() - 1), 10));
+                    }
+                } catch (NumberFormatException badref) {
+                    result.append(c);
+                    current++;
+                    continue;
+                }
+            } else {
+                result.append(c);
+                current++;
+                continue;
+            }
+            current = semi + 1;
+        }
+        return result.toString();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -195,6 +469,46 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
      */
     public Document getDocument(MimeMediaType asMimeType) {
 
+        Enumeration advs = getResponses();
+        Enumeration exps = getExpirations();
+
+        StructuredTextDocument adv = newEnvelope(asMimeType);
+        Element e;
+
+        try {
+            while (advs.hasMoreElements()) {
+                Long l = (Long) exps.nextElement();
+                Object response = advs.nextElement();
+
+                if (response instanceof InputStream) {
+                    e = adv.createElement(responsesTag, streamToString((InputStream) response));
+                } else {
+                    e = adv.createElement(responsesTag, response.toString());
+                }
+                adv.appendChild(e);
+                if (adv instanceof Attributable) {
+                    ((Attributable) e).addAttribute(expirationTag, l.toString());
+                }
+            }
+        } catch (Exception failed) {
+            if (LOG.isEnabledFor(Level.WARN)) {
+                LOG.warn("Got an Exception during doc creation", failed);
+            }
+            IllegalStateException failure = new IllegalStateException("Got an Exception during doc creation");
+            failure.initCause(failed);
+            throw failure;
+        }
+        return adv;
+    }
+
+    /**
+     *  Builds the document without its responses.
+     *
+     *@param  asMimeType  mime type of the document
+     *@return             the document
+     */
+    private StructuredTextDocument newEnvelope(MimeMediaType asMimeType) {
+
         StructuredTextDocument adv = (StructuredTextDocument)
                                      StructuredDocumentFactory.newStructuredDocument(asMimeType,
                                              getAdvertisementType());
@@ -203,9 +517,6 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
             ((XMLDocument) adv).addAttribute("xmlns:jxta", "http://jxta.org");
         }
 
-        Enumeration advs = getResponses();
-        Enumeration exps = getExpirations();
-
         Element e;
         e = adv.createElement(countTag, Integer.toString(responses.size()));
         adv.appendChild(e);
@@ -228,28 +539,9 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
             }
         }
 
-        try {
-            while (advs.hasMoreElements()) {
-                Long l = (Long) exps.nextElement();
-                Object response = advs.nextElement();
-
-                if (response instanceof InputStream) {
-                    e = adv.createElement(responsesTag, streamToString((InputStream) response));
-                } else {
-                    e = adv.createElement(responsesTag, response.toString());
-                }
-                adv.appendChild(e);
-                if (adv instanceof Attributable) {
-                    ((Attributable) e).addAttribute(expirationTag, l.toString());
-                }
-            }
-        } catch (Exception failed) {
-            if (LOG.isEnabledFor(Level.WARN)) {
-                LOG.warn("Got an Exception during doc creation", failed);
-            }
-            IllegalStateException failure = new IllegalStateException("Got an Exception during doc creation");
-            failure.initCause(failed);
-            throw failure;
+        if (cursor != null) {
+            e = adv.createElement(cursorTag, cursor);
+            adv.appendChild(e);
         }
         return adv;
     }
@@ -266,8 +558,8 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
         while (eachResponse.hasMoreElements()) {
             Object response = eachResponse.nextElement();
 
-            if (response instanceof String) {
-                String str = (String) response;
+            if ((response instanceof String) || (response instanceof SerializedAdvertisement)) {
+                String str = response.toString();
                 try {
                     Advertisement adv = (Advertisement)
                                         AdvertisementFactory.newAdvertisement(MimeMediaType.XMLUTF8, new StringReader(str));
@@ -341,6 +633,11 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
                     continue;
                 }
 
+                if (elem.getName().equals(cursorTag)) {
+                    setCursor(elem.getTextValue());
+                    continue;
+                }
+
                 if (elem.getName().equals(responsesTag)) {
                     // get the response
                     String aResponse = elem.getTextValue();
@@ -432,11 +729,50 @@ public class DiscoveryResponse extends DiscoveryResponseMsg {
 
     /**
      * {@inheritDoc}
+     *
+     * <p/>The responses are spliced into the serialized document rather
+     * than added to it, so that those which are
+     * {@link SerializedAdvertisement}s are not serialized nor escaped again.
      */
     public String toString() {
 
         try {
-            StructuredTextDocument doc = (StructuredTextDocument) getDocument(MimeMediaType.XMLUTF8);
+            Enumeration advs = getResponses();
+            Enumeration exps = getExpirations();
+
+            String envelope = newEnvelope(MimeMediaType.XMLUTF8).toString();
+            int end = envelope.lastIndexOf("</");
+
+            List escaped = new ArrayList(responses.size());
+            List expirations = new ArrayList(responses.size());
+            int length = envelope.length();
+            while (advs.hasMoreElements()) {
+                Object response = advs.nextElement();
+                String text;
+
+                expirations.add(exps.nextElement());
+                if (response instanceof SerializedAdvertisement) {
+                    text = ((SerializedAdvertisement) response).getEscaped();
+                } else if (response instanceof InputStream) {
+                    text = streamToString((InputStream) response);
+                    text = SerializedAdvertisement.escape((text == null) ? "" : text);
+                } else {
+                    text = SerializedAdvertisement.escape(response.toString());
+                }
+                escaped.add(text);
+                length += text.length() + 48;
+            }
+
+            StringBuffer doc = new StringBuffer(length);
+            doc.append(envelope.substring(0, end));
+            for (int i = 0; i < escaped.size(); i++) {
+                Long l = (Long) expirations.get(i);
+
+                doc.append("\t<").append(responsesTag).append(' ').append(expirationTag).append("=\"").append(l).append("\">");
+                doc.append((String) escaped.get(i));
+                doc.append("</").append(responsesTag).append(">\n");
+            }
+            doc.append(envelope.substring(end));
             return doc.toString();
         } catch (Throwable e) {
             if (e instanceof Error) {
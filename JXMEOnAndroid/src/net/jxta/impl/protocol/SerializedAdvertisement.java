@@ -0,0 +1,174 @@
+/*
+ *
+ *  Copyright (c) 2001 Sun Microsystems, Inc.  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions
+ *  are met:
+ *
+ *  1. Redistributions of source code must retain the above copyright
+ *  notice, this list of conditions and the following disclaimer.
+ *
+ *  2. Redistributions in binary form must reproduce the above copyright
+ *  notice, this list of conditions and the following disclaimer in
+ *  the documentation and/or other materials provided with the
+ *  distribution.
+ *
+ *  3. The end-user documentation included with the redistribution,
+ *  if any, must include the following acknowledgment:
+ *  "This product includes software developed by the
+ *  Sun Microsystems, Inc. for Project JXTA."
+ *  Alternately, this acknowledgment may appear in the software itself,
+ *  if and wherever such third-party acknowledgments normally appear.
+ *
+ *  4. The names "Sun", "Sun Microsystems, Inc.", "JXTA" and "Project JXTA"
+ *  must not be used to endorse or promote products derived from this
+ *  software without prior written permission. For written
+ *  permission, please contact Project JXTA at http://www.jxta.org.
+ *
+ *  5. Products derived from this software may not be called "JXTA",
+ *  nor may "JXTA" appear in their name, without prior written
+ *  permission of Sun.
+ *
+ *  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ *  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ *  OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED.  IN NO EVENT SHALL SUN MICROSYSTEMS OR
+ *  ITS CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ *  SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ *  LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ *  USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ *  ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ *  OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ *  SUCH DAMAGE.
+ *
+ *  ====================================================================
+ *
+ *  This software consists of voluntary contributions made by many
+ *  individuals on behalf of Project JXTA.  For more
+ *  information on Project JXTA, please see
+ *  <http://www.jxta.org/>.
+ *
+ *  This license is based on the BSD license adopted by the Apache Foundation.
+ */
+package net.jxta.impl.protocol;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ *  The serialized form of an advertisement, as held by the cache and
+ *  returned in discovery responses. The UTF-8 form written to the cache
+ *  store and the XML escaped form in which it is embedded in a response are
+ *  computed on first use and kept, so that an advertisement returned by
+ *  many queries is only serialized, encoded and escaped once.
+ *
+ *  <p/>Instances are immutable, a republished advertisement gets a new one.
+ *
+ *  @see DiscoveryResponse
+ */
+public final class SerializedAdvertisement {
+
+    private final String text;
+    private volatile byte[] utf = null;
+    private volatile String escaped = null;
+
+    /**
+     *  @param  text  the advertisement as an XML document
+     */
+    public SerializedAdvertisement(String text) {
+        if (text == null) {
+            throw new IllegalArgumentException("text may not be null");
+        }
+        this.text = text;
+    }
+
+    /**
+     *  @param  utf  the advertisement as an UTF-8 encoded XML document. It is
+     *               kept and must not be modified afterwards.
+     */
+    public SerializedAdvertisement(byte[] utf) {
+        try {
+            this.text = new String(utf, "UTF-8");
+        } catch (UnsupportedEncodingException never) {
+            throw new IllegalStateException("UTF-8 not supported");
+        }
+        this.utf = utf;
+    }
+
+    /**
+     *  Returns the advertisement as an XML document.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     *  Returns the advertisement UTF-8 encoded. The result is shared and must
+     *  not be modified.
+     */
+    public byte[] getBytes() {
+        byte[] result = utf;
+        if (result == null) {
+            try {
+                result = text.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException never) {
+                throw new IllegalStateException("UTF-8 not supported");
+            }
+            utf = result;
+        }
+        return result;
+    }
+
+    /**
+     *  Returns the advertisement escaped for use as the text of an XML
+     *  element.
+     */
+    public String getEscaped() {
+        String result = escaped;
+        if (result == null) {
+            result = escape(text);
+            escaped = result;
+        }
+        return result;
+    }
+
+    /**
+     *  Escapes a string for use as the text of an XML element, the same
+     *  way as <code>LiteXMLElement</code> does: '&' and '<' only.
+     *
+     *  @param  text  the text to escape
+     *  @return       the escaped text
+     */
+    public static String escape(String text) {
+        StringBuffer result = null;
+        int len = text.length();
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+            String entity;
+            if ('&' == c) {
+                entity = "&amp;";
+            } else if ('<' == c) {
+                entity = "&lt;";
+            } else {
+                if (result != null) {
+                    result.append(c);
+                }
+                continue;
+            }
+            if (result == null) {
+                result = new StringBuffer(len + len / 8);
+                result.append(text.substring(0, i));
+            }
+            result.append(entity);
+        }
+        return (result == null) ? text : result.toString();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    public String toString() {
+        return text;
+    }
+}
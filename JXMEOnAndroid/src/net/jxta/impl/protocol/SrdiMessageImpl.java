@@ -108,6 +108,11 @@ public class SrdiMessageImpl extends SrdiMessage {
      */
     public final static String sKeyTag = "SKey";
 
+    /**
+     *  Summary element name
+     */
+    public final static String summaryTag = "Summary";
+
     /**
      *  ttl element name
      */
@@ -271,6 +276,12 @@ public class SrdiMessageImpl extends SrdiMessage {
             adv.appendChild(e);
         }
 
+        if (getSummary() != null) {
+            e = adv.createElement(summaryTag, getSummary());
+            adv.appendChild(e);
+            ((Attributable) e).addAttribute(expirationTag, Long.toString(getSummaryExpiration()));
+        }
+
         while (eachEntry.hasNext()) {
             SrdiMessage.Entry entry = (SrdiMessage.Entry) eachEntry.next();
 
@@ -317,6 +328,12 @@ public class SrdiMessageImpl extends SrdiMessage {
             if (elem.getName().equals(ttlTag)) {
                 setTTL(Integer.parseInt(elem.getTextValue()));
             }
+            if (elem.getName().equals(summaryTag)) {
+                Attribute expAttr = elem.getAttribute(expirationTag);
+
+                setSummary(elem.getTextValue(), (expAttr != null) ? Long.parseLong(expAttr.getValue()) : -1);
+                continue;
+            }
 
             if (elem.getName().equals(entryTag)) {
                 Attribute keyEl = ((Attributable) elem).getAttribute(sKeyTag);
@@ -94,6 +94,11 @@ public abstract class DiscoveryQueryMsg {
     private String attr = null;
     private String value = null;
 
+    /**
+     *  continuation token of a paged query
+     */
+    private String cursor = null;
+
     /**
      *  returns the Attr value
      *
@@ -235,6 +240,28 @@ public abstract class DiscoveryQueryMsg {
     }
 
 
+    /**
+     *  returns the continuation token: the responses start after the last
+     *  response of the page which returned it.
+     *
+     *@return    String the token, or null for the first page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+
+    /**
+     *  set the continuation token, as returned by
+     *  {@link DiscoveryResponseMsg#getCursor()}
+     *
+     *@param  cursor  the token, or null for the first page
+     */
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+
     /**
      *  All messages have a type (in xml this is &#0033;doctype) which
      *  identifies the message
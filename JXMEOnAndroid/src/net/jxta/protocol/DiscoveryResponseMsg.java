@@ -122,6 +122,11 @@ public abstract class DiscoveryResponseMsg {
      */
     protected String value = null;
 
+    /**
+     *  Continuation token, if more responses are available
+     */
+    protected String cursor = null;
+
     /**
      *  All messages have a type(in xml this is !doctype) which identifies the
      *  message
@@ -318,4 +323,23 @@ public abstract class DiscoveryResponseMsg {
     public void setQueryValue(String value) {
         this.value = value;
     }
+
+    /**
+     *  returns the continuation token of the responses. Set it in a
+     *  query identical to the one answered to get the next page.
+     *
+     *@return    String the token, or null if there are no more responses
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    /**
+     *  set the continuation token of the responses
+     *
+     *@param  cursor  the token, or null if there are no more responses
+     */
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
 }
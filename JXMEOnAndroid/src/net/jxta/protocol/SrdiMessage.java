@@ -80,6 +80,13 @@ public abstract class SrdiMessage {
      */
     private int ttl = 0;
 
+    /**
+     *  Encoded summary of all the entries of the primary key, sent instead
+     *  of the entries themselves
+     */
+    private String summary = null;
+    private long summaryExpiration = 0;
+
     /**
      *  Write advertisement into a document. asMimeType is a mime media-type
      *  specification and provides the form of the document which is being
@@ -194,6 +201,39 @@ public abstract class SrdiMessage {
         this.primaryKey = pkey;
     }
 
+    /**
+     *  returns the encoded summary of the entries of the primary key
+     *
+     *@return    the summary, or null if the message has none
+     */
+
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     *  returns the expiration of the summary
+     *
+     *@return    relative expiration in milliseconds
+     */
+
+    public long getSummaryExpiration() {
+        return summaryExpiration;
+    }
+
+    /**
+     *  set the encoded summary of the entries of the primary key. It
+     *  replaces any summary previously sent by the peer for the key.
+     *
+     *@param  summary     the summary, or null for none
+     *@param  expiration  relative expiration in milliseconds
+     */
+
+    public void setSummary(String summary, long expiration) {
+        this.summary = summary;
+        this.summaryExpiration = expiration;
+    }
+
     /**
      *  All messages have a type (in xml this is !doctype) which identifies the
      *  message, if no expiration is defined Default expiration infinite for